@@ -93,7 +93,147 @@ public class CLI {
 "		When matching ions from theoretical MS2 spectra to experimental\n" +
 "		spectra, this value specifies an absolute difference in Daltons\n" +
 "		within which ions will be considered as matching. Default value\n" +
-"		is 0.25.";
+"		is 0.25.\n" +
+"\n" +
+"	--threads <int>\n" +
+"		The number of spectrum files to search (and extract MS1 data\n" +
+"		from) concurrently. Each spectrum file writes only to its own\n" +
+"		results, so files are searched independently. Default value\n" +
+"		is 1.\n" +
+"\n" +
+"	--spectrum-memory <int>\n" +
+"		The heap memory (in megabytes) to budget for each spectrum\n" +
+"		file searched concurrently. The number of files in flight is\n" +
+"		limited so that their combined budget fits in the maximum\n" +
+"		heap size of the JVM, even when --threads is larger. This only\n" +
+"		limits how many files are searched at once: every file stays\n" +
+"		open with its scan index, and its scan arena if any, until\n" +
+"		the MS1 extraction is done. Memory held by open files grows\n" +
+"		with the number of files, up to --scan-arena-memory per file\n" +
+"		off the heap. Default value is 1024.\n" +
+"\n" +
+"	--scan-arena-memory <int>\n" +
+"		The off-heap memory (in megabytes) for the scan arena of each\n" +
+"		spectrum file. When a file is opened, its MS2 scans in the\n" +
+"		retention time window are decoded once into the arena, and\n" +
+"		read from it without decoding. Scans that do not fit are read\n" +
+"		from the file on demand. The arenas of all open files count\n" +
+"		against the direct memory limit of the JVM. Default value is\n" +
+"		0, which disables the arena.\n" +
+"\n" +
+"	--scan-fetch-threads <int>\n" +
+"		The number of threads that read and noise-filter MS2 scans in\n" +
+"		the search of each spectrum file. Scans are read ahead of\n" +
+"		scoring through a bounded queue, so reading waits whenever\n" +
+"		scoring falls behind. Default value is 1.\n" +
+"\n" +
+"	--score-threads <int>\n" +
+"		The number of threads that align and score MS2 scans against\n" +
+"		peptide species in the search of each spectrum file. The total\n" +
+"		number of search threads is --threads times the sum of the two\n" +
+"		per-file thread counts. Default value is 1.\n" +
+"\n" +
+"	--shard <index>/<count>\n" +
+"		Search only one shard of the job, so that a large job can be\n" +
+"		split across several processes or machines that share nothing.\n" +
+"		Run one process per index from 0 to count-1, each with the same\n" +
+"		options and its own --out-dir. A shard only writes its journal\n" +
+"		and metrics; the results are produced by --merge-shard. Not\n" +
+"		sharded by default.\n" +
+"\n" +
+"	--shard-by <proteins|spectra|both>\n" +
+"		How the job is split into shards: round-robin over the proteins\n" +
+"		of the FASTA database, over the spectrum files, or over every\n" +
+"		pair of the two. Default value is proteins.\n" +
+"\n" +
+"	--merge-shard <path>\n" +
+"		The output directory of a shard to merge. Pass the option once\n" +
+"		per shard, along with the options the shards were run with. The\n" +
+"		identifications of all shards are combined, and retention time\n" +
+"		alignment, MS1 extraction and the result files are produced\n" +
+"		once, in --out-dir.\n" +
+"\n" +
+"	--store-ions <true|false>\n" +
+"		When true, the observed and theoretical ions of every\n" +
+"		identification are moved out of memory into the file\n" +
+"		identifications.ions in the output directory as the search\n" +
+"		proceeds, and are read back from it when the results are\n" +
+"		written. This bounds the memory used by searches that make many\n" +
+"		identifications. The file is deleted once the results are\n" +
+"		written. Default value is false.\n" +
+"\n" +
+"	--search-engine <peptide|spectrum>\n" +
+"		The search strategy. peptide searches each peptide species for\n" +
+"		matching MS2 scans. spectrum enumerates the species once and\n" +
+"		scores each MS2 scan against the species whose precursor m/z\n" +
+"		matches it, reading every scan only once. Both strategies make\n" +
+"		the same identifications. Default value is peptide.\n" +
+"\n" +
+"	--peak-cache-size <int>\n" +
+"		The number of noise-filtered MS2 scans to keep in memory. A scan\n" +
+"		matched by several species is noise-filtered only once while it\n" +
+"		stays in the cache. Default value is 4096.\n" +
+"\n" +
+"	--min-shared-peaks <int>\n" +
+"		The minimum number of theoretical ions of a species that must\n" +
+"		lie within the MS2 error of a peak in a scan before the scan is\n" +
+"		aligned to and scored against the species. Pairs below this are\n" +
+"		rejected early, and the rejection rate is logged at the end of\n" +
+"		the search. 0 disables the check. Default value is 0.\n" +
+"\n" +
+"	--resume <true|false>\n" +
+"		Every protein searched against a spectrum file is recorded in\n" +
+"		the journal file search.journal in the output directory. When\n" +
+"		true, a search that was interrupted is resumed from the journal\n" +
+"		of the same --out-dir, and proteins it records are not searched\n" +
+"		again. The journal is only resumed by a search with the same\n" +
+"		spectrum files and parameters. Default value is false.\n" +
+"\n" +
+"	--prometheus-metrics <file>\n" +
+"		Counts and latency histograms of the search stages (scan\n" +
+"		decoding, peak filtering, alignment, scoring and MS1\n" +
+"		extraction) are written to metrics.json in the output\n" +
+"		directory. This option also writes them to the argument file\n" +
+"		in the Prometheus text format, for example for the textfile\n" +
+"		collector of a node exporter. Not written by default.\n" +
+"\n" +
+"	--spectrum-library <dir>\n" +
+"		The theoretical ions of every species are written to a\n" +
+"		library file with the extension .tsl in the argument directory\n" +
+"		on the first search, and memory mapped from it by later\n" +
+"		searches of the same proteins, modifications, protease and\n" +
+"		charges instead of being generated again. A library that does\n" +
+"		not match the search is left in place and a new one written\n" +
+"		beside it. Not used by default.\n" +
+"\n" +
+"	--learn-tolerances <true|false>\n" +
+"		A sample of the species is first searched with the\n" +
+"		--ms1-error-ppm and --ms2-error tolerances, and the full search\n" +
+"		then uses the mass errors of the best scoring identifications\n" +
+"		of the sample, which are printed. Learned tolerances are never\n" +
+"		wider than the configured ones, and the configured ones are\n" +
+"		kept if the sample makes too few identifications. The MS1\n" +
+"		extraction always uses --ms1-error-ppm. Default value is\n" +
+"		false.\n" +
+"\n" +
+"	--consensus-library <file>\n" +
+"		Spectral library of the species confirmed by earlier searches,\n" +
+"		holding the consensus fragment spectrum and mean retention time\n" +
+"		of each species and charge. Scans are checked against the\n" +
+"		consensus spectrum first, with a dot product of binned peaks,\n" +
+"		and only searched in full if they are not confirmed by it. A\n" +
+"		confirmed scan is scored over its peaks within --ms2-error of\n" +
+"		the consensus ions, as the full search scores them against the\n" +
+"		theoretical ions. The identifications of the full search are\n" +
+"		added to the library at the end of the job, and the file is\n" +
+"		created if it does not exist. Shards do not update the library.\n" +
+"		The theoretical ions written for a scan confirmed by the library\n" +
+"		are the consensus ions it matched. Not used by default.\n" +
+"\n" +
+"	--library-search <true|false>\n" +
+"		When false, every scan is searched in full, and the\n" +
+"		--consensus-library is only updated with the identifications.\n" +
+"		Default value is true.";
         System.out.println(usage);
     }
     
@@ -219,6 +359,73 @@ public class CLI {
                 case "--out-dir":
                     ifc.setOutputDirectory(value);
                     break;
+                case "--threads":
+                    ifc.setThreads(CLI.getIntegerOption(option, value));
+                    break;
+                case "--spectrum-memory":
+                    ifc.setSpectrumMemoryMb(CLI.getIntegerOption(option, value));
+                    break;
+                case "--scan-arena-memory":
+                    ifc.setScanArenaMemoryMb(CLI.getIntegerOption(option, value));
+                    break;
+                case "--scan-fetch-threads":
+                    ifc.setScanFetchThreads(CLI.getIntegerOption(option, value));
+                    break;
+                case "--score-threads":
+                    ifc.setScoreThreads(CLI.getIntegerOption(option, value));
+                    break;
+                case "--shard":
+                    Shard shard = Shard.parse(value, Shard.BY_PROTEINS);
+                    ifc.setShard(shard.index, shard.count);
+                    break;
+                case "--shard-by":
+                    ifc.setShardBy(value);
+                    break;
+                case "--merge-shard":
+                    ifc.addMergeShard(value);
+                    break;
+                case "--store-ions":
+                    if(!value.equals("true") && !value.equals("false")) {
+                        throw new Exception(String.format("Option %s requires true or false, not \"%s\"", option, value));
+                    }
+                    ifc.setStoreIons(Boolean.parseBoolean(value));
+                    break;
+                case "--search-engine":
+                    ifc.setSearchEngine(value);
+                    break;
+                case "--peak-cache-size":
+                    ifc.setPeakCacheSize(CLI.getIntegerOption(option, value));
+                    break;
+                case "--min-shared-peaks":
+                    ifc.setMinSharedPeaks(CLI.getIntegerOption(option, value));
+                    break;
+                case "--resume":
+                    if(!value.equals("true") && !value.equals("false")) {
+                        throw new Exception(String.format("Option %s requires true or false, not \"%s\"", option, value));
+                    }
+                    ifc.setResume(Boolean.parseBoolean(value));
+                    break;
+                case "--prometheus-metrics":
+                    ifc.setPrometheusFile(value);
+                    break;
+                case "--spectrum-library":
+                    ifc.setSpectrumLibrary(value);
+                    break;
+                case "--learn-tolerances":
+                    if(!value.equals("true") && !value.equals("false")) {
+                        throw new Exception(String.format("Option %s requires true or false, not \"%s\"", option, value));
+                    }
+                    ifc.setLearnTolerances(Boolean.parseBoolean(value));
+                    break;
+                case "--consensus-library":
+                    ifc.setConsensusLibrary(value);
+                    break;
+                case "--library-search":
+                    if(!value.equals("true") && !value.equals("false")) {
+                        throw new Exception(String.format("Option %s requires true or false, not \"%s\"", option, value));
+                    }
+                    ifc.setLibrarySearch(Boolean.parseBoolean(value));
+                    break;
                 default:
                     throw new Exception("Invalid option "+option+" specified");
             }
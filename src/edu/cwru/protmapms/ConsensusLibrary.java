@@ -0,0 +1,493 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.math.ArrayAlignment;
+import edu.cwru.protmapms.math.SortedArraysAligner;
+import edu.cwru.protmapms.spectra.Peaks;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spectral library of species confirmed by earlier searches. Each entry holds
+ * the consensus fragment spectrum of one species at one charge state, merged
+ * from the scan peaks matched by the identifications of the species, and the
+ * mean retention time they were observed at. Repeat samples of the same
+ * protein confirm the same species again and again, and a scan can be checked
+ * against the consensus spectrum with a dot product of binned spectra, which
+ * is much cheaper than generating the theoretical ions and aligning them.
+ * <br><br>
+ * 
+ * Entries are keyed by the sequence, per-residue mass offsets and charge of a
+ * species, so they hold across protein databases and modification settings.
+ * The entries read from the file do not change during a search. The
+ * identifications to add are recorded as the search runs, and merged into the
+ * entries by update() once it is done. The file is tab-separated text with one
+ * entry per line:
+ * <pre>
+ * key, spectra merged, sum of retention times, m/z values, intensities
+ * </pre>
+ * where the m/z values and intensities are comma-separated, and each
+ * intensity is the sum of the intensities of the spectra merged, each scaled
+ * to a maximum of 1.
+ * 
+ * @author Sean Maxwell
+ */
+public class ConsensusLibrary {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConsensusLibrary.class);
+    private static final String HEADER = "# ProtMapMS consensus library 1";
+    
+    /* Width of the bins of the dot product, about the spacing of peptide
+     * mass defect clusters */
+    public static final double BIN_WIDTH = 1.0005079;
+    
+    /* Dot product at which a scan is confirmed by an entry */
+    public static final double MIN_DOT = 0.7;
+    
+    /* Matched ions an identification needs to be added */
+    public static final int MIN_IONS = 4;
+    
+    /**
+     * Consensus spectrum of one species at one charge state.
+     */
+    public static class Entry {
+        public final double[] mz;
+        public final double[] intensity;
+        public final int count;
+        private final double retentionTimeSum;
+        private final int[] bins;
+        private final double[] weights;
+        private final double norm;
+        
+        Entry(double[] mz, double[] intensity, int count, double retentionTimeSum) {
+            this.mz = mz;
+            this.intensity = intensity;
+            this.count = count;
+            this.retentionTimeSum = retentionTimeSum;
+            
+            /* Intensity of each bin holding consensus ions, which are in
+             * ascending m/z order */
+            int[] b = new int[mz.length];
+            double[] x = new double[mz.length];
+            int n = 0;
+            double sum = 0.0;
+            for(int i=0;i<mz.length;i++) {
+                int bin = bin(mz[i]);
+                if(n == 0 || b[n-1] != bin) {
+                    b[n++] = bin;
+                }
+                x[n-1] += intensity[i];
+                sum += intensity[i];
+            }
+            bins = Arrays.copyOf(b, n);
+            weights = new double[n];
+            for(int i=0;i<n;i++) {
+                weights[i] = Math.sqrt(x[i]);
+            }
+            norm = Math.sqrt(sum);
+        }
+        
+        /**
+         * @return Mean retention time of the spectra merged, in seconds
+         */
+        public double retentionTime() {
+            return retentionTimeSum/count;
+        }
+        
+        /* Merges a spectrum into this one. An ion of the spectrum within the
+         * MS2 error of the closest consensus ion is merged into it, and is
+         * added as a consensus ion of its own otherwise, so that ions closer
+         * than a bin apart are kept apart as the full search keeps them */
+        private Entry merge(double[] addMz, double[] addIntensity, double retentionTime, double ms2Err) {
+            double max = 0.0;
+            for(double x : addIntensity) {
+                max = Math.max(max, x);
+            }
+            
+            /* Intensity-weighted m/z sum and intensity sum of each ion */
+            List<double[]> ions = new ArrayList<>();
+            for(int i=0;i<mz.length;i++) {
+                ions.add(new double[]{mz[i]*intensity[i], intensity[i]});
+            }
+            for(int i=0;i<addMz.length;i++) {
+                if(max == 0.0 || addIntensity[i] <= 0.0) continue;
+                double x = addIntensity[i]/max;
+                int k = closest(mz, addMz[i]);
+                double[] ion;
+                if(k >= 0 && Math.abs(mz[k]-addMz[i]) <= ms2Err) {
+                    ion = ions.get(k);
+                }
+                else {
+                    ion = new double[2];
+                    ions.add(ion);
+                }
+                ion[0] += addMz[i]*x;
+                ion[1] += x;
+            }
+            ions.sort(Comparator.comparingDouble(ion -> ion[0]/ion[1]));
+            double[] newMz = new double[ions.size()];
+            double[] newIntensity = new double[ions.size()];
+            for(int k=0;k<newMz.length;k++) {
+                newMz[k] = ions.get(k)[0]/ions.get(k)[1];
+                newIntensity[k] = ions.get(k)[1];
+            }
+            return new Entry(newMz, newIntensity, count+1, retentionTimeSum+retentionTime);
+        }
+        
+        /* Index of the value of sorted closest to v, or -1 if it is empty */
+        private static int closest(double[] sorted, double v) {
+            int i = Arrays.binarySearch(sorted, v);
+            if(i >= 0) {
+                return i;
+            }
+            i = -i-1;
+            if(i == sorted.length) {
+                return i-1;
+            }
+            if(i > 0 && v-sorted[i-1] <= sorted[i]-v) {
+                return i-1;
+            }
+            return i;
+        }
+    }
+    
+    /* A spectrum to merge into the library once the search is done */
+    private static class Record {
+        final String key;
+        final String spectrum;
+        final int scan;
+        final double[] mz;
+        final double[] intensity;
+        final double retentionTime;
+        
+        Record(String key, String spectrum, int scan, double[] mz, double[] intensity, double retentionTime) {
+            this.key = key;
+            this.spectrum = spectrum;
+            this.scan = scan;
+            this.mz = mz;
+            this.intensity = intensity;
+            this.retentionTime = retentionTime;
+        }
+    }
+    
+    private final String file;
+    private final Map<String,Entry> entries;
+    private final List<Record> recorded;
+    private final String digest;
+    
+    private ConsensusLibrary(String file, Map<String,Entry> entries, String digest) {
+        this.file = file;
+        this.entries = entries;
+        this.recorded = new ArrayList<>();
+        this.digest = digest;
+    }
+    
+    /**
+     * @param mz m/z value
+     * 
+     * @return Bin of the dot product the m/z value falls in
+     */
+    public static int bin(double mz) {
+        return (int)Math.floor(mz/BIN_WIDTH);
+    }
+    
+    /**
+     * Builds the key of a species at a charge state.
+     * 
+     * @param sequence Peptide sequence
+     * @param offsets Mass offset of each residue
+     * @param Z Charge state
+     * 
+     * @return Library key
+     */
+    public static String key(String sequence, double[] offsets, int Z) {
+        StringBuilder sb = new StringBuilder(sequence);
+        for(double offset : offsets) {
+            sb.append(' ').append(Long.toHexString(Double.doubleToLongBits(offset)));
+        }
+        sb.append(' ').append(Z);
+        return sb.toString();
+    }
+    
+    private static double[] parseDoubles(String s) {
+        if(s.isEmpty()) {
+            return new double[0];
+        }
+        String[] parts = s.split(",");
+        double[] values = new double[parts.length];
+        for(int i=0;i<parts.length;i++) {
+            values[i] = Double.parseDouble(parts[i]);
+        }
+        return values;
+    }
+    
+    private static String joinDoubles(double[] values) {
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<values.length;i++) {
+            if(i > 0) sb.append(',');
+            sb.append(values[i]);
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Reads a library, or starts an empty one if the file does not exist.
+     * 
+     * @param file Library file
+     * 
+     * @return The library
+     * 
+     * @throws Exception if the file exists but cannot be read
+     */
+    public static ConsensusLibrary read(String file) throws Exception {
+        Map<String,Entry> entries = new HashMap<>();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        if(!new File(file).exists()) {
+            LOGGER.info("Consensus library {} does not exist and will be created",file);
+            return new ConsensusLibrary(file, entries, "empty");
+        }
+        
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            if(!HEADER.equals(line)) {
+                throw new Exception(String.format("%s is not a consensus library",file));
+            }
+            int n = 1;
+            while((line = reader.readLine()) != null) {
+                n++;
+                digest.update(line.getBytes(StandardCharsets.UTF_8));
+                String[] fields = line.split("\t", -1);
+                if(fields.length != 5) {
+                    throw new Exception(String.format("Line %d of consensus library %s is not valid",n,file));
+                }
+                double[] mz = parseDoubles(fields[3]);
+                double[] intensity = parseDoubles(fields[4]);
+                if(mz.length != intensity.length) {
+                    throw new Exception(String.format("Line %d of consensus library %s is not valid",n,file));
+                }
+                entries.put(fields[0], new Entry(mz, intensity, Integer.parseInt(fields[1]), Double.parseDouble(fields[2])));
+            }
+        }
+        LOGGER.info("Read {} spectra from consensus library {}",entries.size(),file);
+        return new ConsensusLibrary(file, entries, Hex.encodeHexString(digest.digest()));
+    }
+    
+    /**
+     * @return Number of entries read from the file or merged by update()
+     */
+    public int size() {
+        return entries.size();
+    }
+    
+    /**
+     * @return Digest of the entries read from the file, which identifies the
+     *         library a search ran with
+     */
+    public String digest() {
+        return digest;
+    }
+    
+    /**
+     * @param key Library key
+     * 
+     * @return The entry, or null if the library holds none for the key
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+    
+    /**
+     * Records the scan peaks matched by an identification, to be merged into
+     * the library by update(). Identifications matching fewer than MIN_IONS
+     * ions are left out.
+     * 
+     * @param key Library key of the identified species
+     * @param spectrum Spectrum file the identification was made in
+     * @param identification Identification made by the full search, with its
+     *        observed and theoretical ions
+     */
+    public void record(String key, String spectrum, Identification identification) {
+        /* Theoretical ions are snapped to the scan peaks they matched, and
+         * the observed ion at the same alignment index holds the intensity */
+        MSMSIons theoretical = identification.getTheoreticalIons();
+        MSMSIons observed = identification.getObservedIons();
+        double[] mz = new double[theoretical.size()];
+        double[] intensity = new double[theoretical.size()];
+        int n = 0;
+        int j = 0;
+        for(int i=0;i<theoretical.size();i++) {
+            while(j < observed.size() && observed.index[j] < theoretical.index[i]) j++;
+            if(j == observed.size()) break;
+            if(observed.index[j] != theoretical.index[i]) continue;
+            mz[n] = theoretical.mz[i];
+            intensity[n] = observed.intensity[j];
+            n++;
+        }
+        if(n < MIN_IONS) {
+            return;
+        }
+        Record record = new Record(key, spectrum, identification.getScanNumber(), Arrays.copyOf(mz, n), Arrays.copyOf(intensity, n), identification.getRetentionTime());
+        synchronized(recorded) {
+            recorded.add(record);
+        }
+    }
+    
+    /**
+     * Merges the recorded identifications into the entries. Merging sums
+     * floating point intensities, so the identifications are merged in order
+     * of key, spectrum file and scan rather than in the order the score
+     * threads recorded them, and the same search always writes the same
+     * library. An ion is merged into the closest consensus ion if it is
+     * within the MS2 error of it, and added as a consensus ion otherwise.
+     * 
+     * @param ms2Err MS2 error in Daltons
+     * 
+     * @return Number of identifications merged
+     */
+    public int update(double ms2Err) {
+        synchronized(recorded) {
+            recorded.sort(Comparator.comparing((Record r) -> r.key).
+                    thenComparing(r -> r.spectrum).
+                    thenComparingInt(r -> r.scan));
+            for(Record record : recorded) {
+                Entry entry = entries.get(record.key);
+                if(entry == null) {
+                    entry = new Entry(new double[0], new double[0], 0, 0.0);
+                }
+                entries.put(record.key, entry.merge(record.mz, record.intensity, record.retentionTime, ms2Err));
+            }
+            int n = recorded.size();
+            recorded.clear();
+            return n;
+        }
+    }
+    
+    /**
+     * Writes the library to its file, through a temporary file that is
+     * renamed once complete.
+     * 
+     * @throws IOException if the library cannot be written
+     */
+    public void write() throws IOException {
+        File target = new File(file).getAbsoluteFile();
+        File tmp = File.createTempFile(target.getName(), ".tmp", target.getParentFile());
+        try(PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8))) {
+            out.println(HEADER);
+            for(String key : new TreeMap<>(entries).keySet()) {
+                Entry entry = entries.get(key);
+                out.printf("%s\t%d\t%s\t%s\t%s\n",key,entry.count,Double.toString(entry.retentionTimeSum),joinDoubles(entry.mz),joinDoubles(entry.intensity));
+            }
+            if(out.checkError()) {
+                throw new IOException("Could not write consensus library "+file);
+            }
+        }
+        catch(Exception e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Computes the cosine of the square root intensities of an entry and of
+     * scan peaks binned the same way.
+     * 
+     * @param entry Library entry
+     * @param peaks Scan peaks, in ascending m/z order
+     * 
+     * @return Dot product between 0 and 1
+     */
+    public static double dot(Entry entry, Peaks peaks) {
+        double dot = 0.0;
+        double sum = 0.0;
+        int j = 0;
+        int i = 0;
+        while(i < peaks.MZ.length) {
+            /* Sum the intensity of the scan peaks in one bin */
+            int b = bin(peaks.MZ[i]);
+            double x = 0.0;
+            while(i < peaks.MZ.length && bin(peaks.MZ[i]) == b) {
+                x += peaks.Intensity[i];
+                i++;
+            }
+            sum += x;
+            while(j < entry.bins.length && entry.bins[j] < b) j++;
+            if(j < entry.bins.length && entry.bins[j] == b) {
+                dot += Math.sqrt(x)*entry.weights[j];
+            }
+        }
+        if(sum == 0.0 || entry.norm == 0.0) {
+            return 0.0;
+        }
+        return dot/(Math.sqrt(sum)*entry.norm);
+    }
+    
+    /**
+     * Aligns scan peaks to the consensus ions of an entry the way the full
+     * search aligns them to theoretical ions, with
+     * SortedArraysAligner.alignClosestDependent(): the most intense scan peak
+     * within the MS2 error of each consensus ion is matched, with its m/z
+     * value as the theoretical m/z. The bins are only used by dot(), to
+     * decide whether a scan is worth aligning.
+     * 
+     * @param entry Library entry
+     * @param peaks Scan peaks, in ascending m/z order
+     * @param ms2Err MS2 error in Daltons
+     * 
+     * @return The alignment, over all of the scan peaks
+     * 
+     * @throws Exception if the peaks are not in ascending m/z order
+     */
+    public static ArrayAlignment align(Entry entry, Peaks peaks, double ms2Err) throws Exception {
+        return SortedArraysAligner.alignClosestDependent(peaks.MZ, peaks.Intensity, entry.mz, ms2Err);
+    }
+}
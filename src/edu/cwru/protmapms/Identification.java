@@ -22,41 +22,75 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
 import java.util.List;
 
 import edu.cwru.protmapms.modifications.ModificationSite;
+import edu.cwru.protmapms.result.IonStore;
 
 /**
  * Encapsulates the properties necessary to describe a peptide species 
  * identification. This includes things like the scan number where the 
  * identification was made, what modifications were considered when making
- * the identification, charge state, etc.
+ * the identification, charge state, etc.<br><br>
+ * 
+ * Numeric properties are stored as primitives, and the list of modifications
+ * is shared with the caller rather than copied, as a large search keeps
+ * many identifications of the same species. The observed and theoretical
+ * ions can be moved to an IonStore with storeIons(), after which they are
+ * read back from the store whenever they are requested.
  * 
  * @author Sean Maxwell
  */
 public class Identification {
     private List<ModificationSite> modifications;
-    private Double retentionTime;
+    private double retentionTime;
     private Double exposureTime;
-    private Double precursorMz;
-    private Double precursorIntensity;
-    private Integer scanNumber;
-    private Double score;
-    private Integer Z;
+    private double precursorMz;
+    private double precursorIntensity;
+    private int scanNumber;
+    private double score;
+    private int Z;
     private MSMSIons observedIons;
     private MSMSIons theoreticalIons;
-    private Boolean isSignificant;
+    private boolean isSignificant;
+    private IonStore ionStore;
+    private long ionsOffset;
     
     
     public Identification(Double d, Integer i, Double s) {
         retentionTime = d;
         scanNumber = i;
         score = s;
-        modifications = new ArrayList<>();
+        modifications = Collections.emptyList();
         isSignificant = false;
     }
     
+    /**
+     * Copies the identification. The copy shares the ions, which are never
+     * changed once set, and the list of modifications, which callers usually
+     * replace with that of another species. Safe to call while another
+     * thread moves the ions to a store.
+     * 
+     * @return Copy of the identification
+     */
+    public synchronized Identification copy() {
+        Identification c = new Identification(retentionTime, scanNumber, score);
+        c.modifications = modifications;
+        c.exposureTime = exposureTime;
+        c.precursorMz = precursorMz;
+        c.precursorIntensity = precursorIntensity;
+        c.Z = Z;
+        c.observedIons = observedIons;
+        c.theoreticalIons = theoreticalIons;
+        c.isSignificant = isSignificant;
+        c.ionStore = ionStore;
+        c.ionsOffset = ionsOffset;
+        return c;
+    }
+    
     public Identification setRetentionTime(Double d) {
         retentionTime = d;
         return this;
@@ -78,12 +112,18 @@ public class Identification {
     }
     
     public Identification setTheoreticalIons(MSMSIons msi) {
+        MSMSIons[] ions = ions();
+        observedIons = ions[0];
         theoreticalIons = msi;
+        ionStore = null;
         return this;
     }
     
     public Identification setObservedIons(MSMSIons msi) {
+        MSMSIons[] ions = ions();
+        theoreticalIons = ions[1];
         observedIons = msi;
+        ionStore = null;
         return this;
     }
     
@@ -102,8 +142,16 @@ public class Identification {
         return this;
     }
     
+    /**
+     * Sets the modifications of the identified species. The list is kept,
+     * not copied, so it must not be changed afterwards.
+     * 
+     * @param lm Modification sites of the species
+     * 
+     * @return this
+     */
     public Identification setModifications(List<ModificationSite> lm) {
-        this.modifications=new ArrayList<>(lm);
+        this.modifications=lm;
         return this;
     }
     
@@ -128,12 +176,52 @@ public class Identification {
         return score;
     }
     
+    /**
+     * Moves the observed and theoretical ions of the identification to a
+     * store, and drops them from the heap. Does nothing if they are already
+     * in the store.
+     * 
+     * @param store Store to move the ions to
+     * 
+     * @return this
+     * 
+     * @throws IOException if the ions cannot be written to the store
+     */
+    public synchronized Identification storeIons(IonStore store) throws IOException {
+        if(ionStore == store) return this;
+        MSMSIons[] ions = ions();
+        ionsOffset = store.append(ions[0], ions[1]);
+        ionStore = store;
+        observedIons = null;
+        theoreticalIons = null;
+        return this;
+    }
+    
+    /* Observed and theoretical ions, read from the store if they were moved
+     * to one */
+    private synchronized MSMSIons[] ions() {
+        if(ionStore == null) {
+            return new MSMSIons[]{observedIons, theoreticalIons};
+        }
+        try {
+            return ionStore.read(ionsOffset);
+        }
+        catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    /**
+     * @return Theoretical ions aligned to the observed ions. For a scan
+     *         confirmed by the consensus library, these are the consensus
+     *         ions the scan matched
+     */
     public MSMSIons getTheoreticalIons() {
-        return theoreticalIons;
+        return ions()[1];
     }
     
     public MSMSIons getObservedIons() {
-        return observedIons;
+        return ions()[0];
     }
     
     public Integer getCharge() {
@@ -197,6 +285,7 @@ public class Identification {
      * @see edu.cwru.protmapms.MSMSIons
      */
     public String toJSON() {
+        MSMSIons[] ions = ions();
         StringBuilder sb = new StringBuilder("{\"mods\":\"");
         sb.append(modifications.toString());
         sb.append("\",\"rt\":");
@@ -214,9 +303,9 @@ public class Identification {
         sb.append(",\"z\":");
         sb.append(Z);
         sb.append(",\"oions\":");
-        sb.append(observedIons.toJSON());
+        sb.append(ions[0].toJSON());
         sb.append(",\"tions\":");
-        sb.append(theoreticalIons.toJSON());
+        sb.append(ions[1].toJSON());
         sb.append(",\"sig\":");
         sb.append(isSignificant);
         sb.append("}");
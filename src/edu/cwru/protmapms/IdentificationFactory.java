@@ -25,22 +25,29 @@ package edu.cwru.protmapms;
 import edu.cwru.protmapms.filtering.*;
 import edu.cwru.protmapms.math.SortedArraysAligner;
 import edu.cwru.protmapms.math.ArrayAlignment;
+import edu.cwru.protmapms.metrics.MetricsRegistry;
+import edu.cwru.protmapms.metrics.SearchMetrics;
 import edu.cwru.protmapms.modifications.ModificationSite;
 import edu.cwru.protmapms.modifications.Modifications;
-import edu.cwru.protmapms.modifications.ModificationSiteEnumerator;
 import edu.cwru.protmapms.result.*;
 import edu.cwru.protmapms.scoring.*;
 import edu.cwru.protmapms.spectra.SpectrumFile;
 import edu.cwru.protmapms.spectra.mzXMLInterface;
 import edu.cwru.protmapms.spectra.Peaks;
 import edu.cwru.protmapms.spectra.Scan;
+import edu.cwru.protmapms.util.BoundedPipeline;
+import edu.cwru.protmapms.util.LongestFirstScheduler;
 
+import java.io.File;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.apache.commons.codec.binary.Hex;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -74,18 +81,113 @@ public class IdentificationFactory {
     private Double toRT;
     private Double integrationSlack;
     private Integer ms1ErrPpm;
+    
+    /* MS1 error of the precursor search, which is learned from a sample when
+     * configured. MS1 extraction keeps the configured error */
+    private int searchErrPpm;
     private Double ms2Err;
     private Double minScore;
     private ScoringFunction scoringFunction;
-    private PeakFilterChain peakFilterChain;
+    private CachingPeakFilterChain peakFilterChain;
     private String outDir;
+    private Integer threads;
+    private Integer spectrumMemoryMb;
+    private Integer scanArenaMemoryMb;
+    private String searchEngine;
+    private Integer peakCacheSize;
+    private Integer minSharedPeaks;
+    private Boolean resume;
+    private String prometheusFile;
+    private String spectrumLibraryDir;
+    private Boolean learnTolerances;
+    private String consensusLibraryFile;
+    private Boolean librarySearch;
+    private ConsensusLibrary consensusLibrary;
+    private Integer scanFetchThreads;
+    private Integer scoreThreads;
+    private Integer shardIndex;
+    private Integer shardCount;
+    private String shardBy;
+    private final List<String> mergeShards;
+    private Shard shard;
+    private Boolean storeIons;
+    private IonStore ionStore;
+    
+    /* Connected spectrum files of the job, by spectrum index. A file stays
+     * connected from its first use until the MS1 extraction is done, so it
+     * is parsed and indexed once for all of the stages that read it */
+    private SpectrumFile[] sessions;
+    
+    /* Number of work items each queue of a search pipeline can hold */
+    private static final int PIPELINE_QUEUE_CAPACITY = 256;
+    
+    private static final int[] NO_SCANS = new int[0];
+    
+    /* Distinct species searched, and identifications collected before the
+     * next spectrum file is left out, by the sample that learns tolerances */
+    private static final int LEARN_SAMPLE_SPECIES = 2000;
+    private static final int LEARN_IDENTIFICATIONS = 500;
+    
+    /* A protein being searched by the peptide-centric pipeline. pending
+     * counts its species still to be scored, plus one held by the source
+     * until every species of the protein has been queried */
+    private static class ProteinWork {
+        final int protein;
+        final List<SpeciesWork> items = new ArrayList<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        
+        ProteinWork(int protein) {
+            this.protein = protein;
+        }
+    }
+    
+    /* A species and charge with its candidate scans. A species shared with
+     * other proteins is scored once per spectrum file, by the first
+     * occurrence queried, which holds the shared search of the species until
+     * it has been scored */
+    private static class SpeciesWork {
+        final ProteinWork protein;
+        final int species;
+        final int Z;
+        final int[] scans;
+        Peaks[] peaks;
+        List<Identification> identifications;
+        SharedSearch shared;
+        
+        SpeciesWork(ProteinWork protein, int species, int Z, int[] scans) {
+            this.protein = protein;
+            this.species = species;
+            this.Z = Z;
+            this.scans = scans;
+        }
+    }
+    
+    /* The search of a shared species and charge in a spectrum file. The
+     * occurrences queried after the first wait in dependents until it has
+     * been scored, after which only its identifications are kept, so the
+     * searches of a file do not hold on to the work of completed proteins */
+    private static class SharedSearch {
+        List<Identification> identifications;
+        List<SpeciesWork> dependents = new ArrayList<>();
+    }
     
-    private double[] toArray(Peptide peptide, List<ModificationSite> modSites) {
-        double[] offsets = new double[peptide.length];
-        for(ModificationSite modSite : modSites) {
-            offsets[modSite.position-peptide.start] = modSite.modification.massOffset;
+    /* Shared search of a species and charge with no candidate scans */
+    private static final SharedSearch NO_CANDIDATES = new SharedSearch();
+    
+    /* A scan with its candidate (species, charge) entries */
+    private static class ScanWork {
+        final int scan;
+        final Scan meta;
+        final List<Integer> candidates;
+        Peaks peaks;
+        final List<Integer> identifiedSpecies = new ArrayList<>();
+        final List<Identification> identifications = new ArrayList<>();
+        
+        ScanWork(int scan, Scan meta, List<Integer> candidates) {
+            this.scan = scan;
+            this.meta = meta;
+            this.candidates = candidates;
         }
-        return offsets;  
     }
     
     public IdentificationFactory() {
@@ -96,13 +198,28 @@ public class IdentificationFactory {
         spectrumFiles = new ArrayList<>();
         spectrumKeys = new ArrayList<>();
         exposureTimes = new ArrayList<>();
+        mergeShards = new ArrayList<>();
         ms1ErrPpm=10;
         ms2Err=0.25;
         minScore=0.2;
         integrationSlack=180.0;
         scoringFunction = new PearsonCorrelationScoring();
-        peakFilterChain = new StandardPeakFilterChain();
+        setPeakCacheSize(4096);
+        minSharedPeaks = 0;
         outDir = String.format("results/%d",System.currentTimeMillis());
+        threads = 1;
+        spectrumMemoryMb = 1024;
+        scanArenaMemoryMb = 0;
+        searchEngine = "peptide";
+        resume = false;
+        scanFetchThreads = 1;
+        scoreThreads = 1;
+        shardIndex = 0;
+        shardCount = 1;
+        shardBy = Shard.BY_PROTEINS;
+        storeIons = false;
+        learnTolerances = false;
+        librarySearch = true;
     }
     
     public void configure(IdentificationFactoryConfig ifc) {
@@ -120,6 +237,25 @@ public class IdentificationFactory {
         modifications=ifc.getModificationDatabase();
         proteaseName=ifc.getProteaseName();
         outDir = ifc.getOutputDirectory();
+        threads = ifc.getThreads();
+        spectrumMemoryMb = ifc.getSpectrumMemoryMb();
+        scanArenaMemoryMb = ifc.getScanArenaMemoryMb();
+        searchEngine = ifc.getSearchEngine();
+        setPeakCacheSize(ifc.getPeakCacheSize());
+        minSharedPeaks = ifc.getMinSharedPeaks();
+        resume = ifc.getResume();
+        prometheusFile = ifc.getPrometheusFile();
+        spectrumLibraryDir = ifc.getSpectrumLibrary();
+        learnTolerances = ifc.getLearnTolerances();
+        consensusLibraryFile = ifc.getConsensusLibrary();
+        librarySearch = ifc.getLibrarySearch();
+        scanFetchThreads = ifc.getScanFetchThreads();
+        scoreThreads = ifc.getScoreThreads();
+        shardIndex = ifc.getShardIndex();
+        shardCount = ifc.getShardCount();
+        shardBy = ifc.getShardBy();
+        mergeShards.addAll(ifc.getMergeShards());
+        storeIons = ifc.getStoreIons();
         
         for(int i=0;i<ifc.nSpectra();i++) {
             this.addSpectrum(ifc.spectrumFile(i), ifc.spectrumKey(i));
@@ -208,6 +344,235 @@ public class IdentificationFactory {
         return this;
     }
     
+    public IdentificationFactory setThreads(Integer n) {
+        this.threads=n;
+        return this;
+    }
+    
+    public IdentificationFactory setSpectrumMemoryMb(Integer mb) {
+        this.spectrumMemoryMb=mb;
+        return this;
+    }
+    
+    /**
+     * Sets the off-heap memory of the scan arena of each spectrum file. When
+     * a spectrum file is connected, its MS2 scans in the retention time window
+     * are decoded once into the arena until it is full, and scans are then
+     * read from it without decoding. Spectrum files stay connected until the
+     * MS1 extraction is done, so an arena is held for every file searched
+     * until then. Zero disables the arena.
+     * 
+     * @param mb Memory of each arena in megabytes
+     * 
+     * @return this
+     */
+    public IdentificationFactory setScanArenaMemoryMb(Integer mb) {
+        this.scanArenaMemoryMb=mb;
+        return this;
+    }
+    
+    public IdentificationFactory setSearchEngine(String s) {
+        this.searchEngine=s;
+        return this;
+    }
+    
+    /**
+     * Sets the number of noise-filtered scans to keep in memory, so that a
+     * scan matched by several species is only filtered once.
+     * 
+     * @param n Maximum number of scans to cache
+     * 
+     * @return this
+     */
+    public IdentificationFactory setPeakCacheSize(Integer n) {
+        this.peakCacheSize=n;
+        this.peakFilterChain = new CachingPeakFilterChain(n);
+        return this;
+    }
+    
+    /**
+     * Sets the minimum number of theoretical ions of a species that must fall
+     * within the MS2 error of a scan peak for the scan to be aligned to and
+     * scored against the species. Pairs sharing fewer peaks are rejected
+     * early. Zero disables the check.
+     * 
+     * @param n Minimum number of shared peaks
+     * 
+     * @return this
+     */
+    public IdentificationFactory setMinSharedPeaks(Integer n) {
+        this.minSharedPeaks=n;
+        return this;
+    }
+    
+    /**
+     * Sets whether to resume from the journal left in the output directory by
+     * an earlier, interrupted run of the same search. Proteins the journal
+     * records as searched against a spectrum file are not searched again.
+     * 
+     * @param b True to resume from the journal
+     * 
+     * @return this
+     */
+    public IdentificationFactory setResume(Boolean b) {
+        this.resume=b;
+        return this;
+    }
+    
+    /**
+     * Sets a file to write the metrics of the job to in the Prometheus text
+     * format, such as a file in the directory of a node exporter textfile
+     * collector. A JSON summary of the metrics is always written to the
+     * output directory.
+     * 
+     * @param file Prometheus metrics file, or null for none
+     * 
+     * @return this
+     */
+    public IdentificationFactory setPrometheusFile(String file) {
+        this.prometheusFile=file;
+        return this;
+    }
+    
+    /**
+     * Sets a directory of theoretical spectrum libraries. The ions of every
+     * species and charge are written to a library keyed by the contents of
+     * the species table on the first search, and memory mapped from it by
+     * later searches of the same proteins, modifications and protease.
+     * 
+     * @param dir Library directory, or null to generate ions on the fly
+     * 
+     * @return this
+     */
+    public IdentificationFactory setSpectrumLibrary(String dir) {
+        this.spectrumLibraryDir=dir;
+        return this;
+    }
+    
+    /**
+     * Sets whether the MS1 and MS2 errors are learned from the spectrum files
+     * before the search. A sample of the species is searched with the
+     * configured errors, and the full search then uses the errors of its
+     * best identifications, which are never wider than the configured ones.
+     * 
+     * @param b true to learn the errors
+     * 
+     * @return this
+     */
+    public IdentificationFactory setLearnTolerances(Boolean b) {
+        this.learnTolerances=b;
+        return this;
+    }
+    
+    /**
+     * Sets a consensus spectral library of confirmed species. The scans of a
+     * species in the library are checked against its consensus spectrum
+     * before the full search, and the identifications made by the full
+     * search are added to the library once the job is done.
+     * 
+     * @param file Library file, created if it does not exist, or null for
+     *        none
+     * 
+     * @return this
+     */
+    public IdentificationFactory setConsensusLibrary(String file) {
+        this.consensusLibraryFile=file;
+        return this;
+    }
+    
+    /**
+     * Sets whether scans are confirmed by the consensus library. When false,
+     * every scan is searched in full, and the library is only updated.
+     * 
+     * @param b false to search every scan in full
+     * 
+     * @return this
+     */
+    public IdentificationFactory setLibrarySearch(Boolean b) {
+        this.librarySearch=b;
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that read and noise-filter scans for the
+     * search of each spectrum file. Reading is mostly I/O, so more fetch
+     * threads than score threads can help on slow storage.
+     * 
+     * @param n Number of fetch threads per spectrum file
+     * 
+     * @return this
+     */
+    public IdentificationFactory setScanFetchThreads(Integer n) {
+        this.scanFetchThreads=n;
+        return this;
+    }
+    
+    /**
+     * Sets the number of threads that score scans against species for the
+     * search of each spectrum file.
+     * 
+     * @param n Number of score threads per spectrum file
+     * 
+     * @return this
+     */
+    public IdentificationFactory setScoreThreads(Integer n) {
+        this.scoreThreads=n;
+        return this;
+    }
+    
+    /**
+     * Makes this search one of several shards of a larger search, each run
+     * by its own process with the same options. The shard only searches its
+     * share of the units (one protein against one spectrum file), records
+     * them in its journal and stops before retention time alignment and MS1
+     * extraction. The shard journals are combined by a search given every
+     * shard output directory with addMergeShard().
+     * 
+     * @param index Index of this shard, from 0 to count-1
+     * @param count Number of shards
+     * @param by How units are dealt out to shards: proteins, spectra or both
+     * 
+     * @return this
+     */
+    public IdentificationFactory setShard(Integer index, Integer count, String by) {
+        this.shardIndex=index;
+        this.shardCount=count;
+        this.shardBy=by;
+        return this;
+    }
+    
+    /**
+     * Adds the output directory of a shard to merge. A search with shards to
+     * merge reads the identifications of every unit from the shard journals
+     * instead of searching, then aligns retention times and extracts MS1
+     * data once over all of them. Every unit must be covered by a shard.
+     * 
+     * @param dir Output directory of a shard
+     * 
+     * @return this
+     */
+    public IdentificationFactory addMergeShard(String dir) {
+        this.mergeShards.add(dir);
+        return this;
+    }
+    
+    /**
+     * Sets whether to move the observed and theoretical ions of
+     * identifications out of the heap, into a file in the output directory
+     * that is read back when the results are written. This bounds the heap
+     * used by searches that make many identifications. The file is deleted
+     * once the results are written, so the ions of the identifications
+     * returned by identify() can then no longer be read.
+     * 
+     * @param b True to store the ions on disk
+     * 
+     * @return this
+     */
+    public IdentificationFactory setStoreIons(Boolean b) {
+        this.storeIons=b;
+        return this;
+    }
+    
     
     public void validate() throws Exception {
         if(proteins == null) {
@@ -229,6 +594,55 @@ public class IdentificationFactory {
         if(fromRT == null || toRT == null) {
             throw new Exception("Retention time window is not fully specified. Requires a from and to.");
         }
+        
+        if(threads == null || threads < 1) {
+            throw new Exception("The number of threads must be at least 1");
+        }
+        
+        if(spectrumMemoryMb == null || spectrumMemoryMb < 1) {
+            throw new Exception("The memory budget per spectrum file must be at least 1 MB");
+        }
+        
+        if(!"peptide".equals(searchEngine) && !"spectrum".equals(searchEngine)) {
+            throw new Exception(String.format("Unknown search engine '%s'. Valid values are peptide or spectrum.",searchEngine));
+        }
+        
+        if(scanArenaMemoryMb == null || scanArenaMemoryMb < 0) {
+            throw new Exception("The scan arena memory cannot be negative");
+        }
+        
+        if(peakCacheSize == null || peakCacheSize < 1) {
+            throw new Exception("The peak cache size must be at least 1 scan");
+        }
+        
+        if(minSharedPeaks == null || minSharedPeaks < 0) {
+            throw new Exception("The minimum number of shared peaks cannot be negative");
+        }
+        
+        if(resume == null) {
+            throw new Exception("Whether to resume from the journal has not been specified");
+        }
+        
+        if(scanFetchThreads == null || scanFetchThreads < 1) {
+            throw new Exception("The number of scan fetch threads must be at least 1");
+        }
+        
+        if(scoreThreads == null || scoreThreads < 1) {
+            throw new Exception("The number of score threads must be at least 1");
+        }
+        
+        if(shardIndex == null || shardCount == null) {
+            throw new Exception("The shard of the search is not fully specified. Requires an index and a count.");
+        }
+        new Shard(shardIndex, shardCount, shardBy);
+        
+        if(storeIons == null) {
+            throw new Exception("Whether to store identification ions on disk has not been specified");
+        }
+        
+        if(shardCount > 1 && !mergeShards.isEmpty()) {
+            throw new Exception("A search cannot be both a shard and a merge of shards");
+        }
     }
     
     public void printConfig() {
@@ -242,6 +656,32 @@ public class IdentificationFactory {
         System.out.printf("Max Missed Cleavages: %d\n",maxMissedCleavages);
         System.out.printf("Max Concurrent Modifications: %d\n",maxConcurrentModifications);
         System.out.printf("Min Score Threshold: %.4f\n",minScore);
+        System.out.printf("Concurrent Spectrum Files: %d\n",concurrentSpectrumFiles());
+        System.out.printf("Scan Arena Memory (MB): %d\n",scanArenaMemoryMb);
+        System.out.printf("Search Engine: %s\n",searchEngine);
+        System.out.printf("Peak Cache Size (scans): %d\n",peakCacheSize);
+        System.out.printf("Min Shared Peaks: %d\n",minSharedPeaks);
+        System.out.printf("Resume From Journal: %s\n",resume);
+        System.out.printf("Scan Fetch Threads: %d\n",scanFetchThreads);
+        System.out.printf("Score Threads: %d\n",scoreThreads);
+        if(shardCount != null && shardCount > 1) {
+            System.out.printf("Shard: %d/%d by %s\n",shardIndex,shardCount,shardBy);
+        }
+        for(String dir : mergeShards) {
+            System.out.printf("Merge Shard: %s\n",dir);
+        }
+        System.out.printf("Store Ions On Disk: %s\n",storeIons);
+        if(prometheusFile != null) {
+            System.out.printf("Prometheus Metrics File: %s\n",prometheusFile);
+        }
+        if(spectrumLibraryDir != null) {
+            System.out.printf("Spectrum Library: %s\n",spectrumLibraryDir);
+        }
+        System.out.printf("Learn Tolerances: %s\n",learnTolerances);
+        if(consensusLibraryFile != null) {
+            System.out.printf("Consensus Library: %s\n",consensusLibraryFile);
+            System.out.printf("Library Search: %s\n",librarySearch);
+        }
     }
      
     public Map<String,String> getSpectrumFileMap() {
@@ -252,186 +692,1087 @@ public class IdentificationFactory {
         return r;
     }
     
-    private Identification confirmIdentification(Peptide peptide, double[] precursors, SpectrumFile sf, int scan, double[] theoreticalIons) throws Exception {
-        /* Load the scan data and meta data into memory */
-        Peaks peaks = sf.getScanPeaks(scan);
-        Scan scanMeta = sf.getScanProperties(scan);
-        
-        /* Strange edge case where MS2 scan has a precursor ion, but no 
-         * m/z intensity data */
-        if(peaks.MZ.length == 0) {
+    private Identification confirmIdentification(SpeciesTable species, int s, int Z, double[] precursors, Peaks peaks, SpectrumFile sf, int scan, double[] theoreticalIons) throws Exception {
+        /* The scan peaks were loaded and noise-filtered by the fetch stage.
+         * Scans with no m/z intensity data (a strange edge case where an MS2
+         * scan has a precursor ion) come back as null */
+        if(peaks == null) {
             return null;
         }
         
-        /* Apply configured peak filtering chain. By default, this removes
-         * precursor ions from the scan and applies a noise-modeling filter to
-         * remove scan peaks below a linear interpolated cuttoff between the
-         * medians of 20 partitions of the scan peaks */
-        peaks = peakFilterChain.filter(peaks, precursors, ms2Err);
+        /* Reject the pair cheaply if too few theoretical ions are near any
+         * scan peak for the match to be worth scoring */
+        if(!sharesEnoughPeaks(peaks, theoreticalIons)) {
+            return null;
+        }
+        peaks = peakFilterChain.filterSpecies(peaks, precursors, ms2Err);
         
         /* Align the filtered peaks to the theoretical spectrum */
+        long started = System.nanoTime();
         ArrayAlignment peakAlignment = SortedArraysAligner.alignClosestDependent(peaks.MZ, peaks.Intensity, theoreticalIons, ms2Err);
+        SearchMetrics.ALIGN.recordSince(started);
         LOGGER.trace("{} theoretical peaks aligned to {} of {} observed peaks",theoreticalIons.length,peakAlignment.count,peaks.MZ.length);
         LOGGER.trace(peakAlignment.toString());
         
         /* Compute a Pearson correlation score between the theoretical and
          * observed peak vectors */
-        Score s = scoringFunction.score(peakAlignment.theoreticalIntensities, peakAlignment.observedIntensities);
-        LOGGER.trace("Score for peptide {} in scan {} is {}",peptide.sequence,scan,s.score);
+        started = System.nanoTime();
+        Score score = scoringFunction.score(peakAlignment.theoreticalIntensities, peakAlignment.observedIntensities, peakAlignment.size);
+        SearchMetrics.SCORE.recordSince(started);
+        SearchMetrics.SCORED_PAIRS.increment();
+        LOGGER.trace("Score for peptide {} in scan {} is {}",species.peptide(species.speciesPeptide(s)).sequence,scan,score.score);
+        
+        /* Only build an identification if the match is significant and 
+         * scores high enough to be kept */
+        if(!isAccepted(score)) {
+            return null;
+        }
+        SearchMetrics.SIGNIFICANT_HITS.increment();
+        
+        return toIdentification(score, peakAlignment, species, s, Z, sf.getScanProperties(scan), scan);
+    }
+    
+    private boolean isLibrarySearch() {
+        return consensusLibrary != null && librarySearch;
+    }
+    
+    /* Consensus library entry of a species, or null if there is none or
+     * scans are not confirmed by the library */
+    private ConsensusLibrary.Entry libraryEntry(SpeciesTable species, int s, int Z) {
+        if(!isLibrarySearch()) {
+            return null;
+        }
+        return consensusLibrary.get(ConsensusLibrary.key(species.peptide(species.speciesPeptide(s)).sequence, species.offsets(s), Z));
+    }
+    
+    /* Adds an identification of the full search to the consensus library */
+    private void recordLibrary(SpeciesTable species, int s, int Z, SpectrumFile sf, Identification identification) {
+        if(consensusLibrary != null) {
+            consensusLibrary.record(ConsensusLibrary.key(species.peptide(species.speciesPeptide(s)).sequence, species.offsets(s), Z), sf.file(), identification);
+        }
+    }
+    
+    /**
+     * Confirms a scan against the consensus spectrum of a species. Scans
+     * whose binned dot product with the consensus spectrum reaches
+     * ConsensusLibrary.MIN_DOT are scored over their alignment to the
+     * consensus ions, without generating or aligning theoretical ions. A
+     * scan that is not confirmed this way falls back to the full search.
+     * The theoretical ions of the identification are the consensus ions the
+     * scan matched, which is how they appear in the identification output.
+     * They are never added back to the library.
+     * 
+     * @param entry Library entry of the species
+     * @param precursors Sorted precursor ions of the species
+     * @param peaks Noise-filtered scan peaks
+     * @param scanMeta Properties of the scan
+     * @param scan Scan number
+     * 
+     * @return The identification, or null if the full search must decide
+     */
+    private Identification confirmFromLibrary(ConsensusLibrary.Entry entry, SpeciesTable species, int s, int Z, double[] precursors, Peaks peaks, Scan scanMeta, int scan) throws Exception {
+        peaks = peakFilterChain.filterSpecies(peaks, precursors, ms2Err);
+        if(ConsensusLibrary.dot(entry, peaks) < ConsensusLibrary.MIN_DOT) {
+            SearchMetrics.LIBRARY_FALLBACKS.increment();
+            return null;
+        }
+        ArrayAlignment alignment = ConsensusLibrary.align(entry, peaks, ms2Err);
+        Score score = scoringFunction.score(alignment.theoreticalIntensities, alignment.observedIntensities, alignment.size);
+        if(!isAccepted(score)) {
+            SearchMetrics.LIBRARY_FALLBACKS.increment();
+            return null;
+        }
+        SearchMetrics.LIBRARY_CONFIRMED.increment();
+        SearchMetrics.SIGNIFICANT_HITS.increment();
+        return toIdentification(score, alignment, species, s, Z, scanMeta, scan);
+    }
+    
+    /* Key of the canonical species of a species at a charge state, under
+     * which both search engines share the search of a species that occurs in
+     * several proteins. A long, as the number of species times the number of
+     * charge states can overflow an int */
+    private long sharedKey(SpeciesTable species, int s, int Z) {
+        return (long)species.canonicalSpecies(s)*(maxZ-minZ+1)+(Z-minZ);
+    }
+    
+    private Identification toIdentification(Score score, ArrayAlignment peakAlignment, SpeciesTable species, int s, int Z, Scan scanMeta, int scan) throws Exception {
+        /* The theoretical ions are labeled with the fragment ions of the
+         * species they are closest to */
+        MSMSIons theoretical = new MSMSIons(peakAlignment.theoreticalMzValues, peakAlignment.theoreticalIntensities, peakAlignment.size).
+                labeled(species.peptide(species.speciesPeptide(s)).sequence, Z, species.offsets(s));
         
         /* Return a match, with the significant bit set depending on the 
          * statistical significance of the Pearson correlation */
-        return new Identification(scanMeta.RetentionTime,scan,s.score).
-                setSignificant(s.isSignificant).
+        return new Identification(scanMeta.RetentionTime,scan,score.score).
+                setSignificant(score.isSignificant).
                 setPrecursorIntensity(scanMeta.PrecursorInt).
-                setObservedIons(new MSMSIons(peakAlignment.observedMzValues,peakAlignment.observedIntensities, new ArrayList<>())).
-                setTheoreticalIons(new MSMSIons(peakAlignment.theoreticalMzValues,peakAlignment.theoreticalIntensities, new ArrayList<>()));
+                setObservedIons(new MSMSIons(peakAlignment.observedMzValues, peakAlignment.observedIntensities, peakAlignment.size)).
+                setTheoreticalIons(theoretical);
     }
     
-    private List<Identification> identifySpecies(Peptide peptide, 
-                                List<ModificationSite> modificationSites,
-                                int Z,
+    /**
+     * Finds the MS2 scans whose precursor m/z is within the MS1 error of the
+     * precursor m/z of a species, at every charge state in one lookup of the
+     * precursor index.
+     * 
+     * @return Scan numbers of the candidate scans at each charge state Z, at
+     *         Z-minZ
+     */
+    private int[][] queryScans(SpeciesTable species, int s, SpectrumFile sf) throws Exception {
+        int nCharges = maxZ-minZ+1;
+        double[] min = new double[nCharges];
+        double[] max = new double[nCharges];
+        int[] range = new int[nCharges];
+        int nRanges = 0;
+        int[][] scans = new int[nCharges][];
+        for(int Z=minZ;Z<=maxZ;Z++) {
+            double precursor = species.precursorMz(s, Z);
+            double err_win = precursor*this.searchErrPpm/1000000;
+            
+            /* Most species have no MS2 scan near their precursor, which the
+             * occupancy bitmap of the spectrum file tells without a query */
+            SearchMetrics.PRECURSOR_QUERIES.increment();
+            if(!sf.hasPrecursor(precursor-err_win, precursor+err_win)) {
+                SearchMetrics.PRECURSOR_BITMAP_REJECTED.increment();
+                scans[Z-minZ] = NO_SCANS;
+                continue;
+            }
+            
+            LOGGER.trace("Query for precursor m/z in range [{},{}]",precursor-err_win,precursor+err_win);
+            min[nRanges] = precursor-err_win;
+            max[nRanges] = precursor+err_win;
+            range[nRanges++] = Z-minZ;
+        }
+        if(nRanges == 0) {
+            return scans;
+        }
+        
+        int[][] hits = sf.queryPrecursors(Arrays.copyOf(min, nRanges),
+                                          Arrays.copyOf(max, nRanges),
+                                          this.fromRT,
+                                          this.toRT);
+        for(int k=0;k<nRanges;k++) {
+            scans[range[k]] = hits[k];
+            SearchMetrics.CANDIDATE_SCANS.add(hits[k].length);
+        }
+        return scans;
+    }
+    
+    /**
+     * Confirms a species against its candidate scans by matching the MS/MS
+     * ions of each scan to its theoretical spectrum.
+     * 
+     * @param work Species with its candidate scans and their loaded peaks
+     * 
+     * @return Identifications of the species
+     */
+    private List<Identification> identifySpecies(SpeciesTable species,
+                                SpeciesWork work,
                                 SpectrumFile sf,
                                 Double exposureTime) throws Exception {
         List<Identification> identifications = new ArrayList<>();
+        int s = work.species;
+        int Z = work.Z;
         
-        /* Compute offsets at each residue for this species */
-        double[] offsets = toArray(peptide,modificationSites);
-                
-        /* Compute precursor ions (2 isotopes, each with no loss, water loss os
-         * ammonia loss) */
-        double[] precursors = IonFactory.calculatePrecursorIonMass(peptide.sequence(),Z, offsets);
-        double precursor = precursors[0];
-        double err_win = precursor*this.ms1ErrPpm/1000000;
-        
-        LOGGER.trace("Query for precursor m/z in range [{},{}]",precursor-err_win,precursor+err_win);
-        int[] scans = sf.queryPrecursor(precursor-err_win,
-                                        precursor+err_win,
-                                        this.fromRT,
-                                        this.toRT);
-        
-        /* If any scans were found, generate a theoretical spectrum to perform
-         * MS/MS confirmation */
-        if(scans.length == 0) return identifications;
-        double[] theoretical_ions = IonFactory.getTheoreticalIons(peptide.sequence(),Z,offsets);
-        
-        /* The follwing steps to filter ions and match theoretical ions to
-         * precursor ions require the inputs to be sorted in ascending order. Do
-         * that here to avoid sorting them multiple times */
-        Arrays.sort(theoretical_ions);
-        Arrays.sort(precursors);
+        /* Precursor ions (2 isotopes, each with no loss, water loss os
+         * ammonia loss) and theoretical ions. The follwing steps to filter
+         * ions and match theoretical ions to precursor ions require the inputs
+         * to be sorted in ascending order, and the species table returns both
+         * already sorted. The theoretical ions are only generated once a scan
+         * is not confirmed by the consensus library */
+        double[] precursors = species.precursorIons(s, Z);
+        double[] theoretical_ions = null;
+        ConsensusLibrary.Entry entry = libraryEntry(species, s, Z);
         
         /* Iterate over scans and confirm identifications via MS/MS ion
-         * matching to theoretical spectra */
-        for(int scan : scans) {
+         * matching to the consensus or theoretical spectra */
+        for(int i=0;i<work.scans.length;i++) {
+            int scan = work.scans[i];
             LOGGER.trace("Confirming scan {}",scan);
-            Identification identification = this.confirmIdentification(peptide, precursors, sf, scan, theoretical_ions);
-            if(identification == null) continue;
+            Identification identification = null;
+            if(entry != null && work.peaks[i] != null) {
+                identification = confirmFromLibrary(entry, species, s, Z, precursors, work.peaks[i], sf.getScanProperties(scan), scan);
+            }
+            if(identification == null) {
+                if(theoretical_ions == null) {
+                    theoretical_ions = species.theoreticalIons(s, Z);
+                }
+                identification = this.confirmIdentification(species, s, Z, precursors, work.peaks[i], sf, scan, theoretical_ions);
+                if(identification == null) continue;
+                recordLibrary(species, s, Z, sf, identification);
+            }
             
-            identification.setPrecursorMz(precursor).
+            identification.setPrecursorMz(species.precursorMz(s, Z)).
                 setCharge(Z).
-                setModifications(modificationSites).
+                setModifications(species.modificationSites(s)).
                 setExposureTime(exposureTime);
+            identifications.add(identification);
+        }
+        
+        return identifications;
+    }
+    
+    /**
+     * Counts the theoretical ions that fall within the MS2 error of a scan
+     * peak, and checks the count against the configured minimum. The count is
+     * an upper bound on the ions matched by the full alignment, also after
+     * precursor removal, so the check only removes pairs that would align at
+     * fewer ions than the minimum.
+     * 
+     * @param peaks Noise-filtered scan peaks
+     * @param theoreticalIons Sorted theoretical ions of the species
+     * 
+     * @return true if the pair should be aligned and scored
+     */
+    private boolean sharesEnoughPeaks(Peaks peaks, double[] theoreticalIons) {
+        if(minSharedPeaks == 0) {
+            return true;
+        }
+        if(SortedArraysAligner.countShared(peaks.MZ, theoreticalIons, ms2Err) < minSharedPeaks) {
+            SearchMetrics.PREFILTER_REJECTED.increment();
+            return false;
+        }
+        return true;
+    }
+    
+    private boolean isAccepted(Score s) {
+        return s.isSignificant && Double.compare(s.score, minScore) >= 0;
+    }
             
-            /* If the identification is significant, add it to the result */
-            if(identification.isSignificant() && identification.getScore().compareTo(minScore) >= 0) {
-                identifications.add(identification);
+    /**
+     * Computes how many spectrum files can be processed at the same time. This
+     * is the configured number of threads, limited by the number of spectrum
+     * files and by how many per-file memory budgets fit in the maximum heap.
+     * 
+     * @return Number of spectrum files to process concurrently
+     */
+    private int concurrentSpectrumFiles() {
+        long heapMb = Runtime.getRuntime().maxMemory()/(1024*1024);
+        int byMemory = (int)Math.max(1, heapMb/spectrumMemoryMb);
+        int n = Math.min(threads, Math.min(byMemory, spectrumFiles.size()));
+        return Math.max(1, n);
+    }
+    
+    /**
+     * Returns the connected spectrum file of a spectrum index, connecting it
+     * on first use, and preloading its MS2 scans if a scan arena is
+     * configured. Each spectrum index is only used by one thread at a time.
+     * 
+     * @param spectrumIndex Index of the spectrum file
+     * 
+     * @return The connected spectrum file
+     * 
+     * @throws Exception if the spectrum file cannot be connected
+     */
+    private SpectrumFile session(int spectrumIndex) throws Exception {
+        if(sessions[spectrumIndex] == null) {
+            SpectrumFile sf = new mzXMLInterface();
+            sf.connect(spectrumFiles.get(spectrumIndex));
+            if(scanArenaMemoryMb > 0) {
+                sf.preloadScans(fromRT, toRT, scanArenaMemoryMb*1024L*1024L);
+            }
+            sessions[spectrumIndex] = sf;
+        }
+        return sessions[spectrumIndex];
+    }
+    
+    /* Disconnects every spectrum file connected by session() */
+    private void closeSessions() throws Exception {
+        for(int i=0;i<sessions.length;i++) {
+            if(sessions[i] != null) {
+                sessions[i].disconnect();
+                sessions[i] = null;
+            }
+        }
+    }
+    
+    /**
+     * Searches a sample of the distinct species against the spectrum files
+     * with the configured MS1 and MS2 errors, and replaces the errors of the
+     * search with those learned from the identifications of the sample. The
+     * MS1 extraction keeps the configured MS1 error. The spectrum files are
+     * searched in order until enough identifications are made, and stay
+     * connected for the search. The sample only depends on the species table
+     * and spectrum files, so every run of the same search learns the same
+     * errors.
+     * 
+     * @param species Species to search for
+     * 
+     * @return Number of identifications made by the sample
+     * 
+     * @throws Exception if a spectrum file cannot be searched
+     */
+    private int learnTolerances(SpeciesTable species) throws Exception {
+        long started = System.currentTimeMillis();
+        ToleranceEstimator estimator = new ToleranceEstimator();
+        int stride = Math.max(1, species.uniqueSpeciesCount()/LEARN_SAMPLE_SPECIES);
+        for(int i=0;i<spectrumFiles.size() && estimator.size() < LEARN_IDENTIFICATIONS;i++) {
+            SpectrumFile sf = session(i);
+            int distinct = 0;
+            for(int s=0;s<species.speciesCount();s++) {
+                if(species.canonicalSpecies(s) != s) continue;
+                if(distinct++ % stride != 0) continue;
+                int[][] scansByCharge = queryScans(species, s, sf);
+                for(int Z=minZ;Z<=maxZ;Z++) {
+                    int[] scans = scansByCharge[Z-minZ];
+                    if(scans.length == 0) continue;
+                    double[] precursors = species.precursorIons(s, Z);
+                    double[] theoretical_ions = species.theoreticalIons(s, Z);
+                    for(int scan : scans) {
+                        Identification identification = confirmIdentification(species, s, Z, precursors, peakFilterChain.scanPeaks(sf, scan), sf, scan, theoretical_ions);
+                        if(identification == null) continue;
+                        estimator.add(identification, species.precursorMz(s, Z), sf.getScanProperties(scan).PrecursorMZ, theoretical_ions);
+                    }
+                }
             }
         }
         
+        if(!estimator.isSufficient()) {
+            LOGGER.warn("The tolerance sample made {} identifications, too few to learn from. Searching with the configured tolerances.",estimator.size());
+            return estimator.size();
+        }
+        int learnedPpm = estimator.precursorTolerancePpm(ms1ErrPpm);
+        double learnedErr = estimator.fragmentTolerance(ms2Err);
+        LOGGER.info("Learned tolerances from {} identifications in {} seconds: MS1 {} ppm (was {}), MS2 {} Da (was {})",
+                estimator.size(),(System.currentTimeMillis()-started)/1000.0,learnedPpm,ms1ErrPpm,learnedErr,ms2Err);
+        System.out.printf("Learned MS2 Error (Da): %.4f\n",learnedErr);
+        System.out.printf("Learned MS1 Error (PPM): %d\n",learnedPpm);
+        searchErrPpm = learnedPpm;
+        ms2Err = learnedErr;
+        return estimator.size();
+    }
+    
+    /**
+     * Estimates the cost of searching a spectrum file, as the size of the file
+     * times the share of the estimated protein cost that is left to search in
+     * this shard. Proteins of other shards, and those recorded in the journal
+     * by an earlier run, cost nothing.
+     * 
+     * @return Estimated search cost of the spectrum file
+     */
+    private double searchCost(int spectrumIndex, SpeciesTable species, SearchJournal journal) {
+        double total = 0.0;
+        double left = 0.0;
+        for(int protein=0;protein<species.proteinCount();protein++) {
+            total += species.proteinCost(protein);
+            if(!shard.contains(spectrumIndex, protein, species.proteinCount())) continue;
+            if(journal.isCompleted(spectrumIndex, protein)) continue;
+            left += species.proteinCost(protein);
+        }
+        double bytes = new File(spectrumFiles.get(spectrumIndex)).length();
+        return total == 0.0 ? bytes : bytes*left/total;
+    }
+    
+    /**
+     * Computes a fingerprint of everything that determines the identifications
+     * of a search: the spectrum files, the search parameters and every species
+     * searched for. A journal is only resumed by a search with the same
+     * fingerprint.
+     * 
+     * @param species Species to search for
+     * 
+     * @return SHA-1 digest in hexadecimal
+     */
+    private String fingerprint(SpeciesTable species) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<spectrumFiles.size();i++) {
+            sb.append(spectrumFiles.get(i)).append(';').append(spectrumKeys.get(i)).append('\n');
+        }
+        sb.append(String.format("%s %d %d %d %d %.6f %.6f %.6f %.6f %d %.6f %.6f %d\n",
+                proteaseName,minZ,maxZ,maxMissedCleavages,maxConcurrentModifications,
+                minMass,maxMass,fromRT,toRT,searchErrPpm,ms2Err,minScore,minSharedPeaks));
+        sb.append(scoringFunction.getClass().getName()).append('\n');
+        if(isLibrarySearch()) {
+            sb.append("library ").append(consensusLibrary.digest()).append('\n');
+        }
+        digest.update(sb.toString().getBytes("UTF-8"));
         
-        return identifications;
+        for(int p=0;p<species.peptideCount();p++) {
+            sb.setLength(0);
+            sb.append(species.accession(species.peptideProtein(p))).append(' ').append(species.peptide(p).sequence);
+            for(int s=species.speciesStart(p);s<species.speciesEnd(p);s++) {
+                sb.append(" |");
+                for(ModificationSite site : species.modificationSites(s)) {
+                    sb.append(' ').append(site.position).append('+').append(site.modification.massOffset);
+                    sb.append(site.modification.labeling ? "L" : "");
+                }
+            }
+            sb.append('\n');
+            digest.update(sb.toString().getBytes("UTF-8"));
+        }
+        return Hex.encodeHexString(digest.digest());
     }
-            
-    public FootprintingResult identify() throws Exception {
-        /* Validate all parameters have been configured, and print config for
-         * informational purposes */
-        validate();
-        printConfig();
+    
+    /**
+     * Adds the identifications of a protein recorded in the journal by an
+     * earlier run to a result, along with the empty spectrum results of the
+     * peptides of the protein.
+     * 
+     * @return Number of identifications restored
+     */
+    private int restoreProtein(int spectrumIndex, int protein, SpeciesTable species, SearchJournal journal, ResultAccumulator result) throws Exception {
+        String spectrumKey = spectrumKeys.get(spectrumIndex);
+        String accession = species.accession(protein);
+        for(int p=species.peptideStart(protein);p<species.peptideEnd(protein);p++) {
+            result.addPeptide(accession, species.peptide(p), spectrumKey);
+        }
         
-        /* Instantiate result container to hold results */
-        FootprintingResult result = new FootprintingResult();
+        SearchJournal.Unit unit = journal.restore(spectrumIndex, protein);
+        for(int i=0;i<unit.size();i++) {
+            int s = unit.species(i);
+            Identification identification = unit.identification(i).
+                    setModifications(species.modificationSites(s)).
+                    setExposureTime(exposureTimes.get(spectrumIndex));
+            result.addIdentification(accession, species.peptide(species.speciesPeptide(s)), spectrumKey, identification);
+        }
+        return unit.size();
+    }
+    
+    /**
+     * @return True if every protein of the shard with peptides in the mass
+     *         window was searched against the spectrum file by an earlier run
+     */
+    private boolean isCompleted(int spectrumIndex, SpeciesTable species, SearchJournal journal) {
+        for(int protein=0;protein<species.proteinCount();protein++) {
+            if(species.peptideStart(protein) == species.peptideEnd(protein)) continue;
+            if(!shard.contains(spectrumIndex, protein, species.proteinCount())) continue;
+            if(!journal.isCompleted(spectrumIndex, protein)) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Records the identifications of a protein whose species have all been
+     * scored, and appends the protein to the journal. Species are added in
+     * the order they were queried, so the identifications are in the same
+     * order as in a sequential search.
+     */
+    private void completeProtein(int spectrumIndex, ProteinWork work, SpeciesTable species, SearchJournal journal, ResultAccumulator result) throws Exception {
+        String spectrumKey = spectrumKeys.get(spectrumIndex);
+        /* Journal the protein before its identifications are added to the
+         * result, which may move their ions out to the ion store */
+        SearchJournal.Unit unit = new SearchJournal.Unit();
+        for(SpeciesWork item : work.items) {
+            unit.addAll(item.species, item.identifications);
+        }
+        journal.append(spectrumIndex, work.protein, unit);
         
-        /* Iterate over spectrum files. This is the outer most loop because
-         * connecting to a spectrum is the highest cost operation */
-        for(int spectrumIndex=0;spectrumIndex<spectrumFiles.size();spectrumIndex++) {
-            /* Prepare to process next spectrum file */
-            String file = spectrumFiles.get(spectrumIndex);
-            Double exposureTime = exposureTimes.get(spectrumIndex);
-            String spectrumKey = spectrumKeys.get(spectrumIndex);
-            
-            /* Connect to spectrum (an expensive operation usually) */
-            LOGGER.info("Starting process spectrum {}",file);
-            SpectrumFile sf = new mzXMLInterface();
-            sf.connect(file);
-            
-            /* Iterate over proteins */
-            for(String accession : proteins.getAccessions()) {
-                String sequence = proteins.getSequence(accession);
-                LOGGER.info("Processing protein {}",accession);
+        String accession = species.accession(work.protein);
+        for(int p=species.peptideStart(work.protein);p<species.peptideEnd(work.protein);p++) {
+            result.addPeptide(accession, species.peptide(p), spectrumKey);
+        }
+        for(SpeciesWork item : work.items) {
+            result.addAll(accession, species.peptide(species.speciesPeptide(item.species)), spectrumKey, item.identifications);
+        }
+    }
+    
+    /**
+     * Gives an occurrence of a shared species copies of the identifications
+     * of the occurrence that was scored, with its own modification sites.
+     * The identifications copied may be moving their ions to the ion store,
+     * which Identification.copy() allows for.
+     */
+    private void shareIdentifications(SpeciesTable species, List<Identification> scored, SpeciesWork item) {
+        List<Identification> identifications = new ArrayList<>(scored.size());
+        for(Identification identification : scored) {
+            identifications.add(identification.copy().setModifications(species.modificationSites(item.species)));
+        }
+        item.identifications = identifications;
+    }
+    
+    /**
+     * Counts a species of a protein as scored, and completes the protein if
+     * it was the last.
+     */
+    private void finishSpecies(int spectrumIndex, SpeciesWork item, SpeciesTable species, SearchJournal journal, ResultAccumulator result, AtomicInteger identificationCount) throws Exception {
+        identificationCount.addAndGet(item.identifications.size());
+        if(item.protein.pending.decrementAndGet() == 0) {
+            completeProtein(spectrumIndex, item.protein, species, journal, result);
+        }
+    }
+    
+    /**
+     * Searches all proteins against a single spectrum file. Every call uses
+     * the session of its own spectrum file and builds its own result, so
+     * calls for different spectrum files can safely run concurrently. Each
+     * protein is recorded in the journal once searched, and proteins recorded
+     * by an earlier run are restored from the journal instead of searched.
+     * <br><br>
+     * 
+     * The search runs as a pipeline of three stages. The calling thread
+     * queries the candidate scans of each species, the fetch threads read and
+     * noise-filter the peaks of the candidate scans, and the score threads
+     * match the scans to the theoretical spectrum of the species. The queues
+     * between the stages are bounded, so reading the spectrum file never runs
+     * far ahead of scoring.
+     * 
+     * @param spectrumIndex Index of the spectrum file to search
+     * @param species Species to search for, shared by all spectrum files
+     * @param journal Journal of completed proteins
+     * 
+     * @return Identifications made in the spectrum file
+     * 
+     * @throws Exception if the spectrum file cannot be searched
+     */
+    private FootprintingResult searchSpectrum(int spectrumIndex, SpeciesTable species, SearchJournal journal) throws Exception {
+        final ResultAccumulator result = new ResultAccumulator(ionStore);
+        
+        /* Prepare to process next spectrum file */
+        String file = spectrumFiles.get(spectrumIndex);
+        final Double exposureTime = exposureTimes.get(spectrumIndex);
+        final String spectrumKey = spectrumKeys.get(spectrumIndex);
+        long started = System.currentTimeMillis();
+        final AtomicInteger identificationCount = new AtomicInteger();
 
-                /* Create a peptide factory to cleave the protein sequence to 
-                 * peptides */
-                PeptideFactory pf = new PeptideFactory(false);
-                pf.setProtease(proteaseName);
-                pf.setMissedCleavages(maxMissedCleavages);
-                pf.setSequence(sequence);
-                pf.start();
-                
-                /* Iterate over cleaved peptides */
-                List<Peptide> peptides = pf.getNext();
-                while(peptides != null) {
-                    for(Peptide peptide : peptides) {
-                        LOGGER.info("Processing peptide {}",peptide.sequence());
+        /* Connect to spectrum (an expensive operation usually), unless every
+         * protein can be restored from the journal. The connection is kept
+         * for the MS1 extraction */
+        LOGGER.info("Starting process spectrum {}",file);
+        final SpectrumFile sf = isCompleted(spectrumIndex, species, journal) ? null : session(spectrumIndex);
+        
+        BoundedPipeline<SpeciesWork> pipeline = new BoundedPipeline<SpeciesWork>(spectrumKey, PIPELINE_QUEUE_CAPACITY).
+            addStage("fetch", scanFetchThreads, item -> {
+                item.peaks = new Peaks[item.scans.length];
+                for(int i=0;i<item.scans.length;i++) {
+                    item.peaks[i] = peakFilterChain.scanPeaks(sf, item.scans[i]);
+                }
+            }).
+            addStage("score", scoreThreads, item -> {
+                List<Identification> identifications = identifySpecies(species, item, sf, exposureTime);
+                item.peaks = null;
+                item.identifications = identifications;
+                SharedSearch shared = item.shared;
+                item.shared = null;
+                if(shared != null) {
+                    List<SpeciesWork> dependents;
+                    synchronized(shared) {
+                        shared.identifications = identifications;
+                        dependents = shared.dependents;
+                        shared.dependents = null;
+                    }
+                    for(SpeciesWork dependent : dependents) {
+                        shareIdentifications(species, identifications, dependent);
+                        finishSpecies(spectrumIndex, dependent, species, journal, result, identificationCount);
+                    }
+                }
+                finishSpecies(spectrumIndex, item, species, journal, result, identificationCount);
+            });
 
-                        /* Map modifications to peptide residues */
-                        ModificationSiteEnumerator mse = new ModificationSiteEnumerator(peptide,modifications,maxConcurrentModifications);
+        /* Search of each shared (species, charge), keyed by canonical
+         * species and charge */
+        final Map<Long,SharedSearch> searched = new HashMap<>();
+        
+        /* Iterate over proteins longest first, so that the search of a file
+         * ends with short proteins that keep every score thread busy, and over
+         * the peptides of each protein in the species table */
+        pipeline.run(emitter -> {
+            int[] order = species.proteinsByCost();
+            for(int i=0;i<order.length;i++) {
+                int protein = order[i];
+                if(species.peptideStart(protein) == species.peptideEnd(protein)) continue;
+                if(!shard.contains(spectrumIndex, protein, species.proteinCount())) continue;
+                String accession = species.accession(protein);
 
-                        /* Compute the mass of this peptide for filtering by mass 
-                         * constraints as the mass of the amino acids plus the mass
-                         * of all fixed modifications that should be present on the
-                         * peptide sequence */
-                        double miMass = IonFactory.calculateIonMass(peptide.sequence)+mse.getTotalFixedOffset();
-                        if(miMass < minMass || miMass > maxMass) {
-                            LOGGER.trace("Skipping peptide {} with mass {} outside configures window [{},{}]",peptide.sequence,miMass,minMass,maxMass);
-                            continue;
-                        }
-                        LOGGER.trace("Peptide is within mass window at {}",miMass);
-                        
+                if(journal.isCompleted(spectrumIndex, protein)) {
+                    LOGGER.info("[{}] Restoring protein {} ({} of {}) from journal",spectrumKey,accession,i+1,order.length);
+                    identificationCount.addAndGet(restoreProtein(spectrumIndex, protein, species, journal, result));
+                    continue;
+                }
+                LOGGER.info("[{}] Processing protein {} ({} of {})",spectrumKey,accession,i+1,order.length);
+                
+                /* The protein is completed by whichever thread scores its
+                 * last species, or here if that already happened */
+                ProteinWork work = new ProteinWork(protein);
+                for(int p=species.peptideStart(protein);p<species.peptideEnd(protein);p++) {
+                    LOGGER.info("Processing peptide {}",species.peptide(p).sequence());
+                    
+                    /* Candidate scans of each species searched, at every
+                     * charge state, found on the first charge state */
+                    int[][][] scansByCharge = new int[species.speciesEnd(p)-species.speciesStart(p)][][];
+                    for(int Z=minZ;Z<=maxZ;Z++) {
+                        LOGGER.trace("Processing charge state {}",Z);
 
-                        for(int Z=minZ;Z<=maxZ;Z++) {
-                            LOGGER.trace("Processing charge state {}",Z);
-                            SpectrumResult spectrumResult = result.
-                                    getProteinResult(accession).
-                                    getPeptideResult(peptide).
-                                    getSpectrumResult(spectrumKey);
+                        /* The species with no variable modifications (only
+                         * fixed if any are present) comes first, followed by
+                         * the species containing variable modifications */
+                        for(int s=species.speciesStart(p);s<species.speciesEnd(p);s++) {
+                            LOGGER.trace("Processing species {}:{}",species.peptide(p).sequence(),species.modificationSites(s).toString());
                             
-                            /* Search the species with no variable modifications 
-                             * first (only fixed if any are present) */
-                            spectrumResult.addAll(identifySpecies(peptide,mse.getFixed(),Z,sf,exposureTime));
+                            /* An occurrence of a species already searched
+                             * takes its identifications once scored */
+                            Long key = species.isShared(s) ? sharedKey(species, s, Z) : null;
+                            SharedSearch first = key != null ? searched.get(key) : null;
+                            if(first != null) {
+                                if(first == NO_CANDIDATES) continue;
+                                SpeciesWork item = new SpeciesWork(work, s, Z, NO_SCANS);
+                                work.items.add(item);
+                                work.pending.incrementAndGet();
+                                SearchMetrics.SHARED_SEARCHES.increment();
+                                List<Identification> scored;
+                                synchronized(first) {
+                                    scored = first.identifications;
+                                    if(scored == null) first.dependents.add(item);
+                                }
+                                if(scored != null) {
+                                    shareIdentifications(species, scored, item);
+                                    finishSpecies(spectrumIndex, item, species, journal, result, identificationCount);
+                                }
+                                continue;
+                            }
                             
+                            int k = s-species.speciesStart(p);
+                            if(scansByCharge[k] == null) {
+                                scansByCharge[k] = queryScans(species, s, sf);
+                            }
+                            int[] scans = scansByCharge[k][Z-minZ];
+                            if(scans.length == 0) {
+                                if(key != null) searched.put(key, NO_CANDIDATES);
+                                continue;
+                            }
+                            SpeciesWork item = new SpeciesWork(work, s, Z, scans);
+                            if(key != null) {
+                                item.shared = new SharedSearch();
+                                searched.put(key, item.shared);
+                            }
                             
-                            /* Iterate over species containing variable 
-                             * modifications */
-                            List<ModificationSite> modificationSites = mse.getNext();
-                            while(modificationSites != null) {
-                                LOGGER.trace("Processing species {}:{}",peptide.sequence(),modificationSites.toString());
-                                spectrumResult.addAll(identifySpecies(peptide,modificationSites,Z,sf,exposureTime));
+                            work.items.add(item);
+                            work.pending.incrementAndGet();
+                            emitter.emit(item);
+                        }
+                    }
+                }
+                if(work.pending.decrementAndGet() == 0) {
+                    completeProtein(spectrumIndex, work, species, journal, result);
+                }
+            }
+        });
+        
+        LOGGER.info("[{}] Finished spectrum {} with {} identifications in {} seconds",spectrumKey,file,identificationCount.get(),(System.currentTimeMillis()-started)/1000.0);
+        
+        return result.toResult();
+    }
+    
+    /**
+     * Searches a single spectrum file by iterating over its MS2 scans and
+     * scoring each scan against the species whose precursor m/z falls within
+     * the MS1 error of the scan precursor. Each scan is read, decoded and
+     * noise-filtered only once, and all species matching it are aligned and
+     * scored in a single batch. The identifications are the same as those
+     * made by searchSpectrum().<br><br>
+     * 
+     * Like searchSpectrum(), the search runs as a pipeline: the calling
+     * thread finds the candidate species of each scan, the fetch threads read
+     * and noise-filter the scans, and the score threads score them.<br><br>
+     * 
+     * Proteins recorded in the journal by an earlier run are restored from it,
+     * and their species are left out of the search. As every scan is needed
+     * to complete any protein, the remaining proteins are only recorded once
+     * the whole file has been searched.
+     * 
+     * @param spectrumIndex Index of the spectrum file to search
+     * @param species Species to search for, shared by all spectrum files
+     * @param journal Journal of completed proteins
+     * 
+     * @return Identifications made in the spectrum file
+     * 
+     * @throws Exception if the spectrum file cannot be searched
+     */
+    private FootprintingResult searchSpectrumCentric(int spectrumIndex, SpeciesTable species, SearchJournal journal) throws Exception {
+        ResultAccumulator result = new ResultAccumulator(ionStore);
+        
+        String file = spectrumFiles.get(spectrumIndex);
+        final Double exposureTime = exposureTimes.get(spectrumIndex);
+        final String spectrumKey = spectrumKeys.get(spectrumIndex);
+        long started = System.currentTimeMillis();
+        int identificationCount = 0;
+        
+        /* Downstream steps expect a spectrum result for every peptide in the
+         * mass window, whether or not it was identified. Proteins of other
+         * shards are left out of the search */
+        final boolean[] skipped = new boolean[species.proteinCount()];
+        for(int protein=0;protein<species.proteinCount();protein++) {
+            if(!shard.contains(spectrumIndex, protein, species.proteinCount())) {
+                skipped[protein] = true;
+                continue;
+            }
+            if(journal.isCompleted(spectrumIndex, protein)) {
+                skipped[protein] = true;
+                identificationCount += restoreProtein(spectrumIndex, protein, species, journal, result);
+                continue;
+            }
+            for(int p=species.peptideStart(protein);p<species.peptideEnd(protein);p++) {
+                result.addPeptide(species.accession(protein), species.peptide(p), spectrumKey);
+            }
+        }
+        
+        LOGGER.info("Starting process spectrum {}",file);
+        if(isCompleted(spectrumIndex, species, journal)) {
+            LOGGER.info("[{}] Restored spectrum {} from journal with {} identifications",spectrumKey,file,identificationCount);
+            return result.toResult();
+        }
+        final SpectrumFile sf = session(spectrumIndex);
+        SearchJournal.Unit[] units = new SearchJournal.Unit[species.proteinCount()];
+        for(int protein=0;protein<units.length;protein++) {
+            units[protein] = new SearchJournal.Unit();
+        }
+        
+        BoundedPipeline<ScanWork> pipeline = new BoundedPipeline<ScanWork>(spectrumKey, PIPELINE_QUEUE_CAPACITY).
+            addStage("fetch", scanFetchThreads, item -> {
+                item.peaks = peakFilterChain.scanPeaks(sf, item.scan);
+            }).
+            addStage("score", scoreThreads, item -> {
+                scoreScan(species, item, sf, exposureTime);
+                item.peaks = null;
+            });
+        
+        /* A species with precursor m matches a scan with precursor P when
+         * |P-m| <= m*ppm/1e6, so candidates lie in [P/(1+e),P/(1-e)]. The
+         * exact test below is the one used by the peptide-centric search */
+        final double e = this.searchErrPpm/1000000.0;
+        final int[] scans = sf.queryRetentionTime(this.fromRT, this.toRT, 2);
+        final int progressStep = Math.max(1, scans.length/10);
+        final List<ScanWork> works = new ArrayList<>();
+        pipeline.run(emitter -> {
+            for(int i=0;i<scans.length;i++) {
+                int scan = scans[i];
+                if(i % progressStep == 0) {
+                    LOGGER.info("[{}] Processing scan {} of {}",spectrumKey,i+1,scans.length);
+                }
 
+                Scan scanMeta = sf.getScanProperties(scan);
+                double P = scanMeta.PrecursorMZ;
 
-                                modificationSites = mse.getNext();
-                            }
+                /* Collect the species that match the scan precursor */
+                List<Integer> candidates = new ArrayList<>();
+                for(int k=species.lowerBound(P/(1+e)-1e-6);k<species.entryCount();k++) {
+                    double mz = species.entryMz(k);
+                    if(mz > P/(1-e)+1e-6) break;
 
-                            /* Rewind the modification site enumerator to enumerate
-                             * modification sites for the next charge state */
-                            mse.startOver();
-                        }
-                    }
+                    double err_win = mz*this.searchErrPpm/1000000;
+                    if(P < mz-err_win || P > mz+err_win) continue;
+                    if(skipped[species.peptideProtein(species.speciesPeptide(species.entrySpecies(k)))]) continue;
+                    candidates.add(k);
+                }
+                SearchMetrics.PRECURSOR_QUERIES.increment();
+                SearchMetrics.CANDIDATE_SCANS.add(candidates.size());
+                if(candidates.isEmpty()) continue;
+                
+                ScanWork item = new ScanWork(scan, scanMeta, candidates);
+                works.add(item);
+                emitter.emit(item);
+            }
+        });
+        
+        /* Scans were scored out of order, so collect the identifications in
+         * scan order. Proteins are journaled before their identifications are
+         * added to the result, which may move their ions out to the ion
+         * store */
+        for(ScanWork item : works) {
+            for(int c=0;c<item.identifications.size();c++) {
+                int s = item.identifiedSpecies.get(c);
+                units[species.peptideProtein(species.speciesPeptide(s))].add(s, item.identifications.get(c));
+            }
+        }
+        for(int protein=0;protein<units.length;protein++) {
+            if(skipped[protein] || species.peptideStart(protein) == species.peptideEnd(protein)) continue;
+            journal.append(spectrumIndex, protein, units[protein]);
+        }
+        
+        for(ScanWork item : works) {
+            for(int c=0;c<item.identifications.size();c++) {
+                int p = species.speciesPeptide(item.identifiedSpecies.get(c));
+                result.addIdentification(species.accession(species.peptideProtein(p)), species.peptide(p), spectrumKey, item.identifications.get(c));
+                identificationCount++;
+            }
+        }
+        LOGGER.info("[{}] Finished spectrum {} with {} identifications in {} seconds",spectrumKey,file,identificationCount,(System.currentTimeMillis()-started)/1000.0);
+        
+        return result.toResult();
+    }
+    
+    /**
+     * Scores a scan against its candidate species in a single batch, after
+     * marking the precursor ions of each candidate to leave out of its
+     * alignment. Candidates that are occurrences of the same species in
+     * different proteins are scored once, and each is given its own copy of
+     * the identification.
+     * 
+     * @param work Scan with its candidate species and noise-filtered peaks
+     */
+    private void scoreScan(SpeciesTable species, ScanWork work, SpectrumFile sf, Double exposureTime) throws Exception {
+        Peaks peaks = work.peaks;
+        if(peaks == null) return;
+        
+        /* Position of each candidate in the batch, or -1 if not scored */
+        int[] batchIndex = new int[work.candidates.size()];
+        Map<Long,Integer> sharedIndex = new HashMap<>();
+        List<Integer> scored = new ArrayList<>();
+        List<double[]> theoreticalIonList = new ArrayList<>();
+        List<boolean[]> excludedList = new ArrayList<>();
+        for(int c=0;c<batchIndex.length;c++) {
+            int k = work.candidates.get(c);
+            int s = species.entrySpecies(k);
+            int Z = species.entryCharge(k);
+            batchIndex[c] = -1;
+            
+            /* Species confirmed by the consensus library are not scored */
+            ConsensusLibrary.Entry entry = libraryEntry(species, s, Z);
+            if(entry != null) {
+                Identification identification = confirmFromLibrary(entry, species, s, Z, species.precursorIons(s, Z), peaks, work.meta, work.scan);
+                if(identification != null) {
+                    identification.setPrecursorMz(species.entryMz(k)).
+                        setCharge(Z).
+                        setModifications(species.modificationSites(s)).
+                        setExposureTime(exposureTime);
+                    work.identifiedSpecies.add(s);
+                    work.identifications.add(identification);
+                    continue;
+                }
+            }
+            
+            /* Occurrences of a shared species take the score of the first
+             * one among the candidates */
+            Long key = null;
+            if(species.isShared(s)) {
+                key = sharedKey(species, s, Z);
+                Integer b = sharedIndex.get(key);
+                if(b != null) {
+                    batchIndex[c] = b;
+                    SearchMetrics.SHARED_SEARCHES.increment();
+                    continue;
+                }
+            }
+            
+            double[] theoretical_ions = species.theoreticalIons(s, Z);
+            if(!sharesEnoughPeaks(peaks, theoretical_ions)) {
+                if(key != null) sharedIndex.put(key, -1);
+                continue;
+            }
+
+            double[] precursors = species.precursorIons(s, Z);
+            batchIndex[c] = scored.size();
+            if(key != null) sharedIndex.put(key, scored.size());
+            scored.add(k);
+            theoreticalIonList.add(theoretical_ions);
+            excludedList.add(peakFilterChain.exclude(peaks, precursors, ms2Err));
+        }
+        if(scored.isEmpty()) return;
+        double[][] theoreticalIons = theoreticalIonList.toArray(new double[0][]);
+        boolean[][] excluded = excludedList.toArray(new boolean[0][]);
+
+        /* Score all remaining candidates against the scan in one batch */
+        Score[] scores = scoringFunction.score(peaks, theoreticalIons, excluded, ms2Err);
+        SearchMetrics.SCORED_PAIRS.add(scores.length);
+        Identification[] made = new Identification[scores.length];
+        for(int c=0;c<batchIndex.length;c++) {
+            int b = batchIndex[c];
+            if(b < 0) continue;
+            int k = work.candidates.get(c);
+            int s = species.entrySpecies(k);
+            Peptide peptide = species.peptide(species.speciesPeptide(s));
+            LOGGER.trace("Score for peptide {} in scan {} is {}",peptide.sequence,work.scan,scores[b].score);
+            if(!isAccepted(scores[b])) continue;
+            SearchMetrics.SIGNIFICANT_HITS.increment();
 
-                    peptides = pf.getNext();
-                }      
+            Identification identification;
+            if(made[b] == null) {
+                identification = toIdentification(scores[b], scores[b].alignment, species, s, species.entryCharge(k), work.meta, work.scan).
+                    setPrecursorMz(species.entryMz(k)).
+                    setCharge(species.entryCharge(k)).
+                    setExposureTime(exposureTime);
+                made[b] = identification;
+                recordLibrary(species, s, species.entryCharge(k), sf, identification);
+            }
+            else {
+                identification = made[b].copy();
+            }
+            identification.setModifications(species.modificationSites(s));
+            work.identifiedSpecies.add(s);
+            work.identifications.add(identification);
+        }
+    }
+    
+    /**
+     * Copies the units recorded by the shards of a search into the journal of
+     * the merged search, so that the search restores every unit instead of
+     * searching it. Shards are copied in the order they were given, and a
+     * unit recorded by more than one shard is taken from the first.
+     * 
+     * @throws Exception if a unit is not recorded by any shard
+     */
+    private void mergeShardJournals(SpeciesTable species, List<SearchJournal> shardJournals, SearchJournal journal) throws Exception {
+        for(int i=0;i<shardJournals.size();i++) {
+            int copied = journal.importUnits(shardJournals.get(i));
+            LOGGER.info("Merged {} units from shard {}",copied,mergeShards.get(i));
+        }
+        
+        int missing = 0;
+        for(int spectrumIndex=0;spectrumIndex<spectrumFiles.size();spectrumIndex++) {
+            for(int protein=0;protein<species.proteinCount();protein++) {
+                if(species.peptideStart(protein) == species.peptideEnd(protein)) continue;
+                if(!journal.isCompleted(spectrumIndex, protein)) {
+                    LOGGER.error("No shard searched protein {} against spectrum file {}",species.accession(protein),spectrumFiles.get(spectrumIndex));
+                    missing++;
+                }
+            }
+        }
+        if(missing > 0) {
+            throw new Exception(String.format("The shards do not cover %d units of the search. Check that every shard finished, and that the shards were run with the same options.",missing));
+        }
+    }
+    
+    public FootprintingResult identify() throws Exception {
+        /* Validate all parameters have been configured, and print config for
+         * informational purposes */
+        validate();
+        printConfig();
+        shard = new Shard(shardIndex, shardCount, shardBy);
+        
+        /* Metrics are recorded from the start of the job */
+        MetricsRegistry.getDefault().reset();
+        
+        /* Spectrum files are connected on first use and disconnected once
+         * the job is done, whether or not it succeeds */
+        sessions = new SpectrumFile[spectrumFiles.size()];
+        try {
+            return search();
+        }
+        finally {
+            closeSessions();
+            closeIonStore();
+        }
+    }
+    
+    /* Closes the ion store of the job, deleting its file */
+    private void closeIonStore() throws Exception {
+        if(ionStore != null) {
+            ionStore.close();
+            ionStore = null;
+        }
+    }
+    
+    /**
+     * Runs the job configured by identify() with the spectrum files connected
+     * through session().
+     * 
+     * @return Identifications of the job
+     * 
+     * @throws Exception if the job fails
+     */
+    private FootprintingResult search() throws Exception {
+        /* Instantiate result container to hold results. The ions of the
+         * identifications are kept in a file in the output directory until
+         * the results are written, unless configured otherwise */
+        ionStore = storeIons && shard.isWhole() ? new IonStore(outDir+"/"+IonStore.FILE_NAME) : null;
+        FootprintingResult result = new FootprintingResult(ionStore);
+        
+        /* Enumerate the species to search for once, as they do not depend on
+         * the spectrum files. Then search the spectrum files concurrently,
+         * either peptide-centric (default) or spectrum-centric. Each file is
+         * searched into a result of its own, and the results are merged in
+         * the order the files were specified so the combined result does not
+         * depend on which search finishes first */
+        final SpeciesTable species = new SpeciesTable(proteins,
+                                                      proteaseName,
+                                                      maxMissedCleavages,
+                                                      modifications,
+                                                      maxConcurrentModifications,
+                                                      minMass,
+                                                      maxMass,
+                                                      minZ,
+                                                      maxZ);
+        LOGGER.info("Species table holds {} peptides ({} distinct sequences) and {} species ({} distinct)",
+                species.peptideCount(),species.uniquePeptideCount(),species.speciesCount(),species.uniqueSpeciesCount());
+        if(spectrumLibraryDir != null) {
+            species.setLibrary(SpectrumLibrary.open(spectrumLibraryDir, species));
+        }
+        
+        /* The consensus library a search runs with is part of the
+         * fingerprint, so a journal is only resumed with the same library */
+        consensusLibrary = consensusLibraryFile != null ? ConsensusLibrary.read(consensusLibraryFile) : null;
+        
+        /* Learned tolerances are part of the fingerprint, and the sample
+         * is the same on every run, so shards and resumed runs agree. The
+         * metrics of the sample are dropped, so that the job metrics only
+         * count the search */
+        searchErrPpm = ms1ErrPpm;
+        if(learnTolerances) {
+            int sampled = learnTolerances(species);
+            MetricsRegistry.getDefault().reset();
+            SearchMetrics.TOLERANCE_SAMPLE.add(sampled);
+        }
+        SearchMetrics.PEPTIDES.add(species.peptideCount());
+        SearchMetrics.SPECIES.add(species.speciesCount());
+        SearchMetrics.UNIQUE_SPECIES.add(species.uniqueSpeciesCount());
+        
+        /* Each protein searched against a spectrum file is recorded in a
+         * journal in the output directory, so an interrupted search can be
+         * resumed from it. When merging shards, the shard journals are read
+         * before the journal is opened, in case it is one of them */
+        String fingerprint = fingerprint(species);
+        List<SearchJournal> shardJournals = new ArrayList<>();
+        for(String dir : mergeShards) {
+            shardJournals.add(SearchJournal.read(dir+"/"+SearchJournal.FILE_NAME, fingerprint));
+        }
+        final SearchJournal journal = new SearchJournal(outDir+"/"+SearchJournal.FILE_NAME, fingerprint, resume);
+        if(!mergeShards.isEmpty()) {
+            try {
+                mergeShardJournals(species, shardJournals, journal);
+            }
+            catch(Exception e) {
+                journal.close();
+                throw e;
+            }
+        }
+        /* Spectrum files are searched longest first, each thread taking the
+         * next file as soon as it is free */
+        final FootprintingResult[] searched = new FootprintingResult[spectrumFiles.size()];
+        LongestFirstScheduler<Integer> scheduler = new LongestFirstScheduler<>("search", concurrentSpectrumFiles());
+        for(int spectrumIndex=0;spectrumIndex<spectrumFiles.size();spectrumIndex++) {
+            scheduler.add(spectrumIndex, searchCost(spectrumIndex, species, journal));
+        }
+        try {
+            scheduler.run(index -> {
+                if("spectrum".equals(searchEngine)) {
+                    searched[index] = searchSpectrumCentric(index, species, journal);
+                }
+                else {
+                    searched[index] = searchSpectrum(index, species, journal);
+                }
+            });
+            
+            for(FootprintingResult search : searched) {
+                result.merge(search);
             }
         }
+        catch(Exception e) {
+            throw new Exception("Search of a spectrum file failed", e);
+        }
+        finally {
+            journal.close();
+        }
+        
+        /* A shard stops once its units are recorded in its journal. Retention
+         * times and MS1 data are only worth processing over the identifications
+         * of all shards, which is done by the merge */
+        if(!shard.isWhole()) {
+            LOGGER.info("Shard {} is complete. Merge the shard output directories with --merge-shard to finish the search.",shard);
+            MetricsRegistry.getDefault().logSummary();
+            MetricsRegistry.getDefault().writeJSON(outDir+"/metrics.json");
+            if(prometheusFile != null) {
+                MetricsRegistry.getDefault().writePrometheus(prometheusFile);
+            }
+            return result;
+        }
+        
+        peakFilterChain.logStatistics();
+        long pairs = SearchMetrics.CANDIDATE_SCANS.get();
+        long rejected = SearchMetrics.PREFILTER_REJECTED.get();
+        LOGGER.info("Shared peak prefilter rejected {} of {} candidate scan/species pairs ({}%)",
+                rejected,
+                pairs,
+                String.format("%.1f", pairs == 0 ? 0.0 : 100.0*rejected/pairs));
         
         /* Try to find an unlabeled form of a peptide that was identified in the
          * most spectrum files. Ideally, it will have been detected in all of 
@@ -463,8 +1804,11 @@ public class IdentificationFactory {
                 toRT,
                 spectrumFiles,
                 spectrumKeys,
-                new mzXMLInterface());
+                mzXMLInterface::new);
+        ms1e.setThreads(concurrentSpectrumFiles());
+        ms1e.setSessions(sessions);
         ms1e.extract(false);
+        closeSessions();
                
         /* Output result tables */
         ResultWriter.writeIdentificationReport(outDir,result);
@@ -475,6 +1819,28 @@ public class IdentificationFactory {
         ResultWriter.writeChromatogramsJSON(outDir, ms1e);
         ResultWriter.writeIdentificationsJSON(outDir,result);
         
+        /* The stored ions are not read after the identifications are
+         * written */
+        closeIonStore();
+        
+        /* Add the identifications of the full search to the consensus
+         * library. Shards leave it alone, so they all search with the same
+         * library */
+        if(consensusLibrary != null) {
+            int added = consensusLibrary.update(ms2Err);
+            if(added > 0) {
+                consensusLibrary.write();
+            }
+            LOGGER.info("Added {} identifications to consensus library {}, which holds {} spectra",added,consensusLibraryFile,consensusLibrary.size());
+        }
+        
+        /* Output the metrics recorded by the job */
+        MetricsRegistry.getDefault().logSummary();
+        MetricsRegistry.getDefault().writeJSON(outDir+"/metrics.json");
+        if(prometheusFile != null) {
+            MetricsRegistry.getDefault().writePrometheus(prometheusFile);
+        }
+        
         return result;
     }
     
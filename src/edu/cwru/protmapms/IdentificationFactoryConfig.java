@@ -50,11 +50,46 @@ public class IdentificationFactoryConfig {
     private Integer ms1ErrPpm;
     private Double ms2Err;
     private String outDir;
+    private Integer threads;
+    private Integer spectrumMemoryMb;
+    private Integer scanArenaMemoryMb;
+    private String searchEngine;
+    private Integer peakCacheSize;
+    private Integer minSharedPeaks;
+    private Boolean resume;
+    private String prometheusFile;
+    private String spectrumLibrary;
+    private Boolean learnTolerances;
+    private String consensusLibrary;
+    private Boolean librarySearch;
+    private Integer scanFetchThreads;
+    private Integer scoreThreads;
+    private Integer shardIndex;
+    private Integer shardCount;
+    private String shardBy;
+    private final List<String> mergeShards;
+    private Boolean storeIons;
     
     public IdentificationFactoryConfig() {
         spectrumFiles = new ArrayList<>();
         exposureTimes = new ArrayList<>();
         outDir = String.format("results/%d",System.currentTimeMillis());
+        threads = 1;
+        spectrumMemoryMb = 1024;
+        scanArenaMemoryMb = 0;
+        searchEngine = "peptide";
+        peakCacheSize = 4096;
+        minSharedPeaks = 0;
+        resume = false;
+        scanFetchThreads = 1;
+        scoreThreads = 1;
+        shardIndex = 0;
+        shardCount = 1;
+        shardBy = Shard.BY_PROTEINS;
+        mergeShards = new ArrayList<>();
+        storeIons = false;
+        learnTolerances = false;
+        librarySearch = true;
     }
     
     public IdentificationFactoryConfig setFasta(Fasta fasta) {
@@ -151,6 +186,97 @@ public class IdentificationFactoryConfig {
         return this;
     }
     
+    public IdentificationFactoryConfig setThreads(Integer n) {
+        threads=n;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setSpectrumMemoryMb(Integer mb) {
+        spectrumMemoryMb=mb;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setScanArenaMemoryMb(Integer mb) {
+        scanArenaMemoryMb=mb;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setSearchEngine(String engine) {
+        searchEngine=engine;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setPeakCacheSize(Integer n) {
+        peakCacheSize=n;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setMinSharedPeaks(Integer n) {
+        minSharedPeaks=n;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setResume(Boolean b) {
+        resume=b;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setPrometheusFile(String file) {
+        prometheusFile=file;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setSpectrumLibrary(String dir) {
+        spectrumLibrary=dir;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setLearnTolerances(Boolean b) {
+        learnTolerances=b;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setConsensusLibrary(String file) {
+        consensusLibrary=file;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setLibrarySearch(Boolean b) {
+        librarySearch=b;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setScanFetchThreads(Integer n) {
+        scanFetchThreads=n;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setScoreThreads(Integer n) {
+        scoreThreads=n;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setShard(Integer index, Integer count) {
+        shardIndex=index;
+        shardCount=count;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setShardBy(String by) {
+        shardBy=by;
+        return this;
+    }
+    
+    public IdentificationFactoryConfig addMergeShard(String dir) {
+        mergeShards.add(dir);
+        return this;
+    }
+    
+    public IdentificationFactoryConfig setStoreIons(Boolean b) {
+        storeIons=b;
+        return this;
+    }
+    
     public List<String> getSpectrumFiles() {
         return spectrumFiles;
     }
@@ -227,4 +353,80 @@ public class IdentificationFactoryConfig {
         return outDir;
     }
     
+    public Integer getThreads() {
+        return threads;
+    }
+    
+    public Integer getSpectrumMemoryMb() {
+        return spectrumMemoryMb;
+    }
+    
+    public Integer getScanArenaMemoryMb() {
+        return scanArenaMemoryMb;
+    }
+    
+    public String getSearchEngine() {
+        return searchEngine;
+    }
+    
+    public Integer getPeakCacheSize() {
+        return peakCacheSize;
+    }
+    
+    public Integer getMinSharedPeaks() {
+        return minSharedPeaks;
+    }
+    
+    public Boolean getResume() {
+        return resume;
+    }
+    
+    public String getPrometheusFile() {
+        return prometheusFile;
+    }
+    
+    public String getSpectrumLibrary() {
+        return spectrumLibrary;
+    }
+    
+    public Boolean getLearnTolerances() {
+        return learnTolerances;
+    }
+    
+    public String getConsensusLibrary() {
+        return consensusLibrary;
+    }
+    
+    public Boolean getLibrarySearch() {
+        return librarySearch;
+    }
+    
+    public Integer getScanFetchThreads() {
+        return scanFetchThreads;
+    }
+    
+    public Integer getScoreThreads() {
+        return scoreThreads;
+    }
+    
+    public Integer getShardIndex() {
+        return shardIndex;
+    }
+    
+    public Integer getShardCount() {
+        return shardCount;
+    }
+    
+    public String getShardBy() {
+        return shardBy;
+    }
+    
+    public List<String> getMergeShards() {
+        return mergeShards;
+    }
+    
+    public Boolean getStoreIons() {
+        return storeIons;
+    }
+    
 }
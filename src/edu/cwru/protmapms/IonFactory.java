@@ -113,23 +113,23 @@ public class IonFactory {
         
     }
     
-    private static double removeWater(double m) {
+    static double removeWater(double m) {
         return m-Constants.MASS_WATER;
     }
     
-    private static double addWater(double m) {
+    static double addWater(double m) {
         return m + Constants.MASS_WATER;
     }
     
-    private static double removeAmmonia(double m) {
+    static double removeAmmonia(double m) {
         return m - Constants.MASS_AMMONIA;
     }
     
-    private static double removeCarbonMonoxide(double m) {
+    static double removeCarbonMonoxide(double m) {
         return m - (Constants.MASS_CARBON+Constants.MASS_OXYGEN);
     }
     
-    private static double applyCharge(double m, int z) {
+    static double applyCharge(double m, int z) {
         return (m+(z*Constants.MASS_PROTON))/z;
     }
 
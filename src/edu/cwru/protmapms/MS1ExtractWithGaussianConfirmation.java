@@ -22,12 +22,19 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 
 import edu.cwru.protmapms.math.MathX;
 import edu.cwru.protmapms.math.IntervalTree;
 import edu.cwru.protmapms.math.Polynomial;
+import edu.cwru.protmapms.metrics.SearchMetrics;
 import edu.cwru.protmapms.spectra.SpectrumFile;
 import edu.cwru.protmapms.spectra.Peaks;
 import edu.cwru.protmapms.spectra.Scan;
@@ -85,9 +92,26 @@ public class MS1ExtractWithGaussianConfirmation {
     private final List<String> spectrumKeys;
 
     /**
-     * mzXML interface for opening and reading the spectrum files
+     * Supplies the interfaces for opening and reading the spectrum files
      */
-    private final SpectrumFile spectrumFileInterface;
+    private final Supplier<SpectrumFile> spectrumFileInterfaces;
+    
+    /**
+     * Indicates that every spectrum file is read through one shared interface,
+     * so spectrum files cannot be extracted concurrently
+     */
+    private final boolean sharedInterface;
+    
+    /**
+     * Number of spectrum files to extract concurrently
+     */
+    private int threads;
+    
+    /**
+     * Spectrum interfaces already connected to the spectrum files, by index,
+     * which are read instead of connecting new ones
+     */
+    private SpectrumFile[] sessions;
 
     /**
      * Used to match wider ranges of m/z values so that more data is available
@@ -133,6 +157,46 @@ public class MS1ExtractWithGaussianConfirmation {
                                               List<String> spectrumFiles,  
                                               List<String> spectrumKeys,
                                               SpectrumFile sf) {
+        this(mz,charge,acc,res,from,to,spectrumFiles,spectrumKeys,() -> sf,true);
+    }
+    
+    /**
+     * Constructor for extraction that may process several spectrum files
+     * concurrently, each through its own spectrum interface.
+     *
+     * @param mz The array of mz values for which to extract intensities
+     * @param charge The charge states associated with each m/z value
+     * @param acc The margin within which to m/z value are considered matches
+     * @param res The resolution of the instrument
+     * @param from The start retention time
+     * @param to The end retention time
+     * @param spectrumFiles The array of spectrum files
+     * @param spectrumKeys The array of spectrum keys
+     * @param sfs Supplies a new spectrum interface that is appropriate for 
+     *            accessing the argument spectrum files on each call
+     */
+    public MS1ExtractWithGaussianConfirmation(double[] mz,
+                                              double[] charge,
+                                              double acc, 
+                                              double res, 
+                                              double from,
+                                              double to, 
+                                              List<String> spectrumFiles,  
+                                              List<String> spectrumKeys,
+                                              Supplier<SpectrumFile> sfs) {
+        this(mz,charge,acc,res,from,to,spectrumFiles,spectrumKeys,sfs,false);
+    }
+    
+    private MS1ExtractWithGaussianConfirmation(double[] mz,
+                                               double[] charge,
+                                               double acc, 
+                                               double res, 
+                                               double from,
+                                               double to, 
+                                               List<String> spectrumFiles,  
+                                               List<String> spectrumKeys,
+                                               Supplier<SpectrumFile> sfs,
+                                               boolean shared) {
         mzValues = mz;
         z        = charge;
         accuracy = acc;
@@ -141,11 +205,38 @@ public class MS1ExtractWithGaussianConfirmation {
         rtFrom   = from;
         rtTo     = to;
         resolution = res;
-        spectrumFileInterface = sf;
+        spectrumFileInterfaces = sfs;
+        sharedInterface = shared;
+        threads  = 1;
         roq      = new IntervalTree();
         maxint   = new HashMap<>();
         chromatograms = new HashMap<>();
     }
+    
+    /**
+     * Sets the number of spectrum files to extract concurrently. It has no
+     * effect when the object was constructed with a single shared spectrum
+     * interface.
+     * 
+     * @param n Number of spectrum files to extract concurrently
+     */
+    public void setThreads(int n) {
+        threads = Math.max(1, n);
+    }
+    
+    /**
+     * Sets spectrum interfaces that are already connected to the spectrum
+     * files, such as those used to search the MS2 scans, so the files are
+     * not parsed and indexed again. A spectrum file with no interface is
+     * connected through the supplied interfaces as usual. The interfaces are
+     * left connected.
+     * 
+     * @param sfs Connected spectrum interface of each spectrum file, in the
+     *            order of the spectrum files, or null entries
+     */
+    public void setSessions(SpectrumFile[] sfs) {
+        sessions = sfs;
+    }
 
     /**
      * Populates the artificially wide, and the true ranges of m/z values that
@@ -165,22 +256,19 @@ public class MS1ExtractWithGaussianConfirmation {
     }
 
     /**
-     * Stores intensity values by spectrum and m/z value.
+     * Stores intensity values by m/z value in the chromatograms of a spectrum.
      *
      * @param retentionTime Retention time that the intensity value occurs at
      * @param intensity Intensity
      * @param mzKey Species m/z value
-     * @param spectrumKey Spectrum id
+     * @param spectrumChromatograms Chromatograms of the spectrum, keyed on m/z
      *
      */
-    private void storeIntensity(Double retentionTime, Double intensity, String mzKey, String spectrumKey) {
-        if(!chromatograms.containsKey(spectrumKey))
-            chromatograms.put(spectrumKey,new HashMap<>());
-        
-        if(!chromatograms.get(spectrumKey).containsKey(mzKey))
-            chromatograms.get(spectrumKey).put(mzKey, new MS1Chromatogram(mzKey));
+    private static void storeIntensity(Double retentionTime, Double intensity, String mzKey, HashMap<String,MS1Chromatogram> spectrumChromatograms) {
+        if(!spectrumChromatograms.containsKey(mzKey))
+            spectrumChromatograms.put(mzKey, new MS1Chromatogram(mzKey));
         
-        chromatograms.get(spectrumKey).get(mzKey).add(retentionTime, intensity);
+        spectrumChromatograms.get(mzKey).add(retentionTime, intensity);
     }
     
     /**
@@ -303,22 +391,10 @@ public class MS1ExtractWithGaussianConfirmation {
      * @throws Exception if any errors are encountered
      */
     public boolean extract(boolean verbose) throws Exception {
-        int[] scans;
-        int[] ids;
-        Peaks peaks;
-        Scan scan;
         int i;
-        int j;
         int k;
-        int m;
         double[][] maxints    = new double[this.spectrumFiles.size()][this.mzValues.length];
-        double[][] mz_buffer  = new double[this.mzValues.length][100];
-        double[][] int_buffer = new double[this.mzValues.length][100];
-        int[] nIons = new int[this.mzValues.length];
         String[] mzKeys = new String[this.mzValues.length];
-        double[] local_max = new double[this.mzValues.length];
-        int[] lMax = new int[this.mzValues.length];
-        double intensity;
         
         /* Fill the range database with the m/z keys and their associated
          * ranges generated with the accuracy argument passed to the
@@ -331,56 +407,140 @@ public class MS1ExtractWithGaussianConfirmation {
             mzKeys[k] = String.format("%.4f",this.mzValues[k]);
         }
         
-        /* Iterate over each spectrum */
+        /* Allocate the chromatograms of every spectrum up front. Each 
+         * extraction then only writes to the chromatograms of its own 
+         * spectrum, so spectra can be extracted concurrently */
         for(k=0;k<this.spectrumFiles.size();k++) {
-            /* Connect to the spectrum */
-            spectrumFileInterface.connect(this.spectrumFiles.get(k));
+            if(!chromatograms.containsKey(this.spectrumKeys.get(k)))
+                chromatograms.put(this.spectrumKeys.get(k), new HashMap<>());
+        }
+        
+        /* Extract each spectrum. A shared spectrum interface can only be
+         * connected to one file at a time, so in that case the spectra are
+         * extracted one after another */
+        int nWorkers = sharedInterface ? 1 : Math.min(threads, this.spectrumFiles.size());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nWorkers));
+        try {
+            List<Future<Boolean>> extractions = new ArrayList<>();
+            for(k=0;k<this.spectrumFiles.size();k++) {
+                final int index = k;
+                extractions.add(pool.submit(() -> extractSpectrum(index, mzKeys, maxints[index], verbose)));
+            }
             
+            for(Future<Boolean> extraction : extractions) {
+                extraction.get();
+            }
+        }
+        catch(ExecutionException e) {
+            throw new Exception("MS1 extraction of a spectrum file failed", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        /* Store the maximum intensities */
+        for(k=0;k<this.spectrumFiles.size();k++) {
+            for(i=0;i<mzKeys.length;i++) {
+                maxint.put(String.format("%s_%s",mzKeys[i],this.spectrumKeys.get(k)),maxints[k][i]);
+            }
+        }
+                
+        return true;
+
+    }
+    
+    /**
+     * Extracts intensities of every m/z value from the MS1 scans of one 
+     * spectrum file that fall within the specified start and end retention 
+     * time. Uses its own spectrum interface and buffers, and writes only to
+     * the chromatograms of its own spectrum and to its own row of maximum
+     * intensities.
+     * 
+     * @param k Index of the spectrum file to extract
+     * @param mzKeys Keys of the m/z values to extract
+     * @param maxints Receives the maximum intensity of each m/z value
+     * @param verbose When set to true debug/trace output will be sent to STDOUT
+     * 
+     * @return true on success
+     * 
+     * @throws Exception if any errors are encountered
+     */
+    private boolean extractSpectrum(int k, String[] mzKeys, double[] maxints, boolean verbose) throws Exception {
+        int[] scans;
+        int[] ids;
+        Peaks peaks;
+        Scan scan;
+        int i;
+        int j;
+        int m;
+        double[][] mz_buffer  = new double[this.mzValues.length][100];
+        double[][] int_buffer = new double[this.mzValues.length][100];
+        int[] nIons = new int[this.mzValues.length];
+        double[] local_max = new double[this.mzValues.length];
+        int[] lMax = new int[this.mzValues.length];
+        double intensity;
+        HashMap<String,MS1Chromatogram> spectrumChromatograms = chromatograms.get(this.spectrumKeys.get(k));
+        SpectrumFile session = sessions != null ? sessions[k] : null;
+        SpectrumFile spectrumFileInterface = session != null ? session : spectrumFileInterfaces.get();
+        long started = System.currentTimeMillis();
+        
+        /* Connect to the spectrum, unless it is already connected */
+        if(session == null) {
+            spectrumFileInterface.connect(this.spectrumFiles.get(k));
+        }
+
+        /* A spectrum connected here is disconnected however the extraction
+         * ends */
+        try {
             /* Query the spectrum for MS1 scans in the retention time range */
             scans = spectrumFileInterface.queryRetentionTime(this.rtFrom, this.rtTo, 1);
             LOGGER.info("MS1 extract will iterate over {} scans in spectrum {}",scans.length,this.spectrumFiles.get(k));
-            
+            int reportEvery = Math.max(1, scans.length/10);
+
             /* Iterate over the list of scans */
             for(i=0;i<scans.length;i++) {
                 /* Reset the local maximum variables */
                 java.util.Arrays.fill(local_max, 0.0);
                 java.util.Arrays.fill(lMax, 0);
-                
+
                 /* Reset the number of ions in each buffer to 0 */
                 java.util.Arrays.fill(nIons, 0);
-                
-                
+
+
                 /* Report some progress */
+                if(i > 0 && i % reportEvery == 0) {
+                    LOGGER.info("[{}] MS1 extract processed {} of {} scans",this.spectrumKeys.get(k),i,scans.length);
+                }
 
-                
                 /* Get the scan properties and the scan peak data */
                 scan  = spectrumFileInterface.getScanProperties(scans[i]);
                 peaks = spectrumFileInterface.getScanPeaks(scans[i]);
-                              
+                long extractStarted = System.nanoTime();
+                          
                 /* Iterate over the peaks */
                 for(j=0;j<peaks.MZ.length;j++) {
                     /* Query the m/z range database to determine if this peak
                      * corresponds to one of the species of interest */
                     ids = this.roq.find(peaks.MZ[j]);
-                    
+                
                     /* Otherwise, we are processing a run of matches, so
                      * add the intensity to the buffer for processing */
                     for(m=0;m<ids.length;m++) {
                         mz_buffer[ids[m]][nIons[ids[m]]] = peaks.MZ[j];
                         int_buffer[ids[m]][nIons[ids[m]]] = peaks.Intensity[j];
-                                                
+                                            
                         /* If this is the most intense peak in the buffer,
                          * update the local maximum location */
                         if(peaks.Intensity[j] > local_max[ids[m]]) {
                             local_max[ids[m]] = peaks.Intensity[j];
                             lMax[ids[m]] = nIons[ids[m]];
                         }
-                        
+                    
                         nIons[ids[m]]++;
                     }
-                    
-                }
                 
+                }
+            
                 /* The flip-flop above can leave the last match in the buffer 
                  * unprocessed, so process it now if there is data waiting */
                 for(m=0;m<mzValues.length;m++) {
@@ -392,15 +552,15 @@ public class MS1ExtractWithGaussianConfirmation {
                         if(verbose) {
                             System.out.printf("P %d %.12f,%.2f,%f\n",scans[i],this.mzValues[m],scan.RetentionTime/60.0,intensity);
                         }
-                        this.storeIntensity(scan.RetentionTime,
-                                            intensity,
-                                            mzKeys[m],
-                                            this.spectrumKeys.get(k));
-                        if(intensity > maxints[k][m]) {
-                            maxints[k][m] = intensity;
+                        storeIntensity(scan.RetentionTime,
+                                       intensity,
+                                       mzKeys[m],
+                                       spectrumChromatograms);
+                        if(intensity > maxints[m]) {
+                            maxints[m] = intensity;
                         }
                     }
-                    
+                
                     /* If a centroid scan and any data available, choose the 
                      * most intense peak among all peaks that were within error
                      * window for m/z of interest */
@@ -409,15 +569,15 @@ public class MS1ExtractWithGaussianConfirmation {
                         if(verbose) {
                             System.out.printf("C %d %.12f,%.2f,%f,[%d]\n",scans[i],this.mzValues[m],scan.RetentionTime/60.0,intensity,nIons[m]);
                         }
-                        this.storeIntensity(scan.RetentionTime,
-                                            intensity,
-                                            mzKeys[m],
-                                            this.spectrumKeys.get(k));
-                        if(intensity > maxints[k][m]) {
-                            maxints[k][m] = intensity;
+                        storeIntensity(scan.RetentionTime,
+                                       intensity,
+                                       mzKeys[m],
+                                       spectrumChromatograms);
+                        if(intensity > maxints[m]) {
+                            maxints[m] = intensity;
                         }
                     }
-                    
+                
                     /* If neither of the previous conditions were met, we do not
                      * have evidence to support an intensity signal for the m/z
                      * of interest at this time point, so record 0 */ 
@@ -425,27 +585,26 @@ public class MS1ExtractWithGaussianConfirmation {
                         if(verbose) {
                             System.out.printf("E %d %.12f,%.2f,%f,[%d]\n",scans[i],this.mzValues[m],scan.RetentionTime/60.0,0.0,nIons[m]);
                         }
-                        this.storeIntensity(scan.RetentionTime,
-                                            0.0,
-                                            mzKeys[m],
-                                            this.spectrumKeys.get(k));
+                        storeIntensity(scan.RetentionTime,
+                                       0.0,
+                                       mzKeys[m],
+                                       spectrumChromatograms);
                     }
                 }
+                SearchMetrics.EXTRACT.recordSince(extractStarted);
+                SearchMetrics.MS1_SCANS_EXTRACTED.increment();
 
             }
-
-            spectrumFileInterface.disconnect();
         }
-
-        /* Store the maximum intensities */
-        for(k=0;k<this.spectrumFiles.size();k++) {
-            for(i=0;i<mzKeys.length;i++) {
-                maxint.put(String.format("%s_%s",mzKeys[i],this.spectrumKeys.get(k)),maxints[k][i]);
+        finally {
+            if(session == null) {
+                spectrumFileInterface.disconnect();
             }
         }
-                
+        
+        LOGGER.info("[{}] MS1 extract finished spectrum {} in {} seconds",this.spectrumKeys.get(k),this.spectrumFiles.get(k),(System.currentTimeMillis()-started)/1000.0);
+        
         return true;
-
     }
     
     /**
@@ -22,24 +22,152 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms;
 
-import java.util.List;
-
 /**
  * Encapsulates the data related to an MS2 (MS/MS) scan. Namely, the ion m/z
- * values and intensities. Includes a "label" parameter that could be used to
- * associate informative labels on each ion, but currently unused.
+ * values and intensities, and a label for each ion. The theoretical ions of
+ * an identification are labeled with their fragment ions by labeled(), and
+ * observed ions are left unlabeled.<br><br>
+ * 
+ * Ions are stored in packed primitive arrays. Only ions with a non-zero
+ * intensity are kept, as the others carry no information and are left out of
+ * toJSON(). Each ion records its index in the peak alignment it came from, so
+ * the observed and theoretical ions of an identification can be matched up by
+ * index. Labels are stored as integer codes made by labelCode(), and decoded
+ * by label().
  * 
  * @author Sean Maxwell
  */
 public class MSMSIons {
-    public List<Double> mz;
-    public List<Double> intensity;
-    public List<String> label;
+    private static final int[] NONE = new int[0];
+    
+    /* Ion series of the labels made by IonFactory.getTheoreticalIonLabels() */
+    private static final String[] SERIES = {"b","b-H2O","a","y","y-H2O","y-NH3"};
+    
+    public final int[] index;
+    public final double[] mz;
+    public final double[] intensity;
+    public final int[] label;
+    
+    /**
+     * @param index Index of each ion in the alignment it came from
+     * @param mz m/z value of each ion
+     * @param intensity Intensity of each ion
+     * @param label Label code of each ion, or an empty array if unlabeled
+     */
+    public MSMSIons(int[] index, double[] mz, double[] intensity, int[] label) {
+        this.index = index;
+        this.mz = mz;
+        this.intensity = intensity;
+        this.label = label;
+    }
+    
+    /**
+     * Keeps the ions of the first size elements of a pair of alignment
+     * arrays that have a non-zero intensity.
+     * 
+     * @param mz m/z values of the alignment
+     * @param intensity Intensities of the alignment
+     * @param size Number of elements of the alignment used
+     */
+    public MSMSIons(double[] mz, double[] intensity, int size) {
+        int n = 0;
+        for(int i=0;i<size;i++) {
+            if(Double.compare(intensity[i], 0.0) != 0) n++;
+        }
+        this.index = new int[n];
+        this.mz = new double[n];
+        this.intensity = new double[n];
+        this.label = NONE;
+        int k = 0;
+        for(int i=0;i<size;i++) {
+            if(Double.compare(intensity[i], 0.0) == 0) continue;
+            this.index[k] = i;
+            this.mz[k] = mz[i];
+            this.intensity[k] = intensity[i];
+            k++;
+        }
+    }
+    
+    /**
+     * @return Number of ions
+     */
+    public int size() {
+        return mz.length;
+    }
+    
+    /**
+     * Encodes a fragment ion label, such as "2 y5-H2O", as an integer.
+     * 
+     * @param charge Charge of the ion
+     * @param series One of b, b-H2O, a, y, y-H2O or y-NH3
+     * @param position Number of residues in the fragment
+     * 
+     * @return Label code
+     * 
+     * @throws Exception if the series is not known
+     */
+    public static int labelCode(int charge, String series, int position) throws Exception {
+        for(int s=0;s<SERIES.length;s++) {
+            if(SERIES[s].equals(series)) {
+                return (charge << 24) | (s << 16) | (position & 0xffff);
+            }
+        }
+        throw new Exception(String.format("Unknown ion series %s",series));
+    }
+    
+    /* Encodes a label made by IonFactory.getTheoreticalIonLabels() */
+    private static int labelCode(String label) throws Exception {
+        int space = label.indexOf(' ');
+        int end = space+2;
+        while(end < label.length() && Character.isDigit(label.charAt(end))) end++;
+        return labelCode(Integer.parseInt(label.substring(0,space)),
+                label.substring(space+1,space+2)+label.substring(end),
+                Integer.parseInt(label.substring(space+2,end)));
+    }
+    
+    /**
+     * Labels each ion with the closest fragment ion of a species, of those
+     * made by IonFactory.getTheoreticalIons() and labeled by
+     * IonFactory.getTheoreticalIonLabels(). Ions that are equally close to
+     * several fragment ions take the label of the first of them.
+     * 
+     * @param sequence Amino acid sequence of the species
+     * @param Z Maximum charge state of the fragment ions
+     * @param offsets Mass offsets of the residues of the species
+     * 
+     * @return The ions with their labels
+     * 
+     * @throws Exception if a label cannot be encoded
+     */
+    public MSMSIons labeled(String sequence, int Z, double[] offsets) throws Exception {
+        double[] fragments = IonFactory.getTheoreticalIons(sequence, Z, offsets);
+        String[] labels = IonFactory.getTheoreticalIonLabels(sequence, Z, offsets);
+        int[] codes = new int[size()];
+        for(int i=0;i<codes.length;i++) {
+            int closest = -1;
+            for(int j=0;j<fragments.length;j++) {
+                if("---".equals(labels[j])) continue;
+                if(closest < 0 || Math.abs(fragments[j]-mz[i]) < Math.abs(fragments[closest]-mz[i])) {
+                    closest = j;
+                }
+            }
+            codes[i] = labelCode(labels[closest]);
+        }
+        return new MSMSIons(index, mz, intensity, codes);
+    }
     
-    public MSMSIons(List<Double> d1, List<Double> d2, List<String> s) {
-        mz = d1;
-        intensity = d2;
-        label = s;
+    /**
+     * Decodes the label of an ion into the form used by
+     * IonFactory.getTheoreticalIonLabels().
+     * 
+     * @param i Index of the ion
+     * 
+     * @return Label of the ion
+     */
+    public String label(int i) {
+        int code = label[i];
+        String series = SERIES[(code >>> 16) & 0xff];
+        return String.format("%d %s%d%s",code >>> 24,series.substring(0,1),code & 0xffff,series.substring(1));
     }
     
     public String toJSON() {
@@ -48,31 +176,31 @@ public class MSMSIons {
         sb.append("\"mz\":[");
         
         first = true;
-        for(int i=0;i<mz.size();i++) {
-            if(intensity.get(i).compareTo(0.0) == 0) continue;
+        for(int i=0;i<mz.length;i++) {
+            if(Double.compare(intensity[i], 0.0) == 0) continue;
             if(!first) sb.append(",");
             else first = false;
             
-            sb.append(String.format("%.1f",mz.get(i)));
+            sb.append(String.format("%.1f",mz[i]));
         }
         sb.append("],\"I\":[");
         first = true;
-        for(int i=0;i<mz.size();i++) {
-            if(intensity.get(i).compareTo(0.0) == 0) continue;
+        for(int i=0;i<mz.length;i++) {
+            if(Double.compare(intensity[i], 0.0) == 0) continue;
             
             if(!first) sb.append(",");
             else first = false;
             
-            sb.append(intensity.get(i).longValue());
+            sb.append((long)intensity[i]);
         }
         sb.append("],\"label\":[");
         first = true;
-        for(String s : label) {
+        for(int i=0;i<label.length;i++) {
             if(!first) sb.append(",");
             else first = false;
             
             sb.append("\"");
-            sb.append(s);
+            sb.append(label(i));
             sb.append("\"");
         }
         sb.append("]}");
@@ -114,6 +114,19 @@ public class PeptideFactory {
     private int     nmiss    = 0;
     private int     search   = 0;
     private Protease prot;
+    
+    /* Mass window, and the prefix sums of the residue masses used to
+     * enumerate the peptides within it when every residue is a cut site */
+    private double  minMass  = Double.NaN;
+    private double  maxMass  = Double.NaN;
+    private double[] residueOffsets;
+    private double[] prefixMass;
+    private boolean monotonic;
+    private int     end;
+    
+    /* Masses are compared with this tolerance so that the window admits
+     * every peptide whose exact mass is within it */
+    private static final double MASS_TOLERANCE = 1e-6;
 
     /**
      * Constructor creates a new peptide factory with a database of available
@@ -297,6 +310,46 @@ public class PeptideFactory {
         return this.nmiss;
     }    
 
+    /**
+     * Restricts the peptides generated by proteases that cleave after every
+     * residue to those with a mass (residues, water and residue offsets)
+     * within a window. Other proteases ignore the window. The window is
+     * applied with a small tolerance, so callers that need the exact bounds
+     * must still check the mass of each peptide.
+     *
+     * @param min Minimum peptide mass
+     * @param max Maximum peptide mass
+     */
+    public void setMassWindow(double min, double max) {
+        this.minMass = min;
+        this.maxMass = max;
+    }
+
+    /**
+     * Sets a mass to add to each position of the sequence when computing
+     * peptide masses for the mass window, such as the offset of a fixed
+     * modification.
+     *
+     * @param offsets Mass offset of each position of the sequence, or null
+     *        for none
+     */
+    public void setResidueOffsets(double[] offsets) {
+        this.residueOffsets = offsets;
+    }
+
+    /**
+     * Checks if the configured protease cleaves after every residue, and so
+     * uses the mass window.
+     *
+     * @return true if the protease is Non-specific without added rules
+     */
+    public boolean cleavesEveryResidue() {
+        Protease protease = this.getProtease();
+        return "Non-specific".equals(this.pro) &&
+               protease.matcherCount() == 0 &&
+               protease.excluderCount() == 0;
+    }
+
     /**
      * Initializes the factory to sequentially generate peptides.
      *
@@ -326,6 +379,23 @@ public class PeptideFactory {
             this.start  = 0;
             this.found  = 0;
             this.search = 0;
+            
+            /* Prefix sums of the residue masses, for enumerating the
+             * peptides within the mass window by their end positions */
+            this.prefixMass = null;
+            if(!Double.isNaN(this.minMass) && this.cleavesEveryResidue()) {
+                this.prefixMass = new double[this.seq.length()+1];
+                this.monotonic = true;
+                for(i=0;i<this.seq.length();i++) {
+                    double m = Residues.getMI(this.seq.charAt(i));
+                    if(this.residueOffsets != null) {
+                        m += this.residueOffsets[i];
+                    }
+                    this.monotonic &= m > 0;
+                    this.prefixMass[i+1] = this.prefixMass[i]+m;
+                }
+                this.end = 0;
+            }
             return true;
         }
         catch(Exception e) {
@@ -376,6 +446,10 @@ public class PeptideFactory {
      *
      */
     public List<Peptide> getNext() {
+        if(this.prefixMass != null) {
+            return this.getNextInWindow();
+        }
+        
         List<Peptide> r;
         String   pep;
         Object[] peps;
@@ -522,6 +596,53 @@ public class PeptideFactory {
 
     }
 
+    /**
+     * Returns the peptides within the mass window that end at the next
+     * position of the sequence, longest last, as getNext() would for a
+     * protease that cleaves after every residue.
+     *
+     * @return Peptides while the end of the sequence has not been reached, and
+     * null otherwise.
+     */
+    private List<Peptide> getNextInWindow() {
+        if(this.end >= this.seq.length()) {
+            return null;
+        }
+        int j = this.end++;
+        double top = this.prefixMass[j+1]+Constants.MASS_WATER;
+        int first = Math.max(0, j-this.nmiss);
+        List<Peptide> r = new ArrayList<>();
+        
+        /* Peptide masses grow as the start moves left, so the starts within
+         * the window are a range. Find its right end by binary search */
+        int hi = j;
+        if(this.monotonic) {
+            int lo = first;
+            int h = j+1;
+            while(lo < h) {
+                int mid = (lo+h) >>> 1;
+                if(top-this.prefixMass[mid] >= this.minMass-MASS_TOLERANCE) {
+                    lo = mid+1;
+                }
+                else {
+                    h = mid;
+                }
+            }
+            hi = lo-1;
+        }
+        for(int s=hi;s>=first;s--) {
+            double m = top-this.prefixMass[s];
+            if(m > this.maxMass+MASS_TOLERANCE) {
+                if(this.monotonic) break;
+                continue;
+            }
+            if(m < this.minMass-MASS_TOLERANCE) continue;
+            r.add(new Peptide(this.seq.substring(s, j+1), s));
+        }
+        this.found += r.size();
+        return r;
+    }
+
     /**
      * Removes the N-terminus amino acid residue from a peptide. This is 
      * intended to be used for cleaving N-terminus methionine, but no explicit 
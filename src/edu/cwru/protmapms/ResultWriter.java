@@ -26,8 +26,10 @@ import edu.cwru.protmapms.result.FootprintingResult;
 import edu.cwru.protmapms.result.PeptideResult;
 import edu.cwru.protmapms.result.ProteinResult;
 import edu.cwru.protmapms.result.SpectrumResult;
+import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.File;
+import java.io.Writer;
 import java.util.List;
 import java.util.Map;
 
@@ -126,7 +128,9 @@ public class ResultWriter {
      * protein id =&gt; peptide sequence =&gt; spectrum key =&gt; mono-isotopic 
      * mass =&gt; [identifications]
      * where the identifications are JSON returned by the toJSON() method of
-     * each Identification object.
+     * each Identification object. Ions moved to an IonStore are read back
+     * from it one identification at a time as they are written, so they are
+     * never all on the heap at once.
      * @param outDir The directory where the result should be written
      * @param result The result to write to file
      * @throws Exception if an underlying operation throws an exception
@@ -138,7 +142,7 @@ public class ResultWriter {
         if(!outDirFile.exists())
             outDirFile.mkdirs();
         
-        FileWriter fw = new FileWriter(outDir+"/identifications.json");
+        Writer fw = new BufferedWriter(new FileWriter(outDir+"/identifications.json"), 1 << 16);
         fw.write("{");
         boolean firstAccession = true;
         for(String accession : result.getProteinAccessions()) {
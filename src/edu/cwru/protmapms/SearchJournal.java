@@ -0,0 +1,457 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of the units of work completed by a search, so that a
+ * run that is interrupted can be resumed without searching them again. A unit
+ * is one protein searched against one spectrum file, and is recorded with all
+ * of the identifications it produced.<br><br>
+ * 
+ * The journal starts with a header holding a fingerprint of the search
+ * parameters, and a journal is only resumed by a search with the same
+ * fingerprint. Each unit is then written as a single record:
+ * <pre>
+ * int length, byte[length] payload, int CRC32 of payload
+ * </pre>
+ * where the payload is the spectrum file index, the protein index and the
+ * deflated identifications: their number and, for each one, its species index,
+ * charge, scan, retention time, precursor m/z and intensity, score,
+ * significance and the alignment indexes, m/z values, intensities and label
+ * codes of its observed and theoretical ions. Modifications and exposure
+ * times are not stored, as they follow from the species and spectrum file
+ * indexes. A record cut short by a crash fails its length or CRC check, and
+ * is dropped on resume.<br><br>
+ * 
+ * Each record appended by append() is forced to the storage device with
+ * FileChannel.force(false) before append() returns, so a unit that has been
+ * journaled survives the machine losing power as well as the process being
+ * killed. This costs one sync per protein of a spectrum file, which is small
+ * next to searching the protein. The units copied by importUnits() are
+ * forced once, after the last of them is written.<br><br>
+ * 
+ * Records are appended by the searches of all spectrum files, so append() is
+ * synchronized.<br><br>
+ * 
+ * A search split into shards leaves one journal per shard. The shard journals
+ * are opened read-only with read(), and their units are copied into the
+ * journal of the merged search with importUnits().
+ * 
+ * @author Sean Maxwell
+ */
+public class SearchJournal {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SearchJournal.class);
+    public static final String FILE_NAME = "search.journal";
+    private static final int MAGIC = 0x504d4a31;
+    private static final int VERSION = 2;
+    
+    private final String path;
+    private final HashMap<Long,byte[]> completed;
+    private DataOutputStream out;
+    private FileChannel channel;
+    
+    /**
+     * Identifications made by one unit, each with the index of the species
+     * it identifies.
+     */
+    public static class Unit {
+        private final List<Integer> species;
+        private final List<Identification> identifications;
+        
+        public Unit() {
+            species = new ArrayList<>();
+            identifications = new ArrayList<>();
+        }
+        
+        public Unit add(int s, Identification identification) {
+            species.add(s);
+            identifications.add(identification);
+            return this;
+        }
+        
+        public Unit addAll(int s, List<Identification> identifications) {
+            for(Identification identification : identifications) {
+                add(s, identification);
+            }
+            return this;
+        }
+        
+        public int size() {
+            return identifications.size();
+        }
+        
+        public int species(int i) {
+            return species.get(i);
+        }
+        
+        public Identification identification(int i) {
+            return identifications.get(i);
+        }
+    }
+    
+    private static long key(int spectrumIndex, int protein) {
+        return ((long)spectrumIndex << 32) | (protein & 0xffffffffL);
+    }
+    
+    /**
+     * Opens the journal of a search. When resuming, the units recorded in an
+     * existing journal are loaded and new units are appended after them.
+     * Otherwise any existing journal is replaced.
+     * 
+     * @param path Journal file
+     * @param fingerprint Fingerprint of the search parameters
+     * @param resume True to resume from an existing journal
+     * 
+     * @throws Exception if the journal cannot be opened, or belongs to a
+     *         search with different parameters
+     */
+    public SearchJournal(String path, String fingerprint, boolean resume) throws Exception {
+        this.path = path;
+        this.completed = new HashMap<>();
+        
+        File file = new File(path);
+        if(file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        
+        long valid = 0;
+        if(resume && file.exists()) {
+            valid = load(file, fingerprint);
+            LOGGER.info("Resuming {} completed units from journal {}",completed.size(),path);
+        }
+        else if(resume) {
+            LOGGER.info("No journal found at {}, starting a new search",path);
+        }
+        
+        if(valid > 0) {
+            /* Drop a record that was only partially written */
+            try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if(raf.length() > valid) {
+                    LOGGER.warn("Discarding {} bytes of incomplete journal records",raf.length()-valid);
+                    raf.setLength(valid);
+                }
+            }
+            FileOutputStream stream = new FileOutputStream(file, true);
+            channel = stream.getChannel();
+            out = new DataOutputStream(stream);
+        }
+        else {
+            FileOutputStream stream = new FileOutputStream(file, false);
+            channel = stream.getChannel();
+            out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(fingerprint);
+            out.flush();
+            channel.force(false);
+        }
+    }
+    
+    /* Read-only journal */
+    private SearchJournal(String path) {
+        this.path = path;
+        this.completed = new HashMap<>();
+    }
+    
+    /**
+     * Opens an existing journal for reading only, such as the journal of one
+     * shard of a search. Incomplete records are skipped, but not removed.
+     * 
+     * @param path Journal file
+     * @param fingerprint Fingerprint of the search parameters
+     * 
+     * @return The journal
+     * 
+     * @throws Exception if the journal does not exist, cannot be read, or
+     *         belongs to a search with different parameters
+     */
+    public static SearchJournal read(String path, String fingerprint) throws Exception {
+        File file = new File(path);
+        if(!file.exists()) {
+            throw new Exception(String.format("Journal %s does not exist",path));
+        }
+        SearchJournal journal = new SearchJournal(path);
+        journal.load(file, fingerprint);
+        LOGGER.info("Read {} completed units from journal {}",journal.completed.size(),path);
+        return journal;
+    }
+    
+    /* Reads the header and every complete record, and returns the number of
+     * bytes that are valid */
+    private long load(File file, String fingerprint) throws Exception {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            String stored;
+            try {
+                if(in.readInt() != MAGIC) {
+                    throw new Exception(String.format("%s is not a search journal",path));
+                }
+                if(in.readInt() != VERSION) {
+                    throw new Exception(String.format("Journal %s was written by another version of the search",path));
+                }
+                stored = in.readUTF();
+            }
+            catch(EOFException e) {
+                return 0;
+            }
+            if(!stored.equals(fingerprint)) {
+                throw new Exception(String.format("Journal %s was written by a search with different parameters or inputs",path));
+            }
+            long valid = 8+2+stored.getBytes("UTF-8").length;
+            
+            CRC32 crc = new CRC32();
+            while(true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if(length < 12 || length > file.length()) break;
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if(in.readInt() != (int)crc.getValue()) break;
+                }
+                catch(EOFException e) {
+                    break;
+                }
+                
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                completed.put(key(record.readInt(), record.readInt()), payload);
+                valid += 4+payload.length+4;
+            }
+            return valid;
+        }
+    }
+    
+    /**
+     * @param spectrumIndex Index of the spectrum file
+     * @param protein Index of the protein
+     * 
+     * @return True if the unit was completed by an earlier run
+     */
+    public boolean isCompleted(int spectrumIndex, int protein) {
+        return completed.containsKey(key(spectrumIndex, protein));
+    }
+    
+    /**
+     * @return Number of units completed by an earlier run
+     */
+    public int completedCount() {
+        return completed.size();
+    }
+    
+    /**
+     * Decodes the identifications of a unit completed by an earlier run. The
+     * modifications and exposure time of the identifications are not set.
+     * 
+     * @param spectrumIndex Index of the spectrum file
+     * @param protein Index of the protein
+     * 
+     * @return Identifications of the unit
+     * 
+     * @throws Exception if the unit was not completed or cannot be decoded
+     */
+    public Unit restore(int spectrumIndex, int protein) throws Exception {
+        byte[] payload = completed.get(key(spectrumIndex, protein));
+        if(payload == null) {
+            throw new Exception(String.format("Journal has no record of spectrum file %d and protein %d",spectrumIndex,protein));
+        }
+        
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload, 8, payload.length-8)));
+        int count = in.readInt();
+        Unit unit = new Unit();
+        for(int i=0;i<count;i++) {
+            int s = in.readInt();
+            int Z = in.readByte();
+            int scan = in.readInt();
+            double rt = in.readDouble();
+            double precursorMz = in.readDouble();
+            double precursorIntensity = in.readDouble();
+            double score = in.readDouble();
+            boolean significant = in.readBoolean();
+            MSMSIons observed = readIons(in);
+            MSMSIons theoretical = readIons(in);
+            unit.add(s, new Identification(rt, scan, score).
+                    setSignificant(significant).
+                    setPrecursorMz(precursorMz).
+                    setPrecursorIntensity(precursorIntensity).
+                    setCharge(Z).
+                    setObservedIons(observed).
+                    setTheoreticalIons(theoretical));
+        }
+        return unit;
+    }
+    
+    private static MSMSIons readIons(DataInputStream in) throws IOException {
+        int n = in.readInt();
+        int[] index = new int[n];
+        double[] mz = new double[n];
+        double[] intensity = new double[n];
+        for(int i=0;i<n;i++) {
+            index[i] = in.readInt();
+        }
+        for(int i=0;i<n;i++) {
+            mz[i] = in.readDouble();
+        }
+        for(int i=0;i<n;i++) {
+            intensity[i] = in.readDouble();
+        }
+        int[] label = new int[in.readInt()];
+        for(int i=0;i<label.length;i++) {
+            label[i] = in.readInt();
+        }
+        return new MSMSIons(index, mz, intensity, label);
+    }
+    
+    private static void writeIons(DataOutputStream out, MSMSIons ions) throws IOException {
+        out.writeInt(ions.size());
+        for(int i : ions.index) {
+            out.writeInt(i);
+        }
+        for(double d : ions.mz) {
+            out.writeDouble(d);
+        }
+        for(double d : ions.intensity) {
+            out.writeDouble(d);
+        }
+        out.writeInt(ions.label.length);
+        for(int code : ions.label) {
+            out.writeInt(code);
+        }
+    }
+    
+    /**
+     * Copies the units of another journal that this journal has not recorded
+     * into this journal, and counts them as completed by an earlier run.
+     * Units are copied in spectrum file and protein order, so the copy does
+     * not depend on the order in which the other journal was written.
+     * 
+     * @param other Journal to copy from, with the same fingerprint
+     * 
+     * @return Number of units copied
+     * 
+     * @throws IOException if the records cannot be written
+     */
+    public int importUnits(SearchJournal other) throws IOException {
+        List<Long> keys = new ArrayList<>(other.completed.keySet());
+        Collections.sort(keys);
+        int copied = 0;
+        for(long k : keys) {
+            if(completed.containsKey(k)) continue;
+            byte[] payload = other.completed.get(k);
+            write(payload, false);
+            completed.put(k, payload);
+            copied++;
+        }
+        if(copied > 0) {
+            synchronized(this) {
+                channel.force(false);
+            }
+        }
+        return copied;
+    }
+    
+    /* Writes a record, and forces it to the storage device if force is set */
+    private void write(byte[] payload, boolean force) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        
+        synchronized(this) {
+            if(out == null) {
+                throw new IOException(String.format("Journal %s is open for reading only",path));
+            }
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int)crc.getValue());
+            out.flush();
+            if(force) {
+                channel.force(false);
+            }
+        }
+    }
+    
+    /**
+     * Records a completed unit. The record is flushed and forced to the
+     * storage device before returning, so it survives the process being
+     * killed or the machine losing power.
+     * 
+     * @param spectrumIndex Index of the spectrum file
+     * @param protein Index of the protein
+     * @param unit Identifications made by the unit
+     * 
+     * @throws IOException if the record cannot be written
+     */
+    public void append(int spectrumIndex, int protein, Unit unit) throws IOException {
+        /* Encode outside of the lock */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeInt(spectrumIndex);
+        header.writeInt(protein);
+        header.flush();
+        DataOutputStream record = new DataOutputStream(new DeflaterOutputStream(bytes));
+        record.writeInt(unit.size());
+        for(int i=0;i<unit.size();i++) {
+            Identification identification = unit.identification(i);
+            record.writeInt(unit.species(i));
+            record.writeByte(identification.getCharge());
+            record.writeInt(identification.getScanNumber());
+            record.writeDouble(identification.getRetentionTime());
+            record.writeDouble(identification.getPrecursorMz());
+            record.writeDouble(identification.getPrecursorIntensity());
+            record.writeDouble(identification.getScore());
+            record.writeBoolean(identification.isSignificant());
+            writeIons(record, identification.getObservedIons());
+            writeIons(record, identification.getTheoreticalIons());
+        }
+        record.close();
+        write(bytes.toByteArray(), true);
+    }
+    
+    public synchronized void close() throws IOException {
+        if(out != null) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+/**
+ * One slice of a search that is split across several processes. The units of
+ * a search (one protein against one spectrum file) are dealt out to the shards
+ * round-robin, by protein, by spectrum file or by unit, so each unit belongs to
+ * exactly one shard. The assignment only depends on the protein database and
+ * spectrum files, so processes started with the same options on different
+ * machines agree on it without sharing any state.
+ * 
+ * @author Sean Maxwell
+ */
+public class Shard {
+    public static final String BY_PROTEINS = "proteins";
+    public static final String BY_SPECTRA = "spectra";
+    public static final String BY_UNITS = "both";
+    
+    public final int index;
+    public final int count;
+    public final String by;
+    
+    /**
+     * @param index Index of this shard, from 0 to count-1
+     * @param count Number of shards
+     * @param by How units are dealt out: proteins, spectra or both
+     * 
+     * @throws Exception if the shard is not valid
+     */
+    public Shard(int index, int count, String by) throws Exception {
+        if(count < 1 || index < 0 || index >= count) {
+            throw new Exception(String.format("Shard %d/%d is not valid. The index must be at least 0 and less than the count.",index,count));
+        }
+        if(!BY_PROTEINS.equals(by) && !BY_SPECTRA.equals(by) && !BY_UNITS.equals(by)) {
+            throw new Exception(String.format("Unknown shard assignment '%s'. Valid values are %s, %s or %s.",by,BY_PROTEINS,BY_SPECTRA,BY_UNITS));
+        }
+        this.index = index;
+        this.count = count;
+        this.by = by;
+    }
+    
+    /**
+     * Parses a shard written as index/count, such as 0/4.
+     * 
+     * @param value Shard to parse
+     * @param by How units are dealt out: proteins, spectra or both
+     * 
+     * @return The shard
+     * 
+     * @throws Exception if the value is not a valid shard
+     */
+    public static Shard parse(String value, String by) throws Exception {
+        String[] parts = value.split("/");
+        if(parts.length != 2) {
+            throw new Exception(String.format("Shard \"%s\" is not of the form index/count",value));
+        }
+        try {
+            return new Shard(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), by);
+        }
+        catch(NumberFormatException e) {
+            throw new Exception(String.format("Shard \"%s\" is not of the form index/count",value));
+        }
+    }
+    
+    /**
+     * @return True if the search is not split
+     */
+    public boolean isWhole() {
+        return count == 1;
+    }
+    
+    /**
+     * @param spectrumIndex Index of the spectrum file
+     * @param protein Index of the protein
+     * @param proteinCount Number of proteins in the database
+     * 
+     * @return True if the unit belongs to this shard
+     */
+    public boolean contains(int spectrumIndex, int protein, int proteinCount) {
+        switch(by) {
+            case BY_SPECTRA:
+                return spectrumIndex % count == index;
+            case BY_UNITS:
+                return ((long)spectrumIndex*proteinCount+protein) % count == index;
+            default:
+                return protein % count == index;
+        }
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("%d/%d by %s",index,count,by);
+    }
+}
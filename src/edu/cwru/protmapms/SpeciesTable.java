@@ -0,0 +1,619 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.math.SortOrder;
+import edu.cwru.protmapms.modifications.ModificationSite;
+import edu.cwru.protmapms.modifications.ModificationSiteEnumerator;
+import edu.cwru.protmapms.modifications.Modifications;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Table of every peptide species that can be searched for in a job: each
+ * peptide cleaved from each protein and within the mass window, with its fixed
+ * modifications and every combination of variable modifications. None of this
+ * depends on the spectrum files, so the table is built once per job and shared
+ * by the searches of all spectrum files.<br><br>
+ *
+ * Peptides are numbered in the order they are cleaved from their proteins, so
+ * the peptides of protein i are numbered from peptideStart(i) to
+ * peptideEnd(i)-1. The species of peptide p are numbered contiguously from
+ * speciesStart(p) to speciesEnd(p)-1, with the fixed-only species first.
+ * Masses and precursor m/z values are stored in primitive arrays, with one
+ * precursor m/z per species and charge state. An index of all (species,
+ * charge) entries sorted by precursor m/z is also kept for searches that
+ * start from a scan precursor.<br><br>
+ *
+ * The same sequence is often cleaved from several proteins. Each occurrence
+ * keeps its own peptide and species, because modification sites are keyed by
+ * absolute position in the protein and so can differ between occurrences, but
+ * species with the same sequence and the same per-residue offsets are mapped
+ * to a canonical species: the first of them in the table. They have the same
+ * precursors and fragments, so a search only has to score one of them.<br><br>
+ *
+ * The theoretical ions at every charge are taken from one ladder of ions
+ * generated at the maximum charge per canonical species. The most recently
+ * used ladders are kept, so the searches of the charge states of a species
+ * generate its fragments once.
+ *
+ * @author Sean Maxwell
+ */
+public class SpeciesTable {
+    private final int minZ;
+    private final int maxZ;
+    private final int nCharges;
+    
+    /* Per protein */
+    private final List<String> accessions;
+    private final int[] proteinPeptideStart;
+    private final long[] proteinCost;
+    private final int[] proteinsByCost;
+    
+    /* Per peptide */
+    private final List<Peptide> peptides;
+    private final int[] peptideProtein;
+    private final int[] peptideSpeciesStart;
+    private final List<TheoreticalIonGenerator> ionGenerators;
+    
+    /* Peptide indexes of every occurrence of each sequence */
+    private final Map<String,int[]> sequenceOccurrences;
+    
+    /* Per species. The modification sites and per-residue offsets of all
+     * species are packed into one array each, with those of species s
+     * starting at siteStart[s] and offsetStart[s] */
+    private final int nSpecies;
+    private final ModificationSite[] sites;
+    private final int[] siteStart;
+    private final double[] offsetValues;
+    private final int[] offsetStart;
+    private final double[] mass;
+    private final int[] canonicalSpecies;
+    private final int[] occurrenceCount;
+    private final int uniqueSpeciesCount;
+    
+    /* Per species and charge, at species*nCharges+(Z-minZ) */
+    private final double[] precursorMz;
+    
+    /* (species, charge) entries in ascending order of precursor m/z */
+    private final int[] mzOrder;
+    private final double[] mzSorted;
+    
+    /* Library the theoretical spectra are read from, if any */
+    private SpectrumLibrary library;
+    
+    /* Ladders of the most recently used canonical species, in access order */
+    private static final int LADDER_CACHE_SIZE = 4096;
+    private final Map<Integer,TheoreticalIonGenerator.Ladder> ladders = new LinkedHashMap<Integer,TheoreticalIonGenerator.Ladder>(1024, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer,TheoreticalIonGenerator.Ladder> eldest) {
+            return size() > LADDER_CACHE_SIZE;
+        }
+    };
+    
+    private static int[] toArray(List<Integer> l) {
+        int[] a = new int[l.size()];
+        for(int i=0;i<a.length;i++) {
+            a[i] = l.get(i);
+        }
+        return a;
+    }
+    
+    private static String speciesKey(String sequence, double[] o) {
+        return sequence+Arrays.toString(o);
+    }
+    
+    private static double[] toOffsets(Peptide peptide, List<ModificationSite> modSites) {
+        double[] o = new double[peptide.length];
+        for(ModificationSite modSite : modSites) {
+            o[modSite.position-peptide.start] = modSite.modification.massOffset;
+        }
+        return o;
+    }
+    
+    /**
+     * Builds the table by digesting every protein in the database and
+     * enumerating the modification sites of every peptide within the mass
+     * window.
+     *
+     * @param proteins Protein database
+     * @param proteaseName Name of the protease used to cleave the proteins
+     * @param maxMissedCleavages Maximum number of missed cleavages
+     * @param modifications Modification database
+     * @param maxConcurrentModifications Maximum number of variable
+     *        modifications on a single species
+     * @param minMass Minimum peptide mass (including fixed modifications)
+     * @param maxMass Maximum peptide mass (including fixed modifications)
+     * @param minZ Minimum charge state
+     * @param maxZ Maximum charge state
+     */
+    public SpeciesTable(Fasta proteins,
+                        String proteaseName,
+                        int maxMissedCleavages,
+                        Modifications modifications,
+                        int maxConcurrentModifications,
+                        double minMass,
+                        double maxMass,
+                        int minZ,
+                        int maxZ) {
+        this.minZ = minZ;
+        this.maxZ = maxZ;
+        this.nCharges = maxZ-minZ+1;
+        
+        accessions = new ArrayList<>();
+        peptides = new ArrayList<>();
+        ionGenerators = new ArrayList<>();
+        List<Integer> proteinIndex = new ArrayList<>();
+        List<Integer> speciesStart = new ArrayList<>();
+        List<ModificationSite> siteList = new ArrayList<>();
+        int[] siteEnd = new int[1024];
+        double[] offsetBuffer = new double[1024];
+        int offsetEnd = 0;
+        int nextSpecies = 0;
+        Map<String,TheoreticalIonGenerator> sharedGenerators = new HashMap<>();
+        
+        for(String accession : proteins.getAccessions()) {
+            accessions.add(accession);
+            
+            PeptideFactory pf = new PeptideFactory(false);
+            pf.setProtease(proteaseName);
+            pf.setMissedCleavages(maxMissedCleavages);
+            pf.setSequence(proteins.getSequence(accession));
+            
+            /* A protease that cleaves everywhere only builds the peptides
+             * within the mass window, which is checked again exactly below */
+            if(pf.cleavesEveryResidue()) {
+                pf.setMassWindow(minMass, maxMass);
+                pf.setResidueOffsets(ModificationSiteEnumerator.fixedOffsets(pf.getSequence(), 0, modifications));
+            }
+            pf.start();
+            
+            List<Peptide> cleaved = pf.getNext();
+            while(cleaved != null) {
+                for(Peptide peptide : cleaved) {
+                    ModificationSiteEnumerator mse = new ModificationSiteEnumerator(peptide,modifications,maxConcurrentModifications);
+                    
+                    /* Filter by the mass of the amino acids plus the mass of
+                     * all fixed modifications on the peptide */
+                    double miMass = IonFactory.calculateIonMass(peptide.sequence)+mse.getTotalFixedOffset();
+                    if(miMass < minMass || miMass > maxMass) {
+                        continue;
+                    }
+                    
+                    peptides.add(peptide);
+                    proteinIndex.add(accessions.size()-1);
+                    speciesStart.add(nextSpecies);
+                    
+                    /* Species with only fixed modifications first, then each
+                     * combination of variable modifications */
+                    double[] fixed = null;
+                    List<ModificationSite> modSites = mse.getFixed();
+                    while(modSites != null) {
+                        double[] o = toOffsets(peptide,modSites);
+                        if(fixed == null) {
+                            fixed = o;
+                        }
+                        if(nextSpecies == siteEnd.length) {
+                            siteEnd = Arrays.copyOf(siteEnd, nextSpecies*2);
+                        }
+                        siteList.addAll(modSites);
+                        siteEnd[nextSpecies++] = siteList.size();
+                        if(offsetEnd+o.length > offsetBuffer.length) {
+                            offsetBuffer = Arrays.copyOf(offsetBuffer, Math.max(offsetBuffer.length*2, offsetEnd+o.length));
+                        }
+                        System.arraycopy(o, 0, offsetBuffer, offsetEnd, o.length);
+                        offsetEnd += o.length;
+                        modSites = mse.getNext();
+                    }
+                    
+                    /* Fragments of the variants are computed from those of
+                     * the fixed-only species, which other occurrences of the
+                     * sequence usually share */
+                    String key = speciesKey(peptide.sequence, fixed);
+                    TheoreticalIonGenerator generator = sharedGenerators.get(key);
+                    if(generator == null) {
+                        generator = new TheoreticalIonGenerator(peptide.sequence, fixed);
+                        sharedGenerators.put(key, generator);
+                    }
+                    ionGenerators.add(generator);
+                }
+                
+                cleaved = pf.getNext();
+            }
+        }
+        speciesStart.add(nextSpecies);
+        peptideProtein = toArray(proteinIndex);
+        peptideSpeciesStart = toArray(speciesStart);
+        
+        nSpecies = nextSpecies;
+        sites = siteList.toArray(new ModificationSite[siteList.size()]);
+        siteStart = new int[nSpecies+1];
+        System.arraycopy(siteEnd, 0, siteStart, 1, nSpecies);
+        offsetValues = Arrays.copyOf(offsetBuffer, offsetEnd);
+        
+        /* Each species has one offset per residue of its peptide */
+        offsetStart = new int[nSpecies+1];
+        for(int p=0;p<peptides.size();p++) {
+            for(int s=peptideSpeciesStart[p];s<peptideSpeciesStart[p+1];s++) {
+                offsetStart[s+1] = offsetStart[s]+peptides.get(p).length;
+            }
+        }
+        
+        /* Peptides are grouped by protein in database order, so the
+         * peptides of each protein are a range */
+        proteinPeptideStart = new int[accessions.size()+1];
+        for(int protein : peptideProtein) {
+            proteinPeptideStart[protein+1]++;
+        }
+        for(int i=0;i<accessions.size();i++) {
+            proteinPeptideStart[i+1] += proteinPeptideStart[i];
+        }
+        
+        /* The cost of searching a protein grows with the number of species
+         * and charge states to match, and with the number of theoretical ions
+         * of each, which grows with peptide length */
+        proteinCost = new long[accessions.size()];
+        for(int p=0;p<peptides.size();p++) {
+            long species = peptideSpeciesStart[p+1]-peptideSpeciesStart[p];
+            proteinCost[peptideProtein[p]] += species*peptides.get(p).length*nCharges;
+        }
+        proteinsByCost = SortOrder.descending(proteinCost);
+        
+        /* Occurrences of each sequence, and the canonical species of each
+         * species: the first with the same sequence and offsets */
+        Map<String,List<Integer>> occurrences = new HashMap<>();
+        Map<String,Integer> canonical = new HashMap<>();
+        canonicalSpecies = new int[nSpecies];
+        occurrenceCount = new int[nSpecies];
+        for(int p=0;p<peptides.size();p++) {
+            String sequence = peptides.get(p).sequence;
+            List<Integer> l = occurrences.get(sequence);
+            if(l == null) {
+                l = new ArrayList<>();
+                occurrences.put(sequence, l);
+            }
+            l.add(p);
+            for(int s=peptideSpeciesStart[p];s<peptideSpeciesStart[p+1];s++) {
+                String key = speciesKey(sequence, offsets(s));
+                Integer c = canonical.get(key);
+                if(c == null) {
+                    c = s;
+                    canonical.put(key, c);
+                }
+                canonicalSpecies[s] = c;
+                occurrenceCount[c]++;
+            }
+        }
+        sequenceOccurrences = new HashMap<>();
+        for(Map.Entry<String,List<Integer>> e : occurrences.entrySet()) {
+            sequenceOccurrences.put(e.getKey(), toArray(e.getValue()));
+        }
+        uniqueSpeciesCount = canonical.size();
+        
+        /* Masses and precursor m/z values of every species */
+        mass = new double[nSpecies];
+        precursorMz = new double[nSpecies*nCharges];
+        for(int p=0;p<peptides.size();p++) {
+            String sequence = peptides.get(p).sequence;
+            double residueMass = IonFactory.calculateIonMass(sequence);
+            for(int s=peptideSpeciesStart[p];s<peptideSpeciesStart[p+1];s++) {
+                double[] o = offsets(s);
+                double m = residueMass;
+                for(double offset : o) {
+                    m += offset;
+                }
+                mass[s] = m;
+                for(int Z=minZ;Z<=maxZ;Z++) {
+                    precursorMz[s*nCharges+(Z-minZ)] = IonFactory.calculatePrecursorIonMass(sequence, Z, o)[0];
+                }
+            }
+        }
+        
+        /* Sort entries by precursor m/z */
+        mzOrder = SortOrder.ascending(precursorMz);
+        mzSorted = new double[mzOrder.length];
+        for(int i=0;i<mzOrder.length;i++) {
+            mzSorted[i] = precursorMz[mzOrder[i]];
+        }
+    }
+    
+    public int minCharge() {
+        return minZ;
+    }
+    
+    public int maxCharge() {
+        return maxZ;
+    }
+    
+    public int proteinCount() {
+        return accessions.size();
+    }
+    
+    public String accession(int protein) {
+        return accessions.get(protein);
+    }
+    
+    public int peptideStart(int protein) {
+        return proteinPeptideStart[protein];
+    }
+    
+    public int peptideEnd(int protein) {
+        return proteinPeptideStart[protein+1];
+    }
+    
+    /**
+     * Estimates the cost of searching a protein against a spectrum file from
+     * its species, their charge states and their lengths. The estimate is
+     * only meaningful relative to that of other proteins.
+     *
+     * @param protein Protein index
+     *
+     * @return Estimated search cost of the protein
+     */
+    public long proteinCost(int protein) {
+        return proteinCost[protein];
+    }
+    
+    /**
+     * @return Protein indexes in descending order of estimated search cost,
+     *         and in database order among proteins of equal cost
+     */
+    public int[] proteinsByCost() {
+        return proteinsByCost.clone();
+    }
+    
+    public int peptideCount() {
+        return peptides.size();
+    }
+    
+    public Peptide peptide(int peptide) {
+        return peptides.get(peptide);
+    }
+    
+    public int peptideProtein(int peptide) {
+        return peptideProtein[peptide];
+    }
+    
+    public int speciesStart(int peptide) {
+        return peptideSpeciesStart[peptide];
+    }
+    
+    public int speciesEnd(int peptide) {
+        return peptideSpeciesStart[peptide+1];
+    }
+    
+    public int speciesCount() {
+        return nSpecies;
+    }
+    
+    /**
+     * @param species Species index
+     *
+     * @return Read-only view of the modification sites of the species
+     */
+    public List<ModificationSite> modificationSites(int species) {
+        return Collections.unmodifiableList(Arrays.asList(sites).subList(siteStart[species], siteStart[species+1]));
+    }
+    
+    /**
+     * @param species Species index
+     *
+     * @return Copy of the per-residue offsets of the species
+     */
+    public double[] offsets(int species) {
+        return Arrays.copyOfRange(offsetValues, offsetStart[species], offsetStart[species+1]);
+    }
+    
+    /**
+     * @return Number of distinct peptide sequences in the table
+     */
+    public int uniquePeptideCount() {
+        return sequenceOccurrences.size();
+    }
+    
+    /**
+     * Finds every occurrence of a peptide sequence in the proteins of the
+     * table.
+     *
+     * @param sequence Peptide sequence
+     *
+     * @return Indexes of the peptides with the sequence in ascending order, or
+     *         an empty array if the sequence is not in the table
+     */
+    public int[] occurrences(String sequence) {
+        int[] o = sequenceOccurrences.get(sequence);
+        return o == null ? new int[0] : o.clone();
+    }
+    
+    /**
+     * @return Number of species that are their own canonical species
+     */
+    public int uniqueSpeciesCount() {
+        return uniqueSpeciesCount;
+    }
+    
+    /**
+     * Finds the species that scores the same as a species in every search:
+     * the first species in the table with the same sequence and per-residue
+     * offsets. Only the modification sites of the two can differ.
+     *
+     * @param species Species index
+     *
+     * @return Index of the canonical species, which is species itself if no
+     *         earlier species is the same
+     */
+    public int canonicalSpecies(int species) {
+        return canonicalSpecies[species];
+    }
+    
+    /**
+     * @param species Species index
+     *
+     * @return Whether other species share the canonical species of species
+     */
+    public boolean isShared(int species) {
+        return occurrenceCount[canonicalSpecies[species]] > 1;
+    }
+    
+    /**
+     * Generates the theoretical ions of a species at charges 1 through Z, in
+     * ascending order. Equal to IonFactory.getTheoreticalIons() followed by a
+     * sort.
+     *
+     * @param species Species index
+     * @param Z Maximum charge state
+     *
+     * @return Sorted theoretical ions
+     */
+    public double[] theoreticalIons(int species, int Z) {
+        if(library != null) {
+            return library.theoreticalIons(species, Z);
+        }
+        if(Z > maxZ) {
+            return ionGenerators.get(speciesPeptide(species)).getSortedIons(Z, offsets(species));
+        }
+        return ladder(species).sortedIons(Z);
+    }
+    
+    /* The ladder of the canonical species of species at the maximum charge,
+     * generated if it is not among the most recently used */
+    private TheoreticalIonGenerator.Ladder ladder(int species) {
+        int canonical = canonicalSpecies[species];
+        TheoreticalIonGenerator.Ladder ladder;
+        synchronized(ladders) {
+            ladder = ladders.get(canonical);
+        }
+        if(ladder == null) {
+            ladder = ionGenerators.get(speciesPeptide(canonical)).getLadder(maxZ, offsets(canonical));
+            synchronized(ladders) {
+                ladders.put(canonical, ladder);
+            }
+        }
+        return ladder;
+    }
+    
+    /**
+     * Computes the precursor ions of a species at a charge state (two
+     * isotopes, each with no loss, water loss and ammonia loss), in ascending
+     * order. Equal to IonFactory.calculatePrecursorIonMass() followed by a
+     * sort.
+     *
+     * @param species Species index
+     * @param Z Charge state
+     *
+     * @return Sorted precursor ions
+     */
+    public double[] precursorIons(int species, int Z) {
+        if(library != null) {
+            return library.precursorIons(species, Z);
+        }
+        double[] precursors = IonFactory.calculatePrecursorIonMass(peptides.get(speciesPeptide(species)).sequence, Z, offsets(species));
+        Arrays.sort(precursors);
+        return precursors;
+    }
+    
+    /**
+     * Reads the theoretical and precursor ions of every species from a
+     * library instead of computing them. Must be called before the table is
+     * shared between threads.
+     *
+     * @param library Library built for this table, or null to compute the
+     *        ions again
+     */
+    public void setLibrary(SpectrumLibrary library) {
+        this.library = library;
+    }
+    
+    public double mass(int species) {
+        return mass[species];
+    }
+    
+    public double precursorMz(int species, int Z) {
+        return precursorMz[species*nCharges+(Z-minZ)];
+    }
+    
+    /**
+     * Finds the peptide a species belongs to.
+     *
+     * @param species Species index
+     *
+     * @return Peptide index
+     */
+    public int speciesPeptide(int species) {
+        int p = Arrays.binarySearch(peptideSpeciesStart, species);
+        if(p < 0) {
+            return -p-2;
+        }
+        
+        /* Peptides without species are not stored, so starts are unique */
+        return p;
+    }
+    
+    /**
+     * @return Number of (species, charge) entries in the m/z index
+     */
+    public int entryCount() {
+        return mzOrder.length;
+    }
+    
+    public double entryMz(int entry) {
+        return mzSorted[entry];
+    }
+    
+    public int entrySpecies(int entry) {
+        return mzOrder[entry]/nCharges;
+    }
+    
+    public int entryCharge(int entry) {
+        return minZ+mzOrder[entry]%nCharges;
+    }
+    
+    /**
+     * Finds the first entry in the m/z index with precursor m/z greater than or
+     * equal to the argument.
+     *
+     * @param mz m/z value to search for
+     *
+     * @return Index of the first entry at or above mz, or entryCount()
+     */
+    public int lowerBound(double mz) {
+        int lo = 0;
+        int hi = mzSorted.length;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(mzSorted[mid] < mz) {
+                lo = mid+1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
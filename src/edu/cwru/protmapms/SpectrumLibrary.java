@@ -0,0 +1,292 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * On-disk library of the theoretical spectra of every species of a species
+ * table: the sorted theoretical ions and sorted precursor ions of each
+ * species at each charge state. Computing the theoretical ions is a large
+ * part of a search, and none of it depends on the spectrum files, so a job
+ * run again with the same protein database, modifications and digestion
+ * settings against new spectrum files reads them from the library instead.
+ * <br><br>
+ * 
+ * A library is named by a SHA-1 key of the sequence and per-residue offsets
+ * of every species in the table and the charge range, which is everything
+ * the spectra are computed from. A change to the database, modifications,
+ * protease, missed cleavages, maximum modifications or mass window that
+ * changes the species therefore gives a different library. The file is:
+ * <pre>
+ * header (64 bytes): magic, version, key, species, minimum and maximum charge
+ * index: start of the ions of each (species, charge) entry, plus the end
+ * precursor ions: 6 sorted precursor ions per entry
+ * theoretical ions: the sorted ions of each entry, one after the other
+ * </pre>
+ * It is written to a temporary file that is renamed once complete, so an
+ * interrupted build never leaves a library that looks valid, and it is read
+ * through read-only memory maps of 1 GB segments. Every value is 8 bytes
+ * and aligned, so none crosses a segment boundary.<br><br>
+ * 
+ * Reads may come from several threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class SpectrumLibrary {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SpectrumLibrary.class);
+    public static final String EXTENSION = ".tsl";
+    private static final int MAGIC = 0x54534c31;
+    private static final int VERSION = 1;
+    private static final int HEADER = 64;
+    private static final int PRECURSORS = 6;
+    private static final long SEGMENT = 1L << 30;
+    
+    private final String path;
+    private final int minZ;
+    private final int nCharges;
+    private final long precursorStart;
+    private final long ionStart;
+    private final List<MappedByteBuffer> segments;
+    
+    private SpectrumLibrary(String path, int minZ, int maxZ, int nSpecies) throws IOException {
+        this.path = path;
+        this.minZ = minZ;
+        this.nCharges = maxZ-minZ+1;
+        long entries = (long)nSpecies*nCharges;
+        this.precursorStart = HEADER+(entries+1)*8;
+        this.ionStart = precursorStart+entries*PRECURSORS*8;
+        this.segments = new ArrayList<>();
+        
+        /* Mappings stay valid once the file is closed */
+        try(RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            FileChannel channel = raf.getChannel();
+            for(long start=0;start<channel.size();start+=SEGMENT) {
+                segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT, channel.size()-start)));
+            }
+        }
+    }
+    
+    /**
+     * Computes the key of the library of a species table.
+     * 
+     * @param table Species table
+     * 
+     * @return SHA-1 digest in hexadecimal
+     */
+    public static String key(SpeciesTable table) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        }
+        catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(VERSION).append(' ').append(table.minCharge()).append(' ').append(table.maxCharge()).append('\n');
+        digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        for(int s=0;s<table.speciesCount();s++) {
+            sb.setLength(0);
+            sb.append(table.peptide(table.speciesPeptide(s)).sequence);
+            for(double offset : table.offsets(s)) {
+                sb.append(' ').append(Long.toHexString(Double.doubleToLongBits(offset)));
+            }
+            sb.append('\n');
+            digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return Hex.encodeHexString(digest.digest());
+    }
+    
+    /**
+     * Opens the library of a species table in a directory, building it first
+     * if the directory holds no valid library for the table.
+     * 
+     * @param dir Directory of libraries
+     * @param table Species table, which must not have a library set
+     * 
+     * @return The library
+     * 
+     * @throws IOException if the library cannot be built or read
+     */
+    public static SpectrumLibrary open(String dir, SpeciesTable table) throws IOException {
+        String key = key(table);
+        File file = new File(dir, key+EXTENSION);
+        if(file.exists()) {
+            if(isValid(file, key, table)) {
+                LOGGER.info("Loaded theoretical spectrum library {}",file.getPath());
+                return new SpectrumLibrary(file.getPath(), table.minCharge(), table.maxCharge(), table.speciesCount());
+            }
+            LOGGER.warn("Theoretical spectrum library {} is not valid and will be built again",file.getPath());
+        }
+        
+        long started = System.currentTimeMillis();
+        build(file, key, table);
+        LOGGER.info("Built theoretical spectrum library {} in {} seconds",file.getPath(),(System.currentTimeMillis()-started)/1000.0);
+        return new SpectrumLibrary(file.getPath(), table.minCharge(), table.maxCharge(), table.speciesCount());
+    }
+    
+    /* True if the header of a library matches the table, and the file is
+     * as long as its index says */
+    private static boolean isValid(File file, String key, SpeciesTable table) throws IOException {
+        int nCharges = table.maxCharge()-table.minCharge()+1;
+        long entries = (long)table.speciesCount()*nCharges;
+        long precursorStart = HEADER+(entries+1)*8;
+        try(RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if(raf.length() < precursorStart) return false;
+            if(raf.readInt() != MAGIC || raf.readInt() != VERSION) return false;
+            byte[] stored = new byte[40];
+            raf.readFully(stored);
+            if(!key.equals(new String(stored, StandardCharsets.US_ASCII))) return false;
+            if(raf.readInt() != table.speciesCount() || raf.readInt() != table.minCharge() || raf.readInt() != table.maxCharge()) return false;
+            raf.seek(HEADER+entries*8);
+            long ions = raf.readLong();
+            return raf.length() == precursorStart+entries*PRECURSORS*8+ions*8;
+        }
+    }
+    
+    /* Writes the library to a temporary file, then renames it */
+    private static void build(File file, String key, SpeciesTable table) throws IOException {
+        if(file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        File tmp = File.createTempFile(key, ".tmp", file.getAbsoluteFile().getParentFile());
+        int nCharges = table.maxCharge()-table.minCharge()+1;
+        long entries = (long)table.speciesCount()*nCharges;
+        long precursorStart = HEADER+(entries+1)*8;
+        long ionStart = precursorStart+entries*PRECURSORS*8;
+        
+        try(RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            FileChannel channel = raf.getChannel();
+            long[] index = new long[(int)entries+1];
+            
+            /* Theoretical ions first, as their index is only known once
+             * they are written */
+            channel.position(ionStart);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            long n = 0;
+            for(int s=0;s<table.speciesCount();s++) {
+                for(int Z=table.minCharge();Z<=table.maxCharge();Z++) {
+                    index[s*nCharges+(Z-table.minCharge())] = n;
+                    for(double ion : table.theoreticalIons(s, Z)) {
+                        out.writeDouble(ion);
+                        n++;
+                    }
+                }
+            }
+            index[(int)entries] = n;
+            out.flush();
+            
+            channel.position(0);
+            out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.write(key.getBytes(StandardCharsets.US_ASCII));
+            out.writeInt(table.speciesCount());
+            out.writeInt(table.minCharge());
+            out.writeInt(table.maxCharge());
+            out.write(new byte[HEADER-out.size()]);
+            for(long i : index) {
+                out.writeLong(i);
+            }
+            for(int s=0;s<table.speciesCount();s++) {
+                for(int Z=table.minCharge();Z<=table.maxCharge();Z++) {
+                    for(double ion : table.precursorIons(s, Z)) {
+                        out.writeDouble(ion);
+                    }
+                }
+            }
+            out.flush();
+        }
+        catch(IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    private long getLong(long position) {
+        return segments.get((int)(position/SEGMENT)).getLong((int)(position%SEGMENT));
+    }
+    
+    /* Absolute reads leave the shared buffer positions alone */
+    private double[] getDoubles(long position, int n) {
+        double[] values = new double[n];
+        for(int i=0;i<n;i++) {
+            long p = position+8L*i;
+            values[i] = segments.get((int)(p/SEGMENT)).getDouble((int)(p%SEGMENT));
+        }
+        return values;
+    }
+    
+    /**
+     * Reads the theoretical ions of a species at charges 1 through Z. Equal to
+     * SpeciesTable.theoreticalIons() without a library.
+     * 
+     * @param species Species index
+     * @param Z Charge state
+     * 
+     * @return Sorted theoretical ions
+     */
+    public double[] theoreticalIons(int species, int Z) {
+        long entry = (long)species*nCharges+(Z-minZ);
+        long from = getLong(HEADER+entry*8);
+        long to = getLong(HEADER+(entry+1)*8);
+        return getDoubles(ionStart+from*8, (int)(to-from));
+    }
+    
+    /**
+     * Reads the precursor ions of a species at a charge state. Equal to
+     * SpeciesTable.precursorIons() without a library.
+     * 
+     * @param species Species index
+     * @param Z Charge state
+     * 
+     * @return Sorted precursor ions
+     */
+    public double[] precursorIons(int species, int Z) {
+        long entry = (long)species*nCharges+(Z-minZ);
+        return getDoubles(precursorStart+entry*PRECURSORS*8, PRECURSORS);
+    }
+    
+    public String path() {
+        return path;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import java.util.Arrays;
+
+/**
+ * Generates the sorted theoretical ions of the modification variants of one
+ * peptide. The result is exactly that of IonFactory.getTheoreticalIons() 
+ * followed by Arrays.sort(), but computed with less work:<br>
+ * <ol>
+ * <li>The running b (prefix) and y (suffix) masses of a base variant of the
+ * peptide are kept. A variant only recomputes the prefix masses from its first
+ * residue with a different offset, and the suffix masses from its last one.</li>
+ * <li>Whether water and ammonia losses are probable is decided once per
+ * peptide instead of once per ion.</li>
+ * <li>Every ion series (b, b-H2O, a, y, y-H2O and y-NH3 at each charge) is
+ * ascending, so the series are merged instead of sorting all ions.</li>
+ * </ol>
+ * 
+ * Instances are not modified after construction and can be shared between
+ * threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class TheoreticalIonGenerator {
+    private final String sequence;
+    private final double[] residues;
+    private final double[] baseOffsets;
+    private final double[] basePrefix;
+    private final double[] baseSuffix;
+    private final boolean waterLoss;
+    private final boolean ammoniaLoss;
+    
+    /**
+     * @param sequence Peptide sequence
+     * @param baseOffsets Offsets of the variant other variants are computed
+     *        from, usually the one with only fixed modifications
+     */
+    public TheoreticalIonGenerator(String sequence, double[] baseOffsets) {
+        this.sequence = sequence;
+        this.baseOffsets = baseOffsets;
+        residues = new double[sequence.length()];
+        for(int i=0;i<residues.length;i++) {
+            residues[i] = Residues.getMI(sequence.charAt(i));
+        }
+        basePrefix = new double[residues.length];
+        baseSuffix = new double[residues.length];
+        prefix(baseOffsets, basePrefix, 0);
+        suffix(baseOffsets, baseSuffix, residues.length-1);
+        waterLoss = residues.length > 0 && IonFactory.probableWaterLoss(sequence);
+        ammoniaLoss = residues.length > 0 && IonFactory.probableAmmoniaLoss(sequence);
+    }
+    
+    /* Running b ion mass after residue i, accumulated in the same order as
+     * IonFactory so that the values are identical */
+    private void prefix(double[] offsets, double[] running, int from) {
+        double m = from == 0 ? 0.0 : running[from-1];
+        for(int i=from;i<residues.length-1;i++) {
+            m += residues[i];
+            m += offsets[i];
+            running[i] = m;
+        }
+    }
+    
+    /* Running y ion mass from the C-terminus down to residue i */
+    private void suffix(double[] offsets, double[] running, int from) {
+        double m = from == residues.length-1 ? 0.0 : running[from+1];
+        for(int i=from;i>0;i--) {
+            m += residues[i];
+            m += offsets[i];
+            running[i] = m;
+        }
+    }
+    
+    public String getSequence() {
+        return sequence;
+    }
+    
+    /**
+     * The theoretical ions of a variant at charges 1 through a maximum charge,
+     * in ascending order, with the charge of each. The sorted ions at any
+     * lower maximum charge are a subsequence of them, so they are taken from
+     * the ladder instead of being generated again.
+     */
+    public static class Ladder {
+        private final double[] ions;
+        private final byte[] charges;
+        private final int maxZ;
+        
+        private Ladder(double[] ions, byte[] charges, int maxZ) {
+            this.ions = ions;
+            this.charges = charges;
+            this.maxZ = maxZ;
+        }
+        
+        /**
+         * Takes the theoretical ions at charges 1 through z. Equal to
+         * getSortedIons(z, offsets) for the variant of the ladder.
+         * 
+         * @param z Maximum charge state, at most the charge of the ladder
+         * 
+         * @return Sorted theoretical ions
+         */
+        public double[] sortedIons(int z) {
+            if(z >= maxZ) {
+                return ions.clone();
+            }
+            int n = 0;
+            for(byte c : charges) {
+                if(c <= z) n++;
+            }
+            double[] view = new double[n];
+            n = 0;
+            for(int i=0;i<ions.length;i++) {
+                if(charges[i] <= z) view[n++] = ions[i];
+            }
+            return view;
+        }
+        
+        public int maxCharge() {
+            return maxZ;
+        }
+    }
+    
+    /* Charge of the ions of series k built by series(z, ...) */
+    private static int seriesCharge(int k, int z) {
+        return (k < 3*z ? k : k-3*z)/3+1;
+    }
+    
+    /* Builds each ion series (b, b-H2O and a at each charge, then y, y-H2O and
+     * y-NH3 at each charge) of a variant in ascending order. Series for losses
+     * that are not probable hold -1.0, as does IonFactory */
+    private double[][] series(int z, double[] offsets) {
+        int n = residues.length-1;
+        
+        /* Locate the first and last residue with an offset that differs from
+         * the base variant */
+        int first = -1;
+        int last = -1;
+        for(int i=0;i<offsets.length;i++) {
+            if(offsets[i] != baseOffsets[i]) {
+                if(first == -1) first = i;
+                last = i;
+            }
+        }
+        
+        double[] prefix = basePrefix;
+        double[] suffix = baseSuffix;
+        if(first != -1) {
+            prefix = basePrefix.clone();
+            suffix = baseSuffix.clone();
+            prefix(offsets, prefix, first);
+            suffix(offsets, suffix, last);
+        }
+        
+        int nSeries = 6*z;
+        double[][] series = new double[nSeries][n];
+        int s = 0;
+        for(int j=1;j<=z;j++) {
+            double[] b = series[s++];
+            double[] bw = series[s++];
+            double[] a = series[s++];
+            for(int i=0;i<n;i++) {
+                double ion_mass = prefix[i]+IonFactory.isotopeOffset(prefix[i]);
+                b[i] = IonFactory.applyCharge(ion_mass,j);
+                if(waterLoss) {
+                    ion_mass = IonFactory.removeWater(ion_mass);
+                    bw[i] = IonFactory.applyCharge(ion_mass,j);
+                    ion_mass = IonFactory.addWater(ion_mass);
+                }
+                else {
+                    bw[i] = -1.0;
+                }
+                ion_mass = IonFactory.removeCarbonMonoxide(ion_mass);
+                a[i] = IonFactory.applyCharge(ion_mass,j);
+            }
+        }
+        for(int j=1;j<=z;j++) {
+            double[] y = series[s++];
+            double[] yw = series[s++];
+            double[] yn = series[s++];
+            
+            /* y ions are generated from the C-terminus, so series index k 
+             * holds the ion ending at residue n-k */
+            for(int k=0;k<n;k++) {
+                int i = n-k;
+                double ion_mass = IonFactory.addWater(suffix[i]);
+                y[k] = IonFactory.applyCharge(ion_mass,j);
+                if(waterLoss) {
+                    ion_mass = IonFactory.removeWater(ion_mass);
+                    yw[k] = IonFactory.applyCharge(ion_mass,j);
+                    ion_mass = IonFactory.addWater(ion_mass);
+                }
+                else {
+                    yw[k] = -1.0;
+                }
+                if(ammoniaLoss) {
+                    ion_mass = IonFactory.removeAmmonia(ion_mass);
+                    yn[k] = IonFactory.applyCharge(ion_mass,j);
+                }
+                else {
+                    yn[k] = -1.0;
+                }
+            }
+        }
+        return series;
+    }
+    
+    /* A negative offset can in principle make a series descend */
+    private static boolean ascending(double[][] series) {
+        for(double[] values : series) {
+            for(int i=1;i<values.length;i++) {
+                if(values[i-1] > values[i]) return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Generates the theoretical ions of a variant of the peptide at charges 1
+     * through z, in ascending order. Ions that are not probable are included
+     * as -1.0, as in IonFactory.getTheoreticalIons().
+     * 
+     * @param z Maximum charge state
+     * @param offsets Mass offset at each residue of the variant
+     * 
+     * @return Sorted theoretical ions
+     */
+    public double[] getSortedIons(int z, double[] offsets) {
+        int n = residues.length-1;
+        if(n <= 0) {
+            return new double[0];
+        }
+        
+        /* Merge the ascending series, or fall back to sorting */
+        double[][] series = series(z, offsets);
+        if(!ascending(series)) {
+            double[] ions = new double[series.length*n];
+            for(int k=0;k<series.length;k++) {
+                System.arraycopy(series[k], 0, ions, k*n, n);
+            }
+            Arrays.sort(ions);
+            return ions;
+        }
+        
+        return merge(series, 0, series.length);
+    }
+    
+    /**
+     * Generates the theoretical ions of a variant of the peptide at charges 1
+     * through z as a ladder, from which the ions at every lower charge can
+     * be taken.
+     * 
+     * @param z Maximum charge state
+     * @param offsets Mass offset at each residue of the variant
+     * 
+     * @return Ladder of the sorted theoretical ions
+     */
+    public Ladder getLadder(int z, double[] offsets) {
+        int n = residues.length-1;
+        if(n <= 0) {
+            return new Ladder(new double[0], new byte[0], z);
+        }
+        
+        double[][] series = series(z, offsets);
+        double[] ions = new double[series.length*n];
+        byte[] charges = new byte[ions.length];
+        if(ascending(series)) {
+            /* Merge the series pairwise, carrying the charges along */
+            byte[][] seriesCharges = new byte[series.length][n];
+            for(int k=0;k<series.length;k++) {
+                Arrays.fill(seriesCharges[k], (byte)seriesCharge(k, z));
+            }
+            mergeLadder(series, seriesCharges, 0, series.length, ions, charges);
+        }
+        else {
+            /* Sort the ions with their charges, in the order of Arrays.sort */
+            Integer[] order = new Integer[ions.length];
+            for(int i=0;i<order.length;i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a,b) -> Double.compare(series[a/n][a%n], series[b/n][b%n]));
+            for(int i=0;i<order.length;i++) {
+                ions[i] = series[order[i]/n][order[i]%n];
+                charges[i] = (byte)seriesCharge(order[i]/n, z);
+            }
+        }
+        return new Ladder(ions, charges, z);
+    }
+    
+    /* Merges series [from,to) and their charges into ions and charges */
+    private static void mergeLadder(double[][] series, byte[][] seriesCharges, int from, int to, double[] ions, byte[] charges) {
+        if(to-from == 1) {
+            System.arraycopy(series[from], 0, ions, 0, series[from].length);
+            System.arraycopy(seriesCharges[from], 0, charges, 0, series[from].length);
+            return;
+        }
+        int mid = (from+to) >>> 1;
+        int nLeft = 0;
+        for(int k=from;k<mid;k++) nLeft += series[k].length;
+        int nRight = 0;
+        for(int k=mid;k<to;k++) nRight += series[k].length;
+        double[] left = new double[nLeft];
+        byte[] leftCharges = new byte[nLeft];
+        double[] right = new double[nRight];
+        byte[] rightCharges = new byte[nRight];
+        mergeLadder(series, seriesCharges, from, mid, left, leftCharges);
+        mergeLadder(series, seriesCharges, mid, to, right, rightCharges);
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while(i < nLeft && j < nRight) {
+            if(left[i] <= right[j]) {
+                charges[k] = leftCharges[i];
+                ions[k++] = left[i++];
+            }
+            else {
+                charges[k] = rightCharges[j];
+                ions[k++] = right[j++];
+            }
+        }
+        while(i < nLeft) {
+            charges[k] = leftCharges[i];
+            ions[k++] = left[i++];
+        }
+        while(j < nRight) {
+            charges[k] = rightCharges[j];
+            ions[k++] = right[j++];
+        }
+    }
+    
+    /* Merges series [from,to) by merging halves recursively */
+    private static double[] merge(double[][] series, int from, int to) {
+        if(to-from == 1) {
+            return series[from];
+        }
+        int mid = (from+to) >>> 1;
+        double[] left = merge(series, from, mid);
+        double[] right = merge(series, mid, to);
+        double[] merged = new double[left.length+right.length];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while(i < left.length && j < right.length) {
+            merged[k++] = left[i] <= right[j] ? left[i++] : right[j++];
+        }
+        while(i < left.length) {
+            merged[k++] = left[i++];
+        }
+        while(j < right.length) {
+            merged[k++] = right[j++];
+        }
+        return merged;
+    }
+}
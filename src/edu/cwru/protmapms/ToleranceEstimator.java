@@ -0,0 +1,187 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.math.Quantize;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Learns the MS1 and MS2 mass errors of a set of spectrum files from the
+ * identifications of a search run with wide tolerances. The precursor error
+ * of each identification is the difference between the precursor m/z of its
+ * scan and that of its species, and its fragment errors are the differences
+ * between each matched scan peak and the closest theoretical ion.<br><br>
+ * 
+ * Only the better scoring half of the identifications is used, as the
+ * weaker matches of a wide search hold most of the chance matches. The
+ * learned tolerance of each error is its absolute median plus a number of
+ * robust standard deviations (1.4826 times the median absolute deviation),
+ * so a few matches far from the rest do not widen it. A tolerance is never
+ * learned wider than the one the sample was searched with.
+ * 
+ * @author Sean Maxwell
+ */
+public class ToleranceEstimator {
+    /* Identifications needed in the better scoring half */
+    public static final int MIN_IDENTIFICATIONS = 20;
+    private static final double SPREAD = 4.0;
+    private static final int MIN_PPM = 1;
+    private static final double MIN_FRAGMENT_ERROR = 0.005;
+    
+    private final List<Double> scores;
+    private final List<Double> precursorErrors;
+    private final List<double[]> fragmentErrors;
+    
+    public ToleranceEstimator() {
+        scores = new ArrayList<>();
+        precursorErrors = new ArrayList<>();
+        fragmentErrors = new ArrayList<>();
+    }
+    
+    /**
+     * Records the mass errors of an identification.
+     * 
+     * @param identification Identification, with its theoretical ions
+     * @param theoreticalMz Precursor m/z of the identified species
+     * @param observedMz Precursor m/z of the identified scan
+     * @param theoreticalIons Sorted theoretical ions of the identified species
+     */
+    public void add(Identification identification, double theoreticalMz, double observedMz, double[] theoreticalIons) {
+        scores.add(identification.getScore());
+        precursorErrors.add((observedMz-theoreticalMz)/theoreticalMz*1e6);
+        
+        /* The alignment snaps each matched theoretical ion onto the scan
+         * peak it matched, so the error of a match is the distance from that
+         * peak to the closest theoretical ion */
+        MSMSIons matched = identification.getTheoreticalIons();
+        double[] errors = new double[matched.size()];
+        for(int i=0;i<matched.size();i++) {
+            double mz = matched.mz[i];
+            int k = Arrays.binarySearch(theoreticalIons, mz);
+            if(k >= 0) {
+                continue;
+            }
+            k = -k-1;
+            double below = k > 0 ? mz-theoreticalIons[k-1] : Double.POSITIVE_INFINITY;
+            double above = k < theoreticalIons.length ? mz-theoreticalIons[k] : Double.NEGATIVE_INFINITY;
+            errors[i] = Math.abs(below) <= Math.abs(above) ? below : above;
+        }
+        fragmentErrors.add(errors);
+    }
+    
+    /**
+     * @return Number of identifications recorded
+     */
+    public int size() {
+        return scores.size();
+    }
+    
+    /* The identifications that score at least the median score */
+    private boolean[] best() {
+        double median = Quantize.median(new ArrayList<>(scores));
+        boolean[] best = new boolean[scores.size()];
+        for(int i=0;i<best.length;i++) {
+            best[i] = Double.compare(scores.get(i), median) >= 0;
+        }
+        return best;
+    }
+    
+    /**
+     * @return Whether enough identifications were recorded to learn from
+     */
+    public boolean isSufficient() {
+        int n = 0;
+        for(boolean b : best()) {
+            if(b) n++;
+        }
+        return n >= MIN_IDENTIFICATIONS;
+    }
+    
+    /**
+     * Computes the absolute median of a set of errors plus SPREAD robust
+     * standard deviations.
+     * 
+     * @param errors Errors
+     * 
+     * @return Bound on the absolute error
+     */
+    public static double bound(ArrayList<Double> errors) {
+        double median = Quantize.median(new ArrayList<>(errors));
+        ArrayList<Double> deviations = new ArrayList<>(errors.size());
+        for(double e : errors) {
+            deviations.add(Math.abs(e-median));
+        }
+        return Math.abs(median)+SPREAD*1.4826*Quantize.median(deviations);
+    }
+    
+    /**
+     * Learns the MS1 error, rounded up to a whole number of ppm.
+     * 
+     * @param configured MS1 error the sample was searched with, in ppm
+     * 
+     * @return Learned MS1 error in ppm, or the configured error if too few
+     *         identifications were recorded
+     */
+    public int precursorTolerancePpm(int configured) {
+        if(!isSufficient()) {
+            return configured;
+        }
+        boolean[] best = best();
+        ArrayList<Double> errors = new ArrayList<>();
+        for(int i=0;i<best.length;i++) {
+            if(best[i]) errors.add(precursorErrors.get(i));
+        }
+        int ppm = (int)Math.ceil(bound(errors));
+        return Math.min(configured, Math.max(MIN_PPM, ppm));
+    }
+    
+    /**
+     * Learns the MS2 error, rounded up to a thousandth of a Dalton.
+     * 
+     * @param configured MS2 error the sample was searched with, in Daltons
+     * 
+     * @return Learned MS2 error in Daltons, or the configured error if too
+     *         few identifications were recorded
+     */
+    public double fragmentTolerance(double configured) {
+        if(!isSufficient()) {
+            return configured;
+        }
+        boolean[] best = best();
+        ArrayList<Double> errors = new ArrayList<>();
+        for(int i=0;i<best.length;i++) {
+            if(!best[i]) continue;
+            for(double e : fragmentErrors.get(i)) {
+                errors.add(e);
+            }
+        }
+        if(errors.isEmpty()) {
+            return configured;
+        }
+        double da = Math.ceil(bound(errors)*1000)/1000.0;
+        return Math.min(configured, Math.max(MIN_FRAGMENT_ERROR, da));
+    }
+}
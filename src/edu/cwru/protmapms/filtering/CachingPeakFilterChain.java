@@ -0,0 +1,239 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.filtering;
+
+import edu.cwru.protmapms.metrics.SearchMetrics;
+import edu.cwru.protmapms.spectra.Peaks;
+import edu.cwru.protmapms.spectra.SpectrumFile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A filter chain that caches the filtered peaks of recently used scans. The
+ * filters that only depend on the scan (the noise-modeling filter by default)
+ * are applied first, and their output is cached per scan. The filters that
+ * depend on the species being scored (precursor removal by default) are then
+ * applied on top of the cached peaks for each call. As a result the noise
+ * model is computed once per scan instead of once per species matched to the
+ * scan.<br><br>
+ * 
+ * Note that this applies the noise-modeling filter before precursor removal,
+ * the reverse of StandardPeakFilterChain, so the noise model is fit to all of
+ * the scan peaks including the precursor ions.<br><br>
+ * 
+ * The cache holds at most a fixed number of scans and evicts the least 
+ * recently used scan first. It is safe to use from several threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class CachingPeakFilterChain implements PeakFilterChain {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingPeakFilterChain.class);
+    private static final Peaks NO_PEAKS = new Peaks(0);
+    private final ArrayList<PeakFilter> scanFilters;
+    private final ArrayList<PeakFilter> speciesFilters;
+    private final Map<String,Peaks> cache;
+    private long hits;
+    private long misses;
+    
+    /**
+     * Creates a chain applying the noise-modeling filter per scan and
+     * precursor removal per species.
+     * 
+     * @param capacity Maximum number of scans to hold in the cache
+     */
+    public CachingPeakFilterChain(final int capacity) {
+        scanFilters = new ArrayList<>();
+        speciesFilters = new ArrayList<>();
+        scanFilters.add(new NoiseModelingPeakFilter());
+        speciesFilters.add(new PrecursorIonFilter());
+        cache = new LinkedHashMap<String,Peaks>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Peaks> eldest) {
+                return size() > capacity;
+            }
+        };
+        hits = 0;
+        misses = 0;
+    }
+    
+    /**
+     * Adds a filter to the chain. Parameterized filters depend on the species
+     * being scored and are applied after the cached filters.
+     * 
+     * @param filter Filter to add
+     */
+    public void add(PeakFilter filter) {
+        if(filter.isParameterized()) {
+            speciesFilters.add(filter);
+        }
+        else {
+            scanFilters.add(filter);
+        }
+    }
+    
+    private Peaks filterScan(Peaks peaks) throws Exception {
+        long started = System.nanoTime();
+        Peaks filteredPeaks = peaks;
+        for(PeakFilter peakFilter : scanFilters) {
+            filteredPeaks = peakFilter.filter(filteredPeaks);
+        }
+        SearchMetrics.FILTER.recordSince(started);
+        return filteredPeaks;
+    }
+    
+    /**
+     * Applies the filters that depend on the species being scored to peaks
+     * returned by scanPeaks().
+     * 
+     * @param peaks Peaks returned by scanPeaks()
+     * @param precursorIons Sorted precursor ions of the species
+     * @param ms2Err MS2 error in Daltons
+     * 
+     * @return Filtered peaks
+     * 
+     * @throws Exception if the peaks cannot be filtered
+     */
+    public Peaks filterSpecies(Peaks peaks, double[] precursorIons, double ms2Err) throws Exception {
+        long started = System.nanoTime();
+        Peaks filteredPeaks = peaks;
+        for(PeakFilter peakFilter : speciesFilters) {
+            filteredPeaks = peakFilter.filter(filteredPeaks, precursorIons, ms2Err);
+        }
+        SearchMetrics.FILTER_SPECIES.recordSince(started);
+        return filteredPeaks;
+    }
+    
+    @Override
+    public Peaks filter(Peaks peaks, double[] precursorIons, double ms2Err) throws Exception {
+        return filterSpecies(filterScan(peaks), precursorIons, ms2Err);
+    }
+    
+    /**
+     * Loads a scan and applies the filters that only depend on the scan,
+     * using the cached result if the scan has been filtered recently.
+     * 
+     * @param sf Spectrum file containing the scan
+     * @param scan Scan number
+     * 
+     * @return Filtered scan peaks, or null if the scan has no peaks
+     * 
+     * @throws Exception if the scan cannot be read or filtered
+     */
+    public Peaks scanPeaks(SpectrumFile sf, int scan) throws Exception {
+        String key = sf.file()+"#"+scan;
+        Peaks scanPeaks;
+        synchronized(cache) {
+            scanPeaks = cache.get(key);
+            if(scanPeaks != null) {
+                hits++;
+                SearchMetrics.PEAK_CACHE_HITS.increment();
+            }
+            else {
+                misses++;
+                SearchMetrics.PEAK_CACHE_MISSES.increment();
+            }
+        }
+        
+        /* Filter outside the lock so that other threads are not held up. Two
+         * fetch threads of a spectrum file may miss on the same scan at once
+         * and both filter it, which only costs time: the filtered peaks are
+         * the same, and the second put replaces the first */
+        if(scanPeaks == null) {
+            Peaks peaks = sf.getScanPeaks(scan);
+            scanPeaks = peaks.MZ.length == 0 ? NO_PEAKS : filterScan(peaks);
+            synchronized(cache) {
+                cache.put(key, scanPeaks);
+            }
+        }
+        
+        /* Strange edge case where MS2 scan has a precursor ion, but no m/z 
+         * intensity data */
+        if(scanPeaks == NO_PEAKS) {
+            return null;
+        }
+        
+        return scanPeaks;
+    }
+    
+    /**
+     * Marks the peaks of a scan that the species-dependent filters would
+     * remove, so that a scan filtered once by scanPeaks() can be scored
+     * against many species without copying it.
+     * 
+     * @param scanPeaks Peaks returned by scanPeaks()
+     * @param precursorIons Sorted precursor ions of the species
+     * @param ms2Err MS2 error in Daltons
+     * 
+     * @return For each peak, true if it is removed for this species
+     * 
+     * @throws Exception if the peaks cannot be filtered
+     */
+    public boolean[] exclude(Peaks scanPeaks, double[] precursorIons, double ms2Err) throws Exception {
+        long started = System.nanoTime();
+        boolean[] excluded = new boolean[scanPeaks.MZ.length];
+        for(PeakFilter peakFilter : speciesFilters) {
+            boolean[] e = peakFilter.exclude(scanPeaks, precursorIons, ms2Err);
+            for(int i=0;i<excluded.length;i++) {
+                excluded[i] |= e[i];
+            }
+        }
+        SearchMetrics.FILTER_SPECIES.recordSince(started);
+        return excluded;
+    }
+    
+    @Override
+    public Peaks filter(SpectrumFile sf, int scan, double[] precursorIons, double ms2Err) throws Exception {
+        Peaks scanPeaks = scanPeaks(sf, scan);
+        if(scanPeaks == null) {
+            return null;
+        }
+        return filterSpecies(scanPeaks, precursorIons, ms2Err);
+    }
+    
+    /**
+     * @return Number of calls that found the scan in the cache
+     */
+    public long getHits() {
+        synchronized(cache) {
+            return hits;
+        }
+    }
+    
+    /**
+     * @return Number of calls that had to load and filter the scan
+     */
+    public long getMisses() {
+        synchronized(cache) {
+            return misses;
+        }
+    }
+    
+    public void logStatistics() {
+        LOGGER.info("Filtered peaks cache: {} hits, {} misses",getHits(),getMisses());
+    }
+}
@@ -41,6 +41,37 @@ public abstract class PeakFilter {
         throw new UnsupportedOperationException("The method has not be Overriden");
     }
     
+    /**
+     * Marks the peaks a parameterized filter would remove, without copying
+     * the peaks that remain. Filters that do not override it are run through
+     * filter(), and the peaks missing from its output are marked. That
+     * output must keep the remaining peaks in their original order.
+     * 
+     * @param peaks Peaks to filter
+     * @param forbidden Sorted values that select the peaks to remove
+     * @param window Distance from a forbidden value within which a peak is
+     *        removed
+     * 
+     * @return For each peak, true if the filter would remove it
+     * 
+     * @throws Exception if the peaks cannot be filtered
+     */
+    public boolean[] exclude(Peaks peaks, double[] forbidden, double window) throws Exception {
+        boolean[] excluded = new boolean[peaks.MZ.length];
+        Peaks kept = filter(peaks, forbidden, window);
+        int j = 0;
+        for(int i=0;i<excluded.length;i++) {
+            if(kept != null && j < kept.MZ.length &&
+               kept.MZ[j] == peaks.MZ[i] && kept.Intensity[j] == peaks.Intensity[i]) {
+                j++;
+            }
+            else {
+                excluded[i] = true;
+            }
+        }
+        return excluded;
+    }
+    
     public boolean isParameterized() {
         return parameterized;
     }
@@ -23,6 +23,7 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 package edu.cwru.protmapms.filtering;
 
 import edu.cwru.protmapms.spectra.Peaks;
+import edu.cwru.protmapms.spectra.SpectrumFile;
 
 /**
  * Downstream analyses apply a filter chain to peak data, and unique workflows 
@@ -32,4 +33,25 @@ import edu.cwru.protmapms.spectra.Peaks;
  */
 public interface PeakFilterChain {
     public Peaks filter(Peaks peaks, double[] precursors, double ms2Error) throws Exception;
+    
+    /**
+     * Loads a scan from a spectrum file and filters its peaks. Chains that can
+     * reuse work between calls for the same scan override this method.
+     * 
+     * @param sf Spectrum file containing the scan
+     * @param scan Scan number
+     * @param precursors Sorted precursor ions of the species being scored
+     * @param ms2Error MS2 error in Daltons
+     * 
+     * @return Filtered peaks, or null if the scan has no peaks
+     * 
+     * @throws Exception if the scan cannot be read or filtered
+     */
+    public default Peaks filter(SpectrumFile sf, int scan, double[] precursors, double ms2Error) throws Exception {
+        Peaks peaks = sf.getScanPeaks(scan);
+        if(peaks.MZ.length == 0) {
+            return null;
+        }
+        return filter(peaks, precursors, ms2Error);
+    }
 }
@@ -25,9 +25,6 @@ package edu.cwru.protmapms.filtering;
 import edu.cwru.protmapms.math.SortedArraysAligner;
 import edu.cwru.protmapms.spectra.Peaks;
 
-import java.util.HashSet;
-import java.util.Set;
-
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,32 +41,37 @@ public class PrecursorIonFilter extends PeakFilter {
         parameterized = true;
     }
     
-    private Set<Integer> toSet(int[] indices) {
-        Set<Integer> r = new HashSet();
-        for(int index : indices) {
-            r.add(index);
+    @Override
+    public boolean[] exclude(Peaks rawPeaks, double[] precursors, double error) throws Exception {
+        boolean[] excluded = new boolean[rawPeaks.MZ.length];
+        for(int index : SortedArraysAligner.getInRangePairs(rawPeaks.MZ, precursors, error)[0]) {
+            excluded[index] = true;
         }
-        return r;
+        return excluded;
     }
     
     @Override
     public Peaks filter(Peaks rawPeaks, double[] precursors, double error) throws Exception {
         /* Remove the precursor ions from the raw peak data */
-        Set<Integer> precursorIndexSet = toSet(SortedArraysAligner.getInRangePairs(rawPeaks.MZ, precursors, error)[0]);
+        boolean[] excluded = exclude(rawPeaks, precursors, error);
+        int nExcluded = 0;
+        for(boolean e : excluded) {
+            if(e) nExcluded++;
+        }
         
-        double[] pcRemovedMz = new double[rawPeaks.MZ.length-precursorIndexSet.size()];
-        double[] pcRemovedInt = new double[rawPeaks.MZ.length-precursorIndexSet.size()];
+        double[] pcRemovedMz = new double[rawPeaks.MZ.length-nExcluded];
+        double[] pcRemovedInt = new double[rawPeaks.MZ.length-nExcluded];
         int j=0;
         int removed = 0;
         for(int i=0;i<rawPeaks.MZ.length;i++) {
-            if(!precursorIndexSet.contains(i)) {
+            if(!excluded[i]) {
                 pcRemovedMz[j]=rawPeaks.MZ[i];
                 pcRemovedInt[j]=rawPeaks.Intensity[i];
                 j++;
             }
             else {
                 removed++;
-                LOGGER.trace("Removing precursor ion {} of {} from spectrum",rawPeaks.MZ[i],precursorIndexSet.size());
+                LOGGER.trace("Removing precursor ion {} of {} from spectrum",rawPeaks.MZ[i],nExcluded);
             }
         }
         
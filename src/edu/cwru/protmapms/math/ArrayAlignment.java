@@ -23,50 +23,84 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 package edu.cwru.protmapms.math;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * Stores the result of aligning two arrays. This needs to be improved by either
  * making it more generic, or making it less generic, but right now it is too
- * in between.
+ * in between.<br><br>
+ * 
+ * Values are stored in primitive arrays, of which the first size elements are
+ * used. The arrays are allocated at the capacity given to the constructor and
+ * only grow if more values are added.
  * 
  * @author Sean Maxwell
  */
 public class ArrayAlignment {
-    public List<Double> theoreticalIntensities;
-    public List<Double> observedIntensities;
-    public List<Double> observedMzValues;
-    public List<Double> theoreticalMzValues;
+    public double[] theoreticalIntensities;
+    public double[] observedIntensities;
+    public double[] observedMzValues;
+    public double[] theoreticalMzValues;
+    public int size;
     public int count;
-    public Double maxIntensity;
+    public double maxIntensity;
     
-    public ArrayAlignment() {
-        theoreticalIntensities = new ArrayList<>();
-        observedIntensities = new ArrayList<>();
-        observedMzValues = new ArrayList<>();
-        theoreticalMzValues = new ArrayList<>();
+    public ArrayAlignment(int capacity) {
+        theoreticalIntensities = new double[capacity];
+        observedIntensities = new double[capacity];
+        observedMzValues = new double[capacity];
+        theoreticalMzValues = new double[capacity];
+        size = 0;
         count = 0;
         maxIntensity = 0.0;
     }
     
-    public void add(Double theoreticalMZ, Double theoreticalInt, Double observedMz, Double observedInt) {
-        theoreticalIntensities.add(theoreticalInt);
-        observedIntensities.add(observedInt);
-        observedMzValues.add(observedMz);
-        theoreticalMzValues.add(theoreticalMZ);
+    public ArrayAlignment() {
+        this(16);
+    }
+    
+    public void add(double theoreticalMZ, double theoreticalInt, double observedMz, double observedInt) {
+        if(size == observedIntensities.length) {
+            int capacity = Math.max(16, size*2);
+            theoreticalIntensities = Arrays.copyOf(theoreticalIntensities, capacity);
+            observedIntensities = Arrays.copyOf(observedIntensities, capacity);
+            observedMzValues = Arrays.copyOf(observedMzValues, capacity);
+            theoreticalMzValues = Arrays.copyOf(theoreticalMzValues, capacity);
+        }
+        theoreticalIntensities[size] = theoreticalInt;
+        observedIntensities[size] = observedInt;
+        observedMzValues[size] = observedMz;
+        theoreticalMzValues[size] = theoreticalMZ;
+        size++;
         
         if(theoreticalMZ != 0.0)
             count++;
         
-        if(observedInt.compareTo(maxIntensity) > 0) 
+        if(observedInt > maxIntensity) 
             maxIntensity=observedInt;
     }
     
+    /**
+     * Copies the first size elements of one of the value arrays to a list.
+     * 
+     * @param values One of the value arrays of this alignment
+     * 
+     * @return Boxed copy of the used part of the array
+     */
+    public List<Double> toList(double[] values) {
+        List<Double> l = new ArrayList<>(size);
+        for(int i=0;i<size;i++) {
+            l.add(values[i]);
+        }
+        return l;
+    }
+    
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("X1\tY1\tX2\tY2\n");
-        for(int i=0;i<observedIntensities.size();i++) {
-            sb.append(String.format("%.2f\t%.2f\t%.2f\t%.2f\n",theoreticalMzValues.get(i),theoreticalIntensities.get(i),observedMzValues.get(i),observedIntensities.get(i)));
+        for(int i=0;i<size;i++) {
+            sb.append(String.format("%.2f\t%.2f\t%.2f\t%.2f\n",theoreticalMzValues[i],theoreticalIntensities[i],observedMzValues[i],observedIntensities[i]));
         }
         return sb.toString();
     }
@@ -142,7 +142,13 @@ public class IntervalTree {
      * 
      * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * * **/
     private IntervalNode root;
-    private int nHits;
+    
+    /* Accumulates the IDs found by one call to find(). Kept per call rather
+     * than on the tree so concurrent lookups do not interfere */
+    private class Hits {
+        public int[] ids = new int[100];
+        public int n = 0;
+    }
     
     private int[] extendIDs(int[] ids) {
         int[] more = new int[ids.length+100];
@@ -316,54 +322,51 @@ public class IntervalTree {
      * @return List of IDs that the argument value falls within.
      */
     public int[] find(double v) {
-        nHits = 0;
-        int[] hits;
+        Hits hits;
         
         if(root == null) {
             return new int[0];
         }
         else {
-            hits = new int[100];
-            hits = rFind(root,v,hits);
-            return trimIDs(hits,nHits);
+            hits = new Hits();
+            rFind(root,v,hits);
+            return trimIDs(hits.ids,hits.n);
         }
     }
     
-    private int[] rFind(IntervalNode node, double v, int[] hits) {
+    private void rFind(IntervalNode node, double v, Hits hits) {
         if(v >= node.low() && v <= node.high()) {
-            hits[nHits] = node.id();
-            nHits++;
-            if(nHits == hits.length) {
-                hits = extendIDs(hits);
+            hits.ids[hits.n] = node.id();
+            hits.n++;
+            if(hits.n == hits.ids.length) {
+                hits.ids = extendIDs(hits.ids);
             }
             
             if(node.leftChild() != null) {
-                hits = rFind(node.leftChild(),v,hits);
+                rFind(node.leftChild(),v,hits);
             }
             
             if(node.middleChild() != null) {
-                hits = rFind(node.middleChild(),v,hits);
+                rFind(node.middleChild(),v,hits);
             }
             
             if(node.rightChild() != null) {
-                hits = rFind(node.rightChild(),v,hits);
+                rFind(node.rightChild(),v,hits);
             }
         }
         else if(v < node.low()) {
             if(node.leftChild() != null) {
-                hits = rFind(node.leftChild(),v,hits);
+                rFind(node.leftChild(),v,hits);
             }
         }
         else if(v > node.high()) {
             if(node.rightChild() != null) {
-                hits = rFind(node.rightChild(),v,hits);
+                rFind(node.rightChild(),v,hits);
             }
         }
         else {
             System.err.printf("Strange execution finding %f\n",v);
         }
-        
-        return hits;
     }
     
 }
@@ -54,5 +54,38 @@ public class PearsonCorrelation {
         }
         return(XY/(Math.sqrt(X)*Math.sqrt(Y)));
     }
+    
+    /**
+     * Computes the Pearson correlation coefficient between the first n values
+     * of two arrays, without allocating any objects.
+     * 
+     * @param xs First array of values
+     * @param ys Second array of values
+     * @param n Number of values to use from each array
+     * 
+     * @return Pearson correlation coefficient
+     */
+    public static double pearsonCorrelationCoefficient(double[] xs, double[] ys, int n) {
+        double eX = 0.0;
+        double eY = 0.0;
+        for(int i=0;i<n;i++) {
+            eX += xs[i];
+            eY += ys[i];
+        }
+        eX = eX/n;
+        eY = eY/n;
+        
+        double XY = 0.0;
+        double X = 0.0;
+        double Y = 0.0;
+        for(int i=0;i<n;i++) {
+            double dx = xs[i]-eX;
+            double dy = ys[i]-eY;
+            XY += dx*dy;
+            X += dx*dx;
+            Y += dy*dy;
+        }
+        return(XY/(Math.sqrt(X)*Math.sqrt(Y)));
+    }
    
 }
@@ -0,0 +1,109 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.math;
+
+import java.util.Arrays;
+
+/**
+ * Computes the order that sorts an array of primitive values, without boxing
+ * the indexes of the values to sort them with a comparator. Values are mapped
+ * to long keys whose signed order is their order, the keys are sorted as
+ * primitives, and each index is then placed at the first sorted position of
+ * its key not yet taken. Equal values keep the order of their indexes, as
+ * with a stable sort.
+ *
+ * @author Sean Maxwell
+ */
+public class SortOrder {
+    /**
+     * Finds the order of values in ascending order, as Double.compare()
+     * orders them.
+     *
+     * @param values Values to order
+     *
+     * @return Indexes of the values, in ascending order of value
+     */
+    public static int[] ascending(double[] values) {
+        long[] keys = new long[values.length];
+        for(int i=0;i<keys.length;i++) {
+            /* Flip the magnitude bits of negative values, so that the signed
+             * order of the bits is the order of the values */
+            long bits = Double.doubleToLongBits(values[i]);
+            keys[i] = bits ^ ((bits >> 63) & Long.MAX_VALUE);
+        }
+        return ascending(keys);
+    }
+    
+    /**
+     * Finds the order of values in descending order.
+     *
+     * @param values Values to order
+     *
+     * @return Indexes of the values, in descending order of value
+     */
+    public static int[] descending(long[] values) {
+        long[] keys = new long[values.length];
+        for(int i=0;i<keys.length;i++) {
+            keys[i] = ~values[i];
+        }
+        return ascending(keys);
+    }
+    
+    /**
+     * Finds the order of values in ascending order.
+     *
+     * @param values Values to order
+     *
+     * @return Indexes of the values, in ascending order of value
+     */
+    public static int[] ascending(long[] values) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        
+        /* Positions taken so far from the first sorted position of each
+         * value */
+        int[] taken = new int[sorted.length];
+        int[] order = new int[sorted.length];
+        for(int i=0;i<values.length;i++) {
+            int first = lowerBound(sorted, values[i]);
+            order[first+taken[first]++] = i;
+        }
+        return order;
+    }
+    
+    /* First position in sorted of a value of at least v */
+    private static int lowerBound(long[] sorted, long v) {
+        int lo = 0;
+        int hi = sorted.length;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(sorted[mid] < v) {
+                lo = mid+1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+}
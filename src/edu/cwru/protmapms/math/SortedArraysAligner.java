@@ -22,6 +22,8 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms.math;
 
+import java.util.Arrays;
+
 /**
  * Aligns two arrays of values, returning either the aligned values, or
  * pairs of indices for each aligned value.
@@ -121,7 +123,7 @@ public class SortedArraysAligner {
          * matched. We want to "snap" the values of Y onto X where a match was
          * made, which is why below we add the value of X[i] to both alignments.
          * */
-        ArrayAlignment alignment = new ArrayAlignment();
+        ArrayAlignment alignment = new ArrayAlignment(X.length);
         for(int i=0;i<matches.length;i++) {
             if(matches[i] != -1) 
                 //alignment.add(Y[matches[i]], 1.0, X[i], Xd[i]);
@@ -132,6 +134,187 @@ public class SortedArraysAligner {
         return alignment;
     }
     
+    /**
+     * Aligns values X to each of several arrays Ys[k] using the criteria of
+     * alignClosestDependent(double[],double[],double[],double). Instead of
+     * walking X once per array, the values of all the Ys arrays are merged in
+     * ascending order and X is walked once for all of them, which is cheaper
+     * when many arrays are aligned to the same X.<br><br>
+     * 
+     * Values of X can be excluded from the alignment to a single array. The
+     * result is then the same as aligning that array to a copy of X with the
+     * excluded values removed.
+     * 
+     * @param X Values to align to each Ys[k], in ascending order
+     * @param Xd Dependent variable corresponding to each X[i]
+     * @param Ys Arrays of values to be aligned to, each in ascending order
+     * @param excluded If excluded[k][i] is true, X[i] is left out of the
+     *        alignment to Ys[k]. Either excluded or excluded[k] may be null.
+     * @param maxDifference Maximum difference between X and Y that is allowed
+     * @return The aligned arrays, one for each array in Ys
+     * @throws Exception If X or any Ys[k] is not in ascending order
+     */
+    public static ArrayAlignment[] alignClosestDependent(double[] X, double[] Xd, double[][] Ys, boolean[][] excluded, double maxDifference) throws Exception {
+        for(int i=0;i<X.length-1;i++) {
+            if(X[i] > X[i+1])
+                throw new Exception("Argument array X is not sorted");
+        }
+        
+        /* One match array and one position in X per array in Ys */
+        int[][] matches = new int[Ys.length][X.length];
+        int[] lastMatch = new int[Ys.length];
+        for(int k=0;k<Ys.length;k++) {
+            Arrays.fill(matches[k], -1);
+        }
+        
+        /* Min-heap of the arrays in Ys, ordered by their next value, used to
+         * visit the values of all arrays in ascending order */
+        int[] next = new int[Ys.length];
+        int[] heap = new int[Ys.length];
+        int heapSize = 0;
+        for(int k=0;k<Ys.length;k++) {
+            if(Ys[k].length > 0) {
+                heap[heapSize] = k;
+                siftUp(heap, heapSize, Ys, next);
+                heapSize++;
+            }
+        }
+        
+        /* lo is the first value of X that is not more than maxDifference below
+         * the current value. It only moves forward as the values increase */
+        int lo = 0;
+        while(heapSize > 0) {
+            int k = heap[0];
+            int j = next[k];
+            double[] Y = Ys[k];
+            double y = Y[j];
+            boolean[] skip = excluded == null ? null : excluded[k];
+            
+            if(j<Y.length-1 && y > Y[j+1])
+                throw new Exception("Argument array Y is not sorted");
+            
+            while(lo < X.length && y-X[lo] > 0 && Math.abs(y-X[lo]) > maxDifference) {
+                lo++;
+            }
+            
+            /* Same search as the single array alignment, starting at the
+             * later of the last match and the start of the window */
+            double d3next = j == Y.length-1 ? Double.POSITIVE_INFINITY : Y[j+1];
+            int bestCandidate = -1;
+            for(int i=Math.max(lo, lastMatch[k]);i<X.length;i++) {
+                if(skip != null && skip[i]) continue;
+                
+                double d1 = Math.abs(y-X[i]);
+                if(y-X[i] < 0 && d1 > maxDifference) break;
+                
+                double d3 = j == Y.length-1 ? d3next : Math.abs(d3next-X[i]);
+                if(d1 <= d3) {
+                    if(bestCandidate == -1 || Xd[i] > Xd[bestCandidate]) {
+                        bestCandidate = i;
+                    }
+                }
+            }
+            if(bestCandidate != -1) {
+                lastMatch[k] = bestCandidate+1;
+                matches[k][bestCandidate] = j;
+            }
+            
+            /* Advance this array, removing it from the heap when exhausted */
+            next[k]++;
+            if(next[k] == Y.length) {
+                heapSize--;
+                heap[0] = heap[heapSize];
+            }
+            siftDown(heap, heapSize, Ys, next);
+        }
+        
+        /* Extract the alignments, snapping the values of Y onto X as in the
+         * single array alignment */
+        ArrayAlignment[] alignments = new ArrayAlignment[Ys.length];
+        for(int k=0;k<Ys.length;k++) {
+            boolean[] skip = excluded == null ? null : excluded[k];
+            int n = X.length;
+            if(skip != null) {
+                for(boolean e : skip) {
+                    if(e) n--;
+                }
+            }
+            alignments[k] = new ArrayAlignment(n);
+            for(int i=0;i<X.length;i++) {
+                if(skip != null && skip[i]) continue;
+                if(matches[k][i] != -1) 
+                    alignments[k].add(X[i], 1.0, X[i], Xd[i]);
+                else
+                    alignments[k].add(0.0, 0.0, X[i], Xd[i]);
+            }
+        }
+        return alignments;
+    }
+    
+    private static double head(double[][] Ys, int[] next, int k) {
+        return Ys[k][next[k]];
+    }
+    
+    private static void siftUp(int[] heap, int i, double[][] Ys, int[] next) {
+        while(i > 0) {
+            int parent = (i-1)/2;
+            if(head(Ys,next,heap[parent]) <= head(Ys,next,heap[i])) break;
+            int t = heap[parent];
+            heap[parent] = heap[i];
+            heap[i] = t;
+            i = parent;
+        }
+    }
+    
+    private static void siftDown(int[] heap, int size, double[][] Ys, int[] next) {
+        int i = 0;
+        while(true) {
+            int smallest = i;
+            int l = 2*i+1;
+            int r = 2*i+2;
+            if(l < size && head(Ys,next,heap[l]) < head(Ys,next,heap[smallest]))
+                smallest = l;
+            if(r < size && head(Ys,next,heap[r]) < head(Ys,next,heap[smallest]))
+                smallest = r;
+            if(smallest == i) break;
+            int t = heap[smallest];
+            heap[smallest] = heap[i];
+            heap[i] = t;
+            i = smallest;
+        }
+    }
+    
+    /**
+     * Counts the values Y[j] that have at least one value X[i] within 
+     * maxDifference, in a single pass over both arrays. This is an upper bound
+     * on the number of matches made by alignClosestDependent for the same
+     * arguments, and is used to reject poor matches before aligning them.
+     * 
+     * The values stored in X and Y must be in ascending order.
+     * 
+     * @param X Values to match
+     * @param Y Values to count
+     * @param maxDifference Maximum difference between X and Y that is allowed
+     * @return Number of values in Y with a value of X in range
+     */
+    public static int countShared(double[] X, double[] Y, double maxDifference) {
+        int shared = 0;
+        int i = 0;
+        for(int j=0;j<Y.length;j++) {
+            double y = Y[j];
+            
+            /* Same window test as alignClosestDependent */
+            while(i < X.length && y-X[i] > 0 && Math.abs(y-X[i]) > maxDifference) {
+                i++;
+            }
+            if(i == X.length) break;
+            if(!(y-X[i] < 0 && Math.abs(y-X[i]) > maxDifference)) {
+                shared++;
+            }
+        }
+        return shared;
+    }
+    
     /**
      * Identify elements Y[j] such that for some i, abs(X[i]-Y[j]) is less than
      * or equal to a threshold value.
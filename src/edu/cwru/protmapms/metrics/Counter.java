@@ -0,0 +1,67 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A count of events, such as the number of scans decoded. Safe to increment
+ * from several threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class Counter {
+    private final String name;
+    private final String help;
+    private final LongAdder count;
+    
+    Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+        this.count = new LongAdder();
+    }
+    
+    public String name() {
+        return name;
+    }
+    
+    public String help() {
+        return help;
+    }
+    
+    public void increment() {
+        count.increment();
+    }
+    
+    public void add(long n) {
+        count.add(n);
+    }
+    
+    public long get() {
+        return count.sum();
+    }
+    
+    void reset() {
+        count.reset();
+    }
+}
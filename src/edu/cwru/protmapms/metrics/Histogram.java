@@ -0,0 +1,171 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of the latency of an operation, such as decoding a scan. Each
+ * observation is counted in the first bucket whose upper bound it does not
+ * exceed. Bucket upper bounds double from 1 microsecond to about 18 minutes,
+ * with a final bucket for anything longer, so recording an observation costs
+ * a few atomic increments and no allocation. Safe to record from several
+ * threads.
+ * 
+ * @author Sean Maxwell
+ */
+public class Histogram {
+    /* Upper bound of bucket i is FIRST_BOUND_NANOS << i, and bucket BOUNDS
+     * has no upper bound */
+    static final int BOUNDS = 31;
+    private static final long FIRST_BOUND_NANOS = 1000;
+    
+    private final String name;
+    private final String help;
+    private final AtomicLongArray buckets;
+    private final LongAdder count;
+    private final LongAdder sumNanos;
+    private final AtomicLong maxNanos;
+    
+    Histogram(String name, String help) {
+        this.name = name;
+        this.help = help;
+        this.buckets = new AtomicLongArray(BOUNDS+1);
+        this.count = new LongAdder();
+        this.sumNanos = new LongAdder();
+        this.maxNanos = new AtomicLong();
+    }
+    
+    public String name() {
+        return name;
+    }
+    
+    public String help() {
+        return help;
+    }
+    
+    /**
+     * @param i Bucket index, from 0 to BOUNDS-1
+     * 
+     * @return Upper bound of the bucket in seconds
+     */
+    static double bound(int i) {
+        return (FIRST_BOUND_NANOS << i)/1e9;
+    }
+    
+    static int bucket(long nanos) {
+        if(nanos <= FIRST_BOUND_NANOS) {
+            return 0;
+        }
+        return Math.min(BOUNDS, 64-Long.numberOfLeadingZeros((nanos-1)/FIRST_BOUND_NANOS));
+    }
+    
+    /**
+     * Records one observation.
+     * 
+     * @param nanos Latency in nanoseconds
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(bucket(nanos));
+        count.increment();
+        sumNanos.add(nanos);
+        long max = maxNanos.get();
+        while(nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+    
+    /**
+     * Records the time elapsed since a start time.
+     * 
+     * @param startNanos Start time given by System.nanoTime()
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime()-startNanos);
+    }
+    
+    public long count() {
+        return count.sum();
+    }
+    
+    public double sumSeconds() {
+        return sumNanos.sum()/1e9;
+    }
+    
+    public double maxSeconds() {
+        return maxNanos.get()/1e9;
+    }
+    
+    /**
+     * @param i Bucket index, from 0 to BOUNDS
+     * 
+     * @return Number of observations in the bucket
+     */
+    long bucketCount(int i) {
+        return buckets.get(i);
+    }
+    
+    /**
+     * Estimates a quantile as the upper bound of the bucket that contains it,
+     * so the estimate is at most twice the true value.
+     * 
+     * @param q Quantile between 0 and 1
+     * 
+     * @return Estimated quantile in seconds, or 0 if nothing was recorded
+     */
+    public double quantileSeconds(double q) {
+        long total = 0;
+        long[] counts = new long[BOUNDS+1];
+        for(int i=0;i<=BOUNDS;i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if(total == 0) {
+            return 0.0;
+        }
+        
+        long rank = (long)Math.ceil(q*total);
+        long seen = 0;
+        for(int i=0;i<BOUNDS;i++) {
+            seen += counts[i];
+            if(seen >= rank) {
+                return Math.min(bound(i), maxSeconds());
+            }
+        }
+        return maxSeconds();
+    }
+    
+    void reset() {
+        for(int i=0;i<=BOUNDS;i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sumNanos.reset();
+        maxNanos.set(0);
+    }
+}
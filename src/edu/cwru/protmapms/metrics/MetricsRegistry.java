@@ -0,0 +1,223 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Registry of the counters and latency histograms recorded by the stages of
+ * the search pipeline. Classes look up the metrics they record once, usually
+ * into static fields, and record into them directly:
+ * <pre>
+ * private static final Histogram DECODE = MetricsRegistry.getDefault().histogram("decode", "...");
+ * ...
+ * long started = System.nanoTime();
+ * ...
+ * DECODE.recordSince(started);
+ * </pre>
+ * The registry can be written as a JSON summary, and as a text file in the
+ * Prometheus exposition format.
+ * 
+ * @author Sean Maxwell
+ */
+public class MetricsRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsRegistry.class);
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry("protmapms");
+    private final String prefix;
+    private final Map<String,Counter> counters;
+    private final Map<String,Histogram> histograms;
+    
+    /**
+     * @param prefix Prefix of the metric names in the Prometheus output
+     */
+    public MetricsRegistry(String prefix) {
+        this.prefix = prefix;
+        this.counters = new TreeMap<>();
+        this.histograms = new TreeMap<>();
+    }
+    
+    /**
+     * @return The registry shared by the whole application
+     */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+    
+    /**
+     * Gets a counter, creating it the first time it is requested.
+     * 
+     * @param name Name of the counter, such as "scans_decoded"
+     * @param help Description of what is counted
+     * 
+     * @return The counter
+     */
+    public synchronized Counter counter(String name, String help) {
+        Counter counter = counters.get(name);
+        if(counter == null) {
+            counter = new Counter(name, help);
+            counters.put(name, counter);
+        }
+        return counter;
+    }
+    
+    /**
+     * Gets a latency histogram, creating it the first time it is requested.
+     * 
+     * @param name Name of the histogram, such as "decode"
+     * @param help Description of the operation that is timed
+     * 
+     * @return The histogram
+     */
+    public synchronized Histogram histogram(String name, String help) {
+        Histogram histogram = histograms.get(name);
+        if(histogram == null) {
+            histogram = new Histogram(name, help);
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+    
+    /**
+     * Sets every metric back to zero, such as at the start of a job.
+     */
+    public synchronized void reset() {
+        for(Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for(Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+    
+    /**
+     * Generates a JSON summary of every metric. Counters are given by name,
+     * and each histogram as its count and the sum, mean, 50th, 90th and 99th
+     * percentile and maximum of its latencies, in seconds. Percentiles are
+     * estimated from the histogram buckets.
+     * 
+     * @return The summary in JSON format
+     */
+    public synchronized String toJSON() {
+        StringBuilder sb = new StringBuilder("{\"counters\":{");
+        boolean first = true;
+        for(Counter counter : counters.values()) {
+            if(!first) sb.append(",");
+            else first = false;
+            
+            sb.append(String.format("\"%s\":%d",counter.name(),counter.get()));
+        }
+        sb.append("},\"histograms\":{");
+        first = true;
+        for(Histogram histogram : histograms.values()) {
+            if(!first) sb.append(",");
+            else first = false;
+            
+            long count = histogram.count();
+            sb.append(String.format("\"%s\":{\"count\":%d,\"sum\":%.6f,\"mean\":%.9f,\"p50\":%.9f,\"p90\":%.9f,\"p99\":%.9f,\"max\":%.9f}",
+                    histogram.name(),
+                    count,
+                    histogram.sumSeconds(),
+                    count == 0 ? 0.0 : histogram.sumSeconds()/count,
+                    histogram.quantileSeconds(0.5),
+                    histogram.quantileSeconds(0.9),
+                    histogram.quantileSeconds(0.99),
+                    histogram.maxSeconds()));
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+    
+    /**
+     * Generates every metric in the Prometheus text exposition format.
+     * Counters are named prefix_name_total, and histograms prefix_name_seconds
+     * with cumulative buckets.
+     * 
+     * @return The metrics in Prometheus format
+     */
+    public synchronized String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for(Counter counter : counters.values()) {
+            String name = String.format("%s_%s_total",prefix,counter.name());
+            sb.append(String.format("# HELP %s %s\n",name,counter.help()));
+            sb.append(String.format("# TYPE %s counter\n",name));
+            sb.append(String.format("%s %d\n",name,counter.get()));
+        }
+        for(Histogram histogram : histograms.values()) {
+            String name = String.format("%s_%s_seconds",prefix,histogram.name());
+            sb.append(String.format("# HELP %s %s\n",name,histogram.help()));
+            sb.append(String.format("# TYPE %s histogram\n",name));
+            long cumulative = 0;
+            for(int i=0;i<Histogram.BOUNDS;i++) {
+                cumulative += histogram.bucketCount(i);
+                sb.append(String.format("%s_bucket{le=\"%s\"} %d\n",name,Double.toString(Histogram.bound(i)),cumulative));
+            }
+            cumulative += histogram.bucketCount(Histogram.BOUNDS);
+            sb.append(String.format("%s_bucket{le=\"+Inf\"} %d\n",name,cumulative));
+            sb.append(String.format("%s_sum %s\n",name,Double.toString(histogram.sumSeconds())));
+            sb.append(String.format("%s_count %d\n",name,cumulative));
+        }
+        return sb.toString();
+    }
+    
+    private static void write(String file, String content) throws Exception {
+        File parent = new File(file).getAbsoluteFile().getParentFile();
+        if(parent != null && !parent.exists())
+            parent.mkdirs();
+        
+        try(FileWriter fw = new FileWriter(file)) {
+            fw.write(content);
+        }
+    }
+    
+    public void writeJSON(String file) throws Exception {
+        write(file, toJSON());
+    }
+    
+    public void writePrometheus(String file) throws Exception {
+        write(file, toPrometheus());
+    }
+    
+    /**
+     * Logs one line per metric.
+     */
+    public synchronized void logSummary() {
+        for(Counter counter : counters.values()) {
+            LOGGER.info("Metric {}: {}",counter.name(),counter.get());
+        }
+        for(Histogram histogram : histograms.values()) {
+            LOGGER.info("Metric {}: {} calls, {} seconds total, p50 {} ms, p99 {} ms, max {} ms",
+                    histogram.name(),
+                    histogram.count(),
+                    String.format("%.3f",histogram.sumSeconds()),
+                    String.format("%.3f",1000*histogram.quantileSeconds(0.5)),
+                    String.format("%.3f",1000*histogram.quantileSeconds(0.99)),
+                    String.format("%.3f",1000*histogram.maxSeconds()));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.metrics;
+
+/**
+ * The metrics recorded by the search pipeline, all held in the default
+ * registry. Keeping them in one place documents what is measured, and
+ * registers every metric as soon as any one of them is used, so that the
+ * summary of a job always lists all of them.
+ * 
+ * @author Sean Maxwell
+ */
+public final class SearchMetrics {
+    private static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+    
+    /* Counts */
+    public static final Counter PEPTIDES = REGISTRY.counter("peptides", "Peptides in the mass window searched for");
+    public static final Counter SPECIES = REGISTRY.counter("species", "Modified forms of the peptides searched for");
+    public static final Counter UNIQUE_SPECIES = REGISTRY.counter("unique_species", "Species left after merging those with the same sequence and offsets");
+    public static final Counter TOLERANCE_SAMPLE = REGISTRY.counter("tolerance_sample", "Identifications made by the sample the tolerances are learned from, which the other metrics leave out");
+    public static final Counter SHARED_SEARCHES = REGISTRY.counter("shared_searches", "Species given the identifications of an identical species instead of being scored");
+    public static final Counter PRECURSOR_QUERIES = REGISTRY.counter("precursor_queries", "Lookups matching species precursor m/z values to MS2 scan precursors");
+    public static final Counter PRECURSOR_BITMAP_REJECTED = REGISTRY.counter("precursor_bitmap_rejected", "Precursor lookups ruled out by the precursor occupancy bitmap of the spectrum file");
+    public static final Counter CANDIDATE_SCANS = REGISTRY.counter("candidate_scans", "Species and MS2 scan pairs with matching precursor m/z");
+    public static final Counter PREFILTER_REJECTED = REGISTRY.counter("prefilter_rejected", "Candidate pairs rejected by the shared peak prefilter");
+    public static final Counter SCORED_PAIRS = REGISTRY.counter("scored_pairs", "Candidate pairs aligned and scored");
+    public static final Counter SIGNIFICANT_HITS = REGISTRY.counter("significant_hits", "Scored pairs accepted as identifications");
+    public static final Counter LIBRARY_CONFIRMED = REGISTRY.counter("library_confirmed", "Candidate pairs confirmed by the consensus library without theoretical ions or alignment");
+    public static final Counter LIBRARY_FALLBACKS = REGISTRY.counter("library_fallbacks", "Candidate pairs with a consensus library spectrum searched in full");
+    public static final Counter SCANS_DECODED = REGISTRY.counter("scans_decoded", "Scans read from spectrum files and decoded");
+    public static final Counter SCANS_PRELOADED = REGISTRY.counter("scans_preloaded", "MS2 scans decoded into the off-heap scan arena of their spectrum file");
+    public static final Counter SCAN_ARENA_HITS = REGISTRY.counter("scan_arena_hits", "Scans read from the scan arena instead of being decoded");
+    public static final Counter PEAK_CACHE_HITS = REGISTRY.counter("peak_cache_hits", "Filtered MS2 scans found in the peak cache");
+    public static final Counter PEAK_CACHE_MISSES = REGISTRY.counter("peak_cache_misses", "Filtered MS2 scans not found in the peak cache");
+    public static final Counter MS1_SCANS_EXTRACTED = REGISTRY.counter("ms1_scans_extracted", "MS1 scans processed by chromatogram extraction");
+    
+    /* Latencies */
+    public static final Histogram CONNECT = REGISTRY.histogram("connect", "Time to parse and index a spectrum file");
+    public static final Histogram DECODE = REGISTRY.histogram("decode", "Time to read and decode the peaks of a scan");
+    public static final Histogram FILTER = REGISTRY.histogram("filter", "Time to apply the per-scan peak filters to an MS2 scan");
+    public static final Histogram FILTER_SPECIES = REGISTRY.histogram("filter_species", "Time to apply the per-species peak filters to an MS2 scan");
+    public static final Histogram ALIGN = REGISTRY.histogram("align", "Time to align the theoretical ions of one or a batch of species to an MS2 scan");
+    public static final Histogram SCORE = REGISTRY.histogram("score", "Time to score one alignment");
+    public static final Histogram EXTRACT = REGISTRY.histogram("extract", "Time to extract the chromatogram intensities from one decoded MS1 scan");
+    
+    private SearchMetrics() {
+    }
+}
@@ -88,6 +88,39 @@ public class ModificationSiteEnumerator {
         lole = new ListOfListsEnumerator(variableModifications, maxConcurrentVariableModifications);
     }
     
+    /**
+     * Computes the mass offset of the fixed modification at each position of
+     * a sequence, by the same rules as the enumerator: a fixed modification
+     * of the position in the protein comes first, then a fixed modification
+     * of the residue. The fixed offset of any peptide cleaved from the
+     * sequence is the sum of the offsets over its positions.
+     * 
+     * @param sequence Protein sequence
+     * @param start Position of the first residue of the sequence in the
+     *        protein
+     * @param modifications Modification database
+     * 
+     * @return Fixed modification offset of each position, 0 where none applies
+     */
+    public static double[] fixedOffsets(String sequence, int start, Modifications modifications) {
+        double[] offsets = new double[sequence.length()];
+        OUTER: for(int i=0;i<offsets.length;i++) {
+            for(Modification modification : modifications.getModifications(i+start)) {
+                if(modification.fixed()) {
+                    offsets[i] = modification.massOffset;
+                    continue OUTER;
+                }
+            }
+            for(Modification modification : modifications.getModifications(sequence.substring(i,i+1))) {
+                if(modification.fixed()) {
+                    offsets[i] = modification.massOffset;
+                    continue OUTER;
+                }
+            }
+        }
+        return offsets;
+    }
+    
     public List<ModificationSite> getFixed() {
         return fixedModifications;
     }
@@ -42,12 +42,14 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Top level result container that stores the full set of identifications made
- * during an analysis.
+ * during an analysis. When created with an IonStore, the ions of every
+ * identification added to the result are moved to the store.
  * 
  * @author Sean Maxwell
  */
 public class FootprintingResult extends HashMap<String,ProteinResult> {
     private static final Logger LOGGER = LoggerFactory.getLogger(FootprintingResult.class);
+    private final IonStore ionStore;
 
     /**
      * Builtin method to compute the mean retention time from a list of 
@@ -92,12 +94,21 @@ public class FootprintingResult extends HashMap<String,ProteinResult> {
     }
     
     public FootprintingResult() {
+        this(null);
+    }
+    
+    /**
+     * @param ionStore Store to move the ions of identifications to, or null
+     *        to keep them on the heap
+     */
+    public FootprintingResult(IonStore ionStore) {
         super();
+        this.ionStore = ionStore;
     }
     
     public ProteinResult getProteinResult(String accession) {
         if(!this.containsKey(accession)) {
-            this.put(accession, new ProteinResult());
+            this.put(accession, new ProteinResult(ionStore));
         }
         
         return this.get(accession);
@@ -110,6 +121,30 @@ public class FootprintingResult extends HashMap<String,ProteinResult> {
     public Set<String> getPeptideSequences(String proteinAccession) {
         return this.get(proteinAccession).keySet();
     }
+    
+    /**
+     * Merges the identifications of another result into this one. Protein,
+     * peptide and spectrum entries are created as needed, including empty
+     * ones, so the merged result has the same structure as a result built
+     * directly by a single search.
+     * 
+     * @param other The result to merge into this one
+     */
+    public void merge(FootprintingResult other) {
+        for(String accession : other.getProteinAccessions()) {
+            ProteinResult otherProtein = other.getProteinResult(accession);
+            ProteinResult protein = this.getProteinResult(accession);
+            
+            for(String peptideSequence : otherProtein.getPeptideSequences()) {
+                PeptideResult otherPeptide = otherProtein.get(peptideSequence);
+                PeptideResult peptide = protein.getPeptideResult(otherPeptide.peptide);
+                
+                for(String spectrumKey : otherPeptide.getSpectrumKeys()) {
+                    peptide.getSpectrumResult(spectrumKey).addAll(otherPeptide.getSpectrumResult(spectrumKey));
+                }
+            }
+        }
+    }
             
     /* Find a peptide species that is identified across the most number of 
      * spectra and break ties using the median intensity of the 
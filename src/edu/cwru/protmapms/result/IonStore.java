@@ -0,0 +1,248 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.result;
+
+import edu.cwru.protmapms.MSMSIons;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Append-only file holding the observed and theoretical ions of
+ * identifications, so that a result does not keep them on the heap. The ions
+ * of an identification are written once, when it is added to a result, and
+ * are only read back when the identification is written out. An
+ * identification in the store keeps just the offset of its record.<br><br>
+ * 
+ * Each record is:
+ * <pre>
+ * observed ions, theoretical ions
+ * </pre>
+ * where each set of ions is its number n, n alignment indexes, n m/z values,
+ * n intensities (as doubles), the number of labels and the label codes.
+ * The file is read through read-only memory maps of 1 GB segments. Records
+ * never cross a segment boundary, so the writer pads up to the next segment
+ * when a record would not fit in the current one. As records are appended in
+ * the order identifications are made, writing the results out in the same
+ * order reads the file mostly front to back.<br><br>
+ * 
+ * Appends and reads may come from several threads. Once the results are
+ * written, close() releases the maps and deletes the file, after which the
+ * ions of the identifications in the store can no longer be read.
+ * 
+ * @author Sean Maxwell
+ */
+public class IonStore {
+    public static final String FILE_NAME = "identifications.ions";
+    private static final long SEGMENT = 1L << 30;
+    
+    private final String path;
+    private final RandomAccessFile raf;
+    private final DataOutputStream out;
+    private final List<MappedByteBuffer> segments;
+    private long size;
+    private long flushed;
+    private boolean closed;
+    
+    /**
+     * Creates an empty store, replacing any existing file. The file is
+     * deleted when the store is closed, or else when the JVM exits.
+     * 
+     * @param path File to store the ions in
+     * 
+     * @throws IOException if the file cannot be created
+     */
+    public IonStore(String path) throws IOException {
+        this.path = path;
+        File file = new File(path);
+        if(file.getParentFile() != null && !file.getParentFile().exists()) {
+            file.getParentFile().mkdirs();
+        }
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false), 1 << 16));
+        this.raf = new RandomAccessFile(file, "r");
+        this.segments = new ArrayList<>();
+        file.deleteOnExit();
+    }
+    
+    private static void writeIons(DataOutputStream record, MSMSIons ions) throws IOException {
+        record.writeInt(ions.size());
+        for(int i : ions.index) {
+            record.writeInt(i);
+        }
+        for(double d : ions.mz) {
+            record.writeDouble(d);
+        }
+        for(double d : ions.intensity) {
+            record.writeDouble(d);
+        }
+        record.writeInt(ions.label.length);
+        for(int code : ions.label) {
+            record.writeInt(code);
+        }
+    }
+    
+    /**
+     * Appends the ions of an identification.
+     * 
+     * @param observed Observed ions
+     * @param theoretical Theoretical ions
+     * 
+     * @return Offset of the record
+     * 
+     * @throws IOException if the record cannot be written
+     */
+    public long append(MSMSIons observed, MSMSIons theoretical) throws IOException {
+        /* Encode outside of the lock */
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(bytes);
+        writeIons(record, observed);
+        writeIons(record, theoretical);
+        record.flush();
+        if(bytes.size() > SEGMENT) {
+            throw new IOException(String.format("Ions of %d bytes do not fit in a segment of %s",bytes.size(),path));
+        }
+        
+        synchronized(this) {
+            long room = SEGMENT-size%SEGMENT;
+            if(bytes.size() > room) {
+                out.write(new byte[(int)room]);
+                size += room;
+            }
+            long offset = size;
+            bytes.writeTo(out);
+            size += bytes.size();
+            return offset;
+        }
+    }
+    
+    /* Maps the segment holding an offset, mapping it again if records were
+     * appended to it since it was last mapped */
+    private synchronized MappedByteBuffer segment(long offset) throws IOException {
+        if(closed) {
+            throw new IOException(String.format("Ion store %s is closed",path));
+        }
+        if(flushed < size) {
+            out.flush();
+            flushed = size;
+        }
+        
+        int i = (int)(offset/SEGMENT);
+        while(segments.size() <= i) {
+            segments.add(null);
+        }
+        long start = i*SEGMENT;
+        long length = Math.min(SEGMENT, size-start);
+        MappedByteBuffer segment = segments.get(i);
+        if(segment == null || segment.capacity() < length) {
+            segment = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, start, length);
+            segments.set(i, segment);
+        }
+        return segment;
+    }
+    
+    /* Reads one set of ions at a position in a segment, and returns the
+     * position after it */
+    private static int readIons(MappedByteBuffer segment, int pos, MSMSIons[] ions, int k) {
+        int n = segment.getInt(pos);
+        pos += 4;
+        int[] index = new int[n];
+        double[] mz = new double[n];
+        double[] intensity = new double[n];
+        for(int i=0;i<n;i++) {
+            index[i] = segment.getInt(pos);
+            pos += 4;
+        }
+        for(int i=0;i<n;i++) {
+            mz[i] = segment.getDouble(pos);
+            pos += 8;
+        }
+        for(int i=0;i<n;i++) {
+            intensity[i] = segment.getDouble(pos);
+            pos += 8;
+        }
+        int[] label = new int[segment.getInt(pos)];
+        pos += 4;
+        for(int i=0;i<label.length;i++) {
+            label[i] = segment.getInt(pos);
+            pos += 4;
+        }
+        ions[k] = new MSMSIons(index, mz, intensity, label);
+        return pos;
+    }
+    
+    /**
+     * Reads the ions of an identification.
+     * 
+     * @param offset Offset of the record returned by append()
+     * 
+     * @return The observed ions, followed by the theoretical ions
+     * 
+     * @throws IOException if the record cannot be read
+     */
+    public MSMSIons[] read(long offset) throws IOException {
+        MappedByteBuffer segment = segment(offset);
+        
+        /* Absolute reads leave the shared buffer position alone, so several
+         * threads can read the same segment */
+        MSMSIons[] ions = new MSMSIons[2];
+        int pos = (int)(offset%SEGMENT);
+        pos = readIons(segment, pos, ions, 0);
+        readIons(segment, pos, ions, 1);
+        return ions;
+    }
+    
+    /**
+     * @return Number of bytes appended to the store
+     */
+    public synchronized long size() {
+        return size;
+    }
+    
+    /**
+     * Closes the store and deletes its file. Does nothing if the store is
+     * already closed.
+     * 
+     * @throws IOException if the file cannot be closed
+     */
+    public synchronized void close() throws IOException {
+        if(closed) return;
+        closed = true;
+        segments.clear();
+        try {
+            out.close();
+            raf.close();
+        }
+        finally {
+            new File(path).delete();
+        }
+    }
+}
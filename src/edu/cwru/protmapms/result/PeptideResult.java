@@ -34,10 +34,16 @@ import java.util.Arrays;
  */
 public class PeptideResult extends HashMap<String,SpectrumResult> {
     public Peptide peptide;
+    private final IonStore ionStore;
     
     public PeptideResult(Peptide p) {
+        this(p, null);
+    }
+    
+    public PeptideResult(Peptide p, IonStore ionStore) {
         super();
         peptide = p;
+        this.ionStore = ionStore;
     }
     
     public String[] getSpectrumKeys() {
@@ -48,7 +54,7 @@ public class PeptideResult extends HashMap<String,SpectrumResult> {
     
     public SpectrumResult getSpectrumResult(String spectrumKeyString) {
         if(!this.containsKey(spectrumKeyString)) {
-            this.put(spectrumKeyString, new SpectrumResult());
+            this.put(spectrumKeyString, new SpectrumResult(ionStore));
         }
         return this.get(spectrumKeyString);
     }
@@ -33,13 +33,20 @@ import java.util.Set;
  * @author Sean Maxwell
  */
 public class ProteinResult extends HashMap<String,PeptideResult> {
+    private final IonStore ionStore;
+    
     public ProteinResult() {
+        this(null);
+    }
+    
+    public ProteinResult(IonStore ionStore) {
         super();
+        this.ionStore = ionStore;
     }
     
     public PeptideResult getPeptideResult(Peptide peptide) {
         if(!this.containsKey(peptide.sequence)) {
-            this.put(peptide.sequence, new PeptideResult(peptide));
+            this.put(peptide.sequence, new PeptideResult(peptide, ionStore));
         }
         return this.get(peptide.sequence);
     }
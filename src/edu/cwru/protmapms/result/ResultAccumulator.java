@@ -0,0 +1,119 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.result;
+
+import edu.cwru.protmapms.Identification;
+import edu.cwru.protmapms.Peptide;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the identifications of a search made by many threads at once, and
+ * builds a FootprintingResult of them once the search is done. Each protein
+ * is accumulated in a ProteinResult of its own, created on first use in a
+ * concurrent map and locked on its own, so threads adding to different
+ * proteins never wait for each other and no lock is held over the whole
+ * result.<br><br>
+ * 
+ * The identifications of a spectrum result are kept in the order they were
+ * added, so a protein added to by one thread at a time, as each protein of a
+ * spectrum file is, has the same result however its work was scheduled.
+ * 
+ * @author Sean Maxwell
+ */
+public class ResultAccumulator {
+    private final IonStore ionStore;
+    private final ConcurrentHashMap<String,ProteinResult> proteins;
+    
+    /**
+     * @param ionStore Store to move the ions of identifications to, or null
+     *        to keep them on the heap
+     */
+    public ResultAccumulator(IonStore ionStore) {
+        this.ionStore = ionStore;
+        this.proteins = new ConcurrentHashMap<>();
+    }
+    
+    private ProteinResult protein(String accession) {
+        return proteins.computeIfAbsent(accession, a -> new ProteinResult(ionStore));
+    }
+    
+    /**
+     * Creates the spectrum result of a peptide if it does not exist yet, so
+     * the result holds the peptide whether or not it was identified.
+     * 
+     * @param accession Accession of the protein of the peptide
+     * @param peptide The peptide
+     * @param spectrumKey Key of the spectrum file searched
+     */
+    public void addPeptide(String accession, Peptide peptide, String spectrumKey) {
+        ProteinResult protein = protein(accession);
+        synchronized(protein) {
+            protein.getPeptideResult(peptide).getSpectrumResult(spectrumKey);
+        }
+    }
+    
+    /**
+     * Adds an identification of a peptide in a spectrum file.
+     * 
+     * @param accession Accession of the protein of the peptide
+     * @param peptide The peptide identified
+     * @param spectrumKey Key of the spectrum file searched
+     * @param identification The identification
+     */
+    public void addIdentification(String accession, Peptide peptide, String spectrumKey, Identification identification) {
+        ProteinResult protein = protein(accession);
+        synchronized(protein) {
+            protein.getPeptideResult(peptide).getSpectrumResult(spectrumKey).addIdentification(identification);
+        }
+    }
+    
+    /**
+     * Adds identifications of a peptide in a spectrum file, in order.
+     * 
+     * @param accession Accession of the protein of the peptide
+     * @param peptide The peptide identified
+     * @param spectrumKey Key of the spectrum file searched
+     * @param identifications The identifications
+     */
+    public void addAll(String accession, Peptide peptide, String spectrumKey, List<Identification> identifications) {
+        ProteinResult protein = protein(accession);
+        synchronized(protein) {
+            protein.getPeptideResult(peptide).getSpectrumResult(spectrumKey).addAll(identifications);
+        }
+    }
+    
+    /**
+     * Builds the result of the identifications accumulated. The result is a
+     * view of the accumulated proteins, so it must only be built once every
+     * thread adding to the accumulator has finished.
+     * 
+     * @return The accumulated result
+     */
+    public FootprintingResult toResult() {
+        FootprintingResult result = new FootprintingResult(ionStore);
+        result.putAll(proteins);
+        return result;
+    }
+}
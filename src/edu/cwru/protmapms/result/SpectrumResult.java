@@ -24,23 +24,33 @@ package edu.cwru.protmapms.result;
 
 import edu.cwru.protmapms.Constants;
 import edu.cwru.protmapms.Identification;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
 
 /**
- * Stores identifications associated with a specific spectrum.
+ * Stores identifications associated with a specific spectrum. When created
+ * with an IonStore, the ions of each identification added are moved to the
+ * store.
  * 
  * @author Sean Maxwell
  */
 public class SpectrumResult {
     private final HashMap<String,ArrayList<Identification>> unlabeled;
     private final HashMap<String,ArrayList<Identification>> labeled;
+    private final IonStore ionStore;
         
     public SpectrumResult() {
+        this(null);
+    }
+    
+    public SpectrumResult(IonStore ionStore) {
         unlabeled = new HashMap<>();
         labeled = new HashMap<>();
+        this.ionStore = ionStore;
     }
     
     public Set<String> getUnlabeledKeys() {
@@ -67,6 +77,14 @@ public class SpectrumResult {
         if(!map.containsKey(monoIsotpoicMassKey)) {
             map.put(monoIsotpoicMassKey,new ArrayList<>());
         }
+        if(ionStore != null) {
+            try {
+                identification.storeIons(ionStore);
+            }
+            catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         map.get(monoIsotpoicMassKey).add(identification);
     }
     
@@ -84,4 +102,19 @@ public class SpectrumResult {
             addIdentification(identification);
         }
     }
+    
+    /**
+     * Adds every identification stored in another spectrum result to this
+     * one. Used to combine results that were searched independently.
+     * 
+     * @param other The spectrum result to copy identifications from
+     */
+    public void addAll(SpectrumResult other) {
+        for(String key : other.getUnlabeledKeys()) {
+            addAll(other.getUnlabeledIdentification(key));
+        }
+        for(String key : other.getLabeledKeys()) {
+            addAll(other.getLabeledIdentification(key));
+        }
+    }
 }
@@ -33,6 +33,50 @@ import java.util.List;
  * @author Sean Maxwell
  */
 public class PearsonCorrelationScoring implements ScoringFunction {
+    
+    /**
+     * Critical values of t at p = 0.001, as (degrees of freedom, t) pairs
+     */
+    private static final double[] PTABLE = {
+         1,636.6,2,31.6,3,12.92,4,8.61,5,6.869,6,5.959,7,5.408,8,5.041,9,4.781,
+         10,4.587,11,4.437,12,4.318,13,4.221,14,4.14,15,4.073,16,4.015,17,3.965,
+         18,3.922,19,3.883,20,3.85,21,3.819,22,3.792,23,3.767,24,3.745,25,3.725,
+         26,3.707,27,3.69,28,3.674,29,3.659,30,3.646,40,3.551,50,3.496,60,3.46,
+         80,3.416,120,3.373,1000000,3.291};
+    
+    /**
+     * Interpolated critical values of t for each number of degrees of freedom
+     * up to the length of the array, computed once. NaN where the table has no
+     * value.
+     */
+    private static final double[] CRITICAL_T = new double[4096];
+    static {
+        for(int n=0;n<CRITICAL_T.length;n++) {
+            CRITICAL_T[n] = criticalT(n);
+        }
+    }
+    
+    /**
+     * Linearly interpolates the critical value of t at p <= 0.001 for a system
+     * with <strong>n</strong> degrees of freedom from the table of critical
+     * values.
+     * 
+     * @param n Degrees of freedom
+     * 
+     * @return Critical value of t, or NaN if n is outside the table
+     */
+    private static double criticalT(int n) {
+        for(int i=2;i<PTABLE.length;i+=2) {
+            if(PTABLE[i-2] <= n && PTABLE[i] >= n) {
+                double df1 = PTABLE[i-2];
+                double df2 = PTABLE[i];
+                double t1 = PTABLE[i-1];
+                double t2 = PTABLE[i+1];
+                return t1+(((t2-t1)/(df2-df1))*(n - df1));
+            }
+        }
+        return Double.NaN;
+    }
 
     /**
      * Determine if the p-value of a t-score for a system with
@@ -45,32 +89,11 @@ public class PearsonCorrelationScoring implements ScoringFunction {
      * @return true if significant, false if not significant
      */
     private boolean pCriticalInterpolate(double t, int n) {
-        int i;
-        double[] ptable = {
-         1,636.6,2,31.6,3,12.92,4,8.61,5,6.869,6,5.959,7,5.408,8,5.041,9,4.781,
-         10,4.587,11,4.437,12,4.318,13,4.221,14,4.14,15,4.073,16,4.015,17,3.965,
-         18,3.922,19,3.883,20,3.85,21,3.819,22,3.792,23,3.767,24,3.745,25,3.725,
-         26,3.707,27,3.69,28,3.674,29,3.659,30,3.646,40,3.551,50,3.496,60,3.46,
-         80,3.416,120,3.373,1000000,3.291};
+        double intCritT = n >= 0 && n < CRITICAL_T.length ? CRITICAL_T[n] : criticalT(n);
         
-        for(i=2;i<ptable.length;i+=2) {
-            if(ptable[i-2] <= n && ptable[i] >= n) {
-                double df1 = ptable[i-2];
-                double df2 = ptable[i];
-                double t1 = ptable[i-1];
-                double t2 = ptable[i+1];
-                double intCritT = t1+(((t2-t1)/(df2-df1))*(n - df1));
-                if(t > intCritT) {
-                    return true;
-                }
-                else {
-                    return false;
-                }
-            }
-        }
-
-        return false;
-
+        /* Comparisons with NaN are false, so n outside the table is never
+         * significant */
+        return t > intCritT;
     }
     
     /**
@@ -101,4 +124,15 @@ public class PearsonCorrelationScoring implements ScoringFunction {
         return s;
     }
     
+    @Override
+    public Score score(double[] f1, double[] f2, int n) {
+        double r = PearsonCorrelation.pearsonCorrelationCoefficient(f1, f2, n);
+        double t = tScore(r,n);
+        
+        Score s = new Score();
+        s.isSignificant=pCriticalInterpolate(t,n);
+        s.score=r;
+        return s;
+    }
+    
 }
@@ -22,12 +22,19 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms.scoring;
 
+import edu.cwru.protmapms.math.ArrayAlignment;
+
 /**
  * Scoring functions must return an instance of this object.
  * 
  * @author Sean Maxwell
  */
 public class Score {
-    public Double score;
-    public Boolean isSignificant;
+    public double score;
+    public boolean isSignificant;
+    
+    /**
+     * The alignment that was scored, when scored as part of a batch
+     */
+    public ArrayAlignment alignment;
 }
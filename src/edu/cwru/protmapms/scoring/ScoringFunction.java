@@ -22,6 +22,12 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms.scoring;
 
+import edu.cwru.protmapms.math.ArrayAlignment;
+import edu.cwru.protmapms.math.SortedArraysAligner;
+import edu.cwru.protmapms.metrics.SearchMetrics;
+import edu.cwru.protmapms.spectra.Peaks;
+
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -31,4 +37,56 @@ import java.util.List;
  */
 public interface ScoringFunction {
     public Score score(List<Double> f1, List<Double> f2);
+    
+    /**
+     * Scores the first n values of two primitive arrays. Implementations 
+     * should override this to avoid boxing values on the search's inner loop.
+     * The default adapts the arrays to the List based method, so that scoring
+     * functions that only implement that method keep working.
+     * 
+     * @param f1 First vector (theoretical intensities)
+     * @param f2 Second vector (observed intensities)
+     * @param n Number of values to use from each vector
+     * 
+     * @return Score of the two vectors
+     */
+    public default Score score(double[] f1, double[] f2, int n) {
+        List<Double> l1 = new ArrayList<>(n);
+        List<Double> l2 = new ArrayList<>(n);
+        for(int i=0;i<n;i++) {
+            l1.add(f1[i]);
+            l2.add(f2[i]);
+        }
+        return score(l1, l2);
+    }
+    
+    /**
+     * Scores one filtered scan against several theoretical spectra. The
+     * theoretical spectra are aligned to the scan in a single pass over the
+     * scan peaks, and each alignment is then scored with the primitive array
+     * score method.
+     * 
+     * @param scan Filtered scan peaks, in ascending order of m/z
+     * @param theoreticalIons Theoretical spectra, each in ascending order
+     * @param excluded Per theoretical spectrum, the scan peaks to leave out
+     *        (such as the precursor ions of that species). May be null.
+     * @param ms2Error MS2 error in Daltons
+     * 
+     * @return One score per theoretical spectrum, with the alignment set
+     * 
+     * @throws Exception if the peaks or ions are not sorted
+     */
+    public default Score[] score(Peaks scan, double[][] theoreticalIons, boolean[][] excluded, double ms2Error) throws Exception {
+        long started = System.nanoTime();
+        ArrayAlignment[] alignments = SortedArraysAligner.alignClosestDependent(scan.MZ, scan.Intensity, theoreticalIons, excluded, ms2Error);
+        SearchMetrics.ALIGN.recordSince(started);
+        Score[] scores = new Score[alignments.length];
+        for(int k=0;k<alignments.length;k++) {
+            started = System.nanoTime();
+            scores[k] = score(alignments[k].theoreticalIntensities, alignments[k].observedIntensities, alignments[k].size);
+            SearchMetrics.SCORE.recordSince(started);
+            scores[k].alignment = alignments[k];
+        }
+        return scores;
+    }
 }
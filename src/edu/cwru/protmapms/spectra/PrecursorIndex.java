@@ -0,0 +1,210 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.spectra;
+
+import edu.cwru.protmapms.math.SortOrder;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Index of the MS2 scans of a spectrum file by precursor m/z. The scans are
+ * kept in ascending order of precursor m/z so that a precursor query only
+ * visits the scans in its m/z range, and a bitmap of fixed-width m/z bins
+ * records which bins hold at least one precursor. Most species searched for
+ * have no MS2 scan near their precursor, and the bitmap rules those out
+ * without a search of the sorted scans.
+ *
+ * @author Sean Maxwell
+ */
+public class PrecursorIndex {
+    /**
+     * Width in Th of the bins of the occupancy bitmap
+     */
+    public static final double BIN_WIDTH = 0.001;
+    
+    private final Scan[] scans;
+    
+    /* Positions in scans of the MS2 scans, in ascending order of precursor
+     * m/z, and their precursor m/z values */
+    private final int[] order;
+    private final double[] sorted;
+    
+    /* Bins of width BIN_WIDTH holding at least one precursor, as the words of
+     * a bitmap */
+    private final long[] occupied;
+    
+    private static int bin(double mz) {
+        return (int)Math.floor(mz/BIN_WIDTH);
+    }
+    
+    /**
+     * Indexes the MS2 scans among the first count scans of an array.
+     *
+     * @param scans Scan properties, as parsed from the spectrum file
+     * @param count Number of scans in the array
+     */
+    public PrecursorIndex(Scan[] scans, int count) {
+        this.scans = scans;
+        
+        int n = 0;
+        for(int i=0;i<count;i++) {
+            if(scans[i].MSLevel == 2) n++;
+        }
+        int[] ms2 = new int[n];
+        double[] mz = new double[n];
+        n = 0;
+        for(int i=0;i<count;i++) {
+            if(scans[i].MSLevel == 2) {
+                mz[n] = scans[i].PrecursorMZ;
+                ms2[n++] = i;
+            }
+        }
+        int[] byMz = SortOrder.ascending(mz);
+        
+        order = new int[n];
+        sorted = new double[n];
+        BitSet bins = new BitSet();
+        for(int i=0;i<n;i++) {
+            order[i] = ms2[byMz[i]];
+            sorted[i] = mz[byMz[i]];
+            if(sorted[i] >= 0) {
+                bins.set(bin(sorted[i]));
+            }
+        }
+        occupied = bins.toLongArray();
+    }
+    
+    /**
+     * Checks the occupancy bitmap for a precursor in an m/z range. A false
+     * result is exact, but a true result only means that a bin overlapping
+     * the range holds a precursor.
+     *
+     * @param min Inclusive lower bound of the precursor m/z
+     * @param max Inclusive upper bound of the precursor m/z
+     *
+     * @return false if no MS2 scan has a precursor in the range
+     */
+    public boolean mayContain(double min, double max) {
+        if(max < min || max < 0) {
+            return false;
+        }
+        
+        /* Only the words of the bins in the range are checked, with the bits
+         * outside the range masked off the first and last */
+        int lo = bin(Math.max(min, 0.0));
+        int hi = bin(max);
+        int first = lo >>> 6;
+        int last = Math.min(hi >>> 6, occupied.length-1);
+        for(int w=first;w<=last;w++) {
+            long word = occupied[w];
+            if(w == first) word &= -1L << lo;
+            if(w == hi >>> 6) word &= -1L >>> (63-(hi & 63));
+            if(word != 0) return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Finds the MS2 scans with a precursor m/z and retention time in the
+     * given ranges.
+     *
+     * @param min Inclusive lower bound of the precursor m/z
+     * @param max Inclusive upper bound of the precursor m/z
+     * @param from Inclusive start retention time
+     * @param to Inclusive end retention time
+     *
+     * @return Positions of the matching scans in the scan array, in ascending
+     *         order
+     */
+    public int[] query(double min, double max, double from, double to) {
+        if(!mayContain(min, max)) {
+            return new int[0];
+        }
+        
+        return hits(lowerBound(min, 0), max, from, to);
+    }
+    
+    /**
+     * Finds the MS2 scans with a precursor m/z in each of several ranges and
+     * a retention time in the given range, as one query per range would. The
+     * ranges are visited in ascending order of their lower bounds, so each
+     * search of the sorted precursors starts where the previous one ended.
+     *
+     * @param min Inclusive lower bound of the precursor m/z of each range
+     * @param max Inclusive upper bound of the precursor m/z of each range
+     * @param from Inclusive start retention time
+     * @param to Inclusive end retention time
+     *
+     * @return Positions of the matching scans in the scan array for each
+     *         range, in ascending order
+     */
+    public int[][] query(double[] min, double[] max, double from, double to) {
+        int[][] hits = new int[min.length][];
+        int lo = 0;
+        for(int k : SortOrder.ascending(min)) {
+            if(!mayContain(min[k], max[k])) {
+                hits[k] = new int[0];
+                continue;
+            }
+            lo = lowerBound(min[k], lo);
+            hits[k] = hits(lo, max[k], from, to);
+        }
+        return hits;
+    }
+    
+    /* First position at or after from with a precursor m/z of at least min */
+    private int lowerBound(double min, int from) {
+        int lo = from;
+        int hi = sorted.length;
+        while(lo < hi) {
+            int mid = (lo+hi) >>> 1;
+            if(sorted[mid] < min) {
+                lo = mid+1;
+            }
+            else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+    
+    /* Scans from position lo up to precursor m/z max within the retention
+     * time range */
+    private int[] hits(int lo, double max, double from, double to) {
+        int[] hits = new int[16];
+        int n = 0;
+        for(int i=lo;i<sorted.length && sorted[i] <= max;i++) {
+            Scan scan = scans[order[i]];
+            if(!(scan.RetentionTime >= from && scan.RetentionTime <= to)) continue;
+            if(n == hits.length) {
+                hits = Arrays.copyOf(hits, n*2);
+            }
+            hits[n++] = order[i];
+        }
+        
+        /* Callers expect the scans in file order */
+        hits = Arrays.copyOf(hits, n);
+        Arrays.sort(hits);
+        return hits;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.spectra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoded peaks of the scans of a spectrum file, held off the heap in direct
+ * buffers so that they are decoded once and never scanned by the garbage
+ * collector. The peaks of a scan are packed m/z and intensity pairs, as
+ * floats for scans stored at 32-bit precision and as doubles for scans
+ * stored at 64-bit precision, so reading them back gives exactly the values
+ * decoded. The segment, offset and length of each scan are kept in arrays
+ * indexed like the scans of the file, so a scan is found in constant
+ * time.<br><br>
+ * 
+ * The arena is laid out up front from the peak counts of the scans and never
+ * grows past its memory limit. Scans are taken in order until the next does
+ * not fit, and scans left out are read from the file as before.
+ *
+ * @author Sean Maxwell
+ */
+public class ScanArena {
+    /**
+     * Maximum size in bytes of each direct buffer of the arena
+     */
+    public static final int SEGMENT_SIZE = 1 << 28;
+    
+    private final List<ByteBuffer> segments;
+    
+    /* Per scan. The segment is -1 for a scan not held */
+    private final int[] segment;
+    private final int[] offset;
+    private final int[] length;
+    private final boolean[] wide;
+    
+    private final long size;
+    private final int count;
+    private final boolean complete;
+    
+    /**
+     * Lays out an arena for the scans with a positive peak count.
+     *
+     * @param peaks Number of peaks of each scan, or 0 for a scan to leave out
+     * @param wide Whether the peaks of each scan are 64-bit values
+     * @param maxBytes Maximum size in bytes of the arena
+     */
+    public ScanArena(int[] peaks, boolean[] wide, long maxBytes) {
+        this.segment = new int[peaks.length];
+        this.offset = new int[peaks.length];
+        this.length = new int[peaks.length];
+        this.wide = wide.clone();
+        
+        /* Place each scan in the current segment, or start a new one */
+        List<Integer> segmentSizes = new ArrayList<>();
+        long total = 0;
+        int used = 0;
+        int n = 0;
+        boolean fits = true;
+        for(int i=0;i<peaks.length;i++) {
+            segment[i] = -1;
+            if(peaks[i] <= 0 || !fits) continue;
+            long bytes = (long)peaks[i]*(wide[i] ? 16 : 8);
+            if(total+bytes > maxBytes || bytes > Integer.MAX_VALUE) {
+                fits = false;
+                continue;
+            }
+            if(segmentSizes.isEmpty() || (used > 0 && used+bytes > SEGMENT_SIZE)) {
+                segmentSizes.add(0);
+                used = 0;
+            }
+            segment[i] = segmentSizes.size()-1;
+            offset[i] = used;
+            length[i] = peaks[i];
+            used += (int)bytes;
+            segmentSizes.set(segment[i], used);
+            total += bytes;
+            n++;
+        }
+        
+        this.segments = new ArrayList<>(segmentSizes.size());
+        for(int bytes : segmentSizes) {
+            segments.add(ByteBuffer.allocateDirect(bytes));
+        }
+        this.size = total;
+        this.count = n;
+        this.complete = fits;
+    }
+    
+    /**
+     * @param index Index of a scan
+     * 
+     * @return Whether the arena has room for the peaks of the scan
+     */
+    public boolean holds(int index) {
+        return segment[index] != -1;
+    }
+    
+    /**
+     * Stores the decoded peaks of a scan the arena has room for. Stores with
+     * absolute positions, so scans can be stored and read by several threads
+     * at once.
+     *
+     * @param index Index of the scan
+     * @param peaks Decoded peaks of the scan, with as many peaks as laid out
+     */
+    public void put(int index, Peaks peaks) {
+        ByteBuffer buffer = segments.get(segment[index]);
+        int position = offset[index];
+        for(int i=0;i<length[index];i++) {
+            if(wide[index]) {
+                buffer.putDouble(position, peaks.MZ[i]);
+                buffer.putDouble(position+8, peaks.Intensity[i]);
+                position += 16;
+            }
+            else {
+                buffer.putFloat(position, (float)peaks.MZ[i]);
+                buffer.putFloat(position+4, (float)peaks.Intensity[i]);
+                position += 8;
+            }
+        }
+    }
+    
+    /**
+     * Reads the peaks of a scan from the arena.
+     *
+     * @param index Index of the scan
+     *
+     * @return The peaks of the scan, or null if the arena does not hold it
+     */
+    public Peaks peaks(int index) {
+        if(segment[index] == -1) {
+            return null;
+        }
+        ByteBuffer buffer = segments.get(segment[index]);
+        int position = offset[index];
+        Peaks p = new Peaks(length[index]);
+        for(int i=0;i<length[index];i++) {
+            if(wide[index]) {
+                p.MZ[i] = buffer.getDouble(position);
+                p.Intensity[i] = buffer.getDouble(position+8);
+                position += 16;
+            }
+            else {
+                p.MZ[i] = buffer.getFloat(position);
+                p.Intensity[i] = buffer.getFloat(position+4);
+                position += 8;
+            }
+        }
+        return p;
+    }
+    
+    /**
+     * Leaves a scan laid out in the arena to be read from the file, as when
+     * its peaks could not be decoded.
+     *
+     * @param index Index of the scan
+     */
+    public void release(int index) {
+        segment[index] = -1;
+    }
+    
+    /**
+     * @return Size in bytes of the scans laid out in the arena
+     */
+    public long size() {
+        return size;
+    }
+    
+    /**
+     * @return Number of scans laid out in the arena
+     */
+    public int count() {
+        return count;
+    }
+    
+    /**
+     * @return Whether every scan requested fit within the memory limit
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+}
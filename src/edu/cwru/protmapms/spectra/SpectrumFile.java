@@ -36,7 +36,10 @@ public interface SpectrumFile {
     public int size() throws Exception;
     public int[] queryPrecursor(double minMz, double maxMz) throws Exception;
     public int[] queryPrecursor(double minMz, double maxMz, double fromRT, double toRT) throws Exception;
+    public int[][] queryPrecursors(double[] minMz, double[] maxMz, double fromRT, double toRT) throws Exception;
+    public boolean hasPrecursor(double minMz, double maxMz) throws Exception;
     public int[] queryMSLevel(int ms) throws Exception;
     public int[] queryRetentionTime(double start, double stop, int ms) throws Exception;
+    public long preloadScans(double fromRT, double toRT, long maxBytes) throws Exception;
     public String file();
 }
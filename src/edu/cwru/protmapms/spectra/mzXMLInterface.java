@@ -27,6 +27,10 @@ import java.io.RandomAccessFile;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.HashMap;
 
 // Org.XML.SAX...
@@ -40,6 +44,9 @@ import org.xml.sax.SAXException;
 // org.apache...
 import org.apache.commons.codec.binary.Base64;
 
+// edu.cwru.protmapms
+import edu.cwru.protmapms.metrics.SearchMetrics;
+
 // org.slf4j
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -69,6 +76,8 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
     private int      centroid;
     private Scan[]   scans;
     private HashMap<Integer,Integer> scanMap;
+    private PrecursorIndex precursorIndex;
+    private ScanArena arena;
 
     /* The state integer is used for tracking what type of data should be
      * parsed from the file next.
@@ -610,6 +619,7 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
         XMLReader xr;
         FileInputStream fr;
         InputStreamReader r;
+        long started = System.nanoTime();
 
         /* If the object is being reused, and the user did not correctly 
          * disconnect from the last Spectrum before reusing it, there are 
@@ -650,8 +660,12 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
             }
         }
 
+        /* Index the MS2 scans by precursor m/z for precursor queries */
+        this.precursorIndex = new PrecursorIndex(this.scans, this.scancount);
+
         /* All OK, return true */
         this.connected = true;
+        SearchMetrics.CONNECT.recordSince(started);
         return true;
     }
 
@@ -675,6 +689,8 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
 
         /* empty the scans array */
         this.scans = new Scan[0];
+        this.precursorIndex = null;
+        this.arena = null;
 
         /* Reset the other persistent members */
         this.scancount   = 0;
@@ -896,45 +912,57 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
     }
 
     /**
-     * The scan positions are only approximate in the mzXML file (they are to
-     * the start of the scan element, not to the peak data), so this function
-     * seeks forward in the file until it find the start of the peak data.
+     * Reads the base64 peak data of a scan. The scan positions are only
+     * approximate in the mzXML file (they are to the start of the scan
+     * element, not to the peak data), so this reads the scan element and
+     * searches forward in it for the start of the peak data. The read goes
+     * through the file channel at an absolute position, so it does not move
+     * a shared file pointer and scans can be read from several threads at
+     * once.
+     *
+     * @param position Offset of the scan element in the file
+     * @param length Length of the base64 peak data
      *
-     * @return true if the start of peak data was found, false if error occurs
+     * @return The peak data, or null if the start of the peak data was not
+     *         found
      */
-    private boolean seekToPeaks() {
-        String buf = "";
-        byte b = 0;
-        boolean con = true;
-
-        while(con) {
-            try {
-                b = this.raf.readByte();
+    private byte[] readPeakData(long position, int length) throws IOException {
+        FileChannel channel = this.raf.getChannel();
+        int window = length+1024;
+        while(true) {
+            /* Read as much of the window as the file holds */
+            ByteBuffer bb = ByteBuffer.allocate(window);
+            while(bb.hasRemaining()) {
+                if(channel.read(bb, position+bb.position()) < 0) break;
             }
-            catch(Exception e) {
-                return false;
-            }
-
-            buf += (char)b;
-            if(b == '<') {
-                buf = "";
-            }
-            else if(buf.equals("peaks ")) {
-                con = false;
+            byte[] block = bb.array();
+            int filled = bb.position();
+            
+            /* Find "<peaks " and the end of that tag */
+            int start = -1;
+            for(int i=0;i+7<=filled;i++) {
+                if(block[i] == '<' && block[i+1] == 'p' && block[i+2] == 'e' && block[i+3] == 'a' &&
+                   block[i+4] == 'k' && block[i+5] == 's' && block[i+6] == ' ') {
+                    for(int j=i+7;j<filled;j++) {
+                        if(block[j] == '>') {
+                            start = j+1;
+                            break;
+                        }
+                    }
+                    break;
+                }
             }
-           
-        }
-
-        while(b != 62) {
-            try {
-                b = this.raf.readByte();
+            
+            /* Grow the window if the data may continue past it */
+            if((start < 0 || filled-start < length) && filled == window) {
+                window *= 2;
+                continue;
             }
-            catch(Exception e) {
-                return false;
+            if(start < 0) {
+                return null;
             }
+            return Arrays.copyOfRange(block, start, start+length);
         }
-
-        return true;
     }
 
     /**
@@ -959,6 +987,7 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
         float fvalue;
         int peakn = 0;
         boolean mz = true;
+        long started = System.nanoTime();
 
         /* Check to make sure object is connected to a JRAF file */
         if(!this.connected) {
@@ -974,26 +1003,33 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
         /* Map scan to array index */
         s = this.scanMap.get(s);
         
+        /* Preloaded scans are read from the arena without decoding */
+        if(this.arena != null) {
+            p = this.arena.peaks(s);
+            if(p != null) {
+                SearchMetrics.SCAN_ARENA_HITS.increment();
+                return p;
+            }
+        }
+        
         /* allocate a peaks structure of adequate length */
         p = new Peaks(this.scans[s].PeaksCount);
-        b = new byte[(int)this.scans[s].ScanLength];
         
         /* This just gets the pointer close. It is the offset of the scan
          * element start in the document */
-        if(this.scans[s].ScanPos != -1) {
-            this.raf.seek(this.scans[s].ScanPos);
-        }
-        else {
+        if(this.scans[s].ScanPos == -1) {
             logger.error("Scan {} is missing data for offset. This is a very strange event. Check the spectrum file manually for errors.",scans[s]);
             return null;
         }
 
-        /* This finds the begining of the base64 content from the start of
-         * the scan element */
-        this.seekToPeaks();
-
-        /* Read the peak data */
-        this.raf.read(b);
+        /* Read the scan element and find the begining of the base64 content
+         * in it. The read is positional, so it does not move a shared file
+         * pointer and scans can be read from several threads at once */
+        b = this.readPeakData(this.scans[s].ScanPos, (int)this.scans[s].ScanLength);
+        if(b == null) {
+            logger.error("Could not find the peak data of scan {}",this.scans[s].ScanNum);
+            return null;
+        }
 
 
         /* Decode the base 64 data to an array of bytes */
@@ -1093,10 +1129,84 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
 
         }
 
+        SearchMetrics.DECODE.recordSince(started);
+        SearchMetrics.SCANS_DECODED.increment();
         return p;
 
     }
 
+    /**
+     * Decodes the peaks of every MS2 scan in a retention time window into an
+     * off-heap arena, from which getScanPeaks() then reads them without
+     * decoding. Scans are taken in file order until the next one would pass
+     * the memory limit, and the scans left out are read from the file as
+     * before.
+     *
+     * @param from The start retention time
+     * @param to The end retention time
+     * @param maxBytes Maximum size in bytes of the arena
+     *
+     * @return Size in bytes of the arena
+     * 
+     * @throws Exception if the request could not be fulfilled.
+     */
+    @Override
+    public long preloadScans(double from, double to, long maxBytes) throws Exception {
+        int i;
+        int n = 0;
+        int[] peaks;
+        boolean[] wide;
+        ScanArena preloaded;
+        Peaks p;
+
+        /* Check to make sure object is connected to a spectrum file */
+        if(!this.connected) {
+            throw new Exception("There is no file connected");
+        }
+
+        /* Lay out the arena from the peak counts of the scan headers */
+        peaks = new int[this.scancount];
+        wide = new boolean[this.scancount];
+        for(i=0;i<this.scancount;i++) {
+            if(this.scans[i].MSLevel != 2) continue;
+            if(!(this.scans[i].RetentionTime >= from && this.scans[i].RetentionTime <= to)) continue;
+            peaks[i] = this.scans[i].PeaksCount;
+            wide[i] = this.scans[i].Precision == 64;
+        }
+        try {
+            preloaded = new ScanArena(peaks, wide, maxBytes);
+        }
+        catch(OutOfMemoryError e) {
+            logger.warn("Could not allocate the scan arena of {}. Scans are read on demand.",this.file);
+            return 0;
+        }
+
+        /* Decode the scans into it before it is used, so every scan is
+         * decoded from the file this once */
+        this.arena = null;
+        for(i=0;i<this.scancount;i++) {
+            if(!preloaded.holds(i)) continue;
+            p = this.getScanPeaks(this.scans[i].ScanNum);
+            if(p == null || p.MZ.length != this.scans[i].PeaksCount) {
+                preloaded.release(i);
+                continue;
+            }
+            preloaded.put(i, p);
+            n++;
+        }
+        this.arena = preloaded;
+
+        SearchMetrics.SCANS_PRELOADED.add(n);
+        if(!preloaded.isComplete()) {
+            logger.warn("Preloaded {} MS2 scans of {} in {} MB. The remaining scans exceed the scan arena memory and are read on demand.",
+                    n,this.file,String.format("%.1f", preloaded.size()/(1024.0*1024.0)));
+        }
+        else {
+            logger.info("Preloaded {} MS2 scans of {} in {} MB",n,this.file,String.format("%.1f", preloaded.size()/(1024.0*1024.0)));
+        }
+        return preloaded.size();
+    }
+
     /**
      * Loads the requested scan number, and prints the scan information to the
      * requested output file.
@@ -1302,9 +1412,25 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
      */
     @Override
     public int[] queryPrecursor(double min, double max) throws Exception {
+        return queryPrecursor(min, max, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Searches the header information for scans with a precursor ion between
+     * the argument maximum and minimum (inclusive).
+     *
+     * @param min The inclusive lowerbound for the precursor m/z value
+     * @param max The inclusive upperbound for the precursor m/z value
+     * @param from The start retention time
+     * @param to The end retention time
+     *
+     * @return scan numbers of the matches
+     * 
+     * @throws Exception if the request could not be fulfilled.
+     */
+    @Override
+    public int[] queryPrecursor(double min, double max, double from, double to) throws Exception {
         int i;
-        int j = 0;
-        int[] scratch = new int[100];
         int[] hits;
 
         /* Check to make sure object is connected to a spectrum file */
@@ -1312,81 +1438,70 @@ public class mzXMLInterface extends DefaultHandler implements SpectrumFile {
             throw new Exception("There is no file connected");
         }
 
-
-        /* Find all the matching scans using a scaling container for storage */
-        for(i=0;i<this.scancount;i++) {
-            if(this.scans[i].MSLevel == 2) {
-                if(this.scans[i].PrecursorMZ >= min && this.scans[i].PrecursorMZ <= max) {
-                    scratch[j] = this.scans[i].ScanNum;
-                    j++;
-                    if(j == scratch.length) {
-                        scratch = this.ExtendIntArray(scratch);
-                    }
-                }
-            }
-        }
-
-        /* Copy the matching scans to an array of correct length */
-        hits = new int[j];
-        for(i=0;i<j;i++) {
-            hits[i] = scratch[i];
+        /* Find the matching scans in the precursor index, which returns
+         * them in file order */
+        hits = this.precursorIndex.query(min, max, from, to);
+        for(i=0;i<hits.length;i++) {
+            hits[i] = this.scans[hits[i]].ScanNum;
         }
 
         return hits;
-        
+
     }
 
     /**
-     * Searches the header information for scans with a precursor ion between
-     * the argument maximum and minimum (inclusive).
+     * Searches the header information for scans with a precursor ion in each
+     * of several ranges, in one pass over the precursor index.
      *
-     * @param min The inclusive lowerbound for the precursor m/z value
-     * @param max The inclusive upperbound for the precursor m/z value
+     * @param min The inclusive lowerbound for the precursor m/z of each range
+     * @param max The inclusive upperbound for the precursor m/z of each range
      * @param from The start retention time
      * @param to The end retention time
      *
-     * @return scan numbers of the matches
+     * @return scan numbers of the matches of each range
      * 
      * @throws Exception if the request could not be fulfilled.
      */
     @Override
-    public int[] queryPrecursor(double min, double max, double from, double to) throws Exception {
-        int i;
-        int j = 0;
-        int[] scratch = new int[100];
-        int[] hits;
+    public int[][] queryPrecursors(double[] min, double[] max, double from, double to) throws Exception {
+        int[][] hits;
 
         /* Check to make sure object is connected to a spectrum file */
         if(!this.connected) {
             throw new Exception("There is no file connected");
         }
 
-        /* Find all the matching scans using a scaling container for storage */
-        for(i=0;i<this.scancount;i++) {
-
-            if(this.scans[i].RetentionTime >= from &&
-               this.scans[i].RetentionTime <= to) {
-                if(this.scans[i].MSLevel == 2) {
-                    if(this.scans[i].PrecursorMZ >= min &&
-                       this.scans[i].PrecursorMZ <= max) {
-                        scratch[j] = this.scans[i].ScanNum;
-                        j++;
-                        if(j == scratch.length) {
-                            scratch = this.ExtendIntArray(scratch);
-                        }
-                    }
-                }
+        hits = this.precursorIndex.query(min, max, from, to);
+        for(int[] range : hits) {
+            for(int i=0;i<range.length;i++) {
+                range[i] = this.scans[range[i]].ScanNum;
             }
         }
 
-        /* Copy the matching scans to an array of correct length */
-        hits = new int[j];
-        for(i=0;i<j;i++) {
-            hits[i] = scratch[i];
-        }
-
         return hits;
+    }
+
+    /**
+     * Checks for an MS2 scan with a precursor ion between the argument
+     * maximum and minimum (inclusive), using the precursor occupancy bitmap.
+     * This is much cheaper than a query, but may report a precursor when the
+     * nearest one lies just outside the range.
+     *
+     * @param min The inclusive lowerbound for the precursor m/z value
+     * @param max The inclusive upperbound for the precursor m/z value
+     *
+     * @return false if no scan has a precursor in the range
+     * 
+     * @throws Exception if the request could not be fulfilled.
+     */
+    @Override
+    public boolean hasPrecursor(double min, double max) throws Exception {
+        /* Check to make sure object is connected to a spectrum file */
+        if(!this.connected) {
+            throw new Exception("There is no file connected");
+        }
 
+        return this.precursorIndex.mayContain(min, max);
     }
 
     /**
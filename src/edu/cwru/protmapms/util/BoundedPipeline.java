@@ -0,0 +1,251 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs work items through a sequence of stages connected by bounded queues.
+ * Items are produced by a source on the calling thread and handed to the
+ * first stage, and every stage passes each item it processed on to the next.
+ * Each stage has its own number of worker threads, so a stage that waits on
+ * I/O can be given more workers than one that is bound by CPU. When a queue
+ * is full, the stage feeding it (or the source) blocks until there is room,
+ * so a slow stage holds back the stages before it instead of letting items
+ * pile up in memory.<br><br>
+ * 
+ * Items are processed in parallel within a stage, so the order in which
+ * items leave a stage is not the order in which they entered. Stages that
+ * need the original order should record a sequence number in the item.<br><br>
+ * 
+ * If the source or a stage throws, the remaining items are drained without
+ * being processed, and run() throws the first exception once every worker
+ * has stopped.
+ * 
+ * @author Sean Maxwell
+ * 
+ * @param <T> Type of the work items
+ */
+public class BoundedPipeline<T> {
+    private static final Object END = new Object();
+    private final String name;
+    private final int capacity;
+    private final List<String> stageNames;
+    private final List<Integer> stageWorkers;
+    private final List<Stage<T>> stages;
+    
+    /**
+     * Processes one item in a stage.
+     * 
+     * @param <T> Type of the work items
+     */
+    public interface Stage<T> {
+        public void process(T item) throws Exception;
+    }
+    
+    /**
+     * Hands items to the first stage, blocking while its queue is full.
+     * 
+     * @param <T> Type of the work items
+     */
+    public interface Emitter<T> {
+        public void emit(T item) throws Exception;
+    }
+    
+    /**
+     * Produces the items of a run.
+     * 
+     * @param <T> Type of the work items
+     */
+    public interface Source<T> {
+        public void produce(Emitter<T> emitter) throws Exception;
+    }
+    
+    /**
+     * @param name Name of the pipeline, used to name its threads
+     * @param capacity Number of items each queue between stages can hold
+     */
+    public BoundedPipeline(String name, int capacity) {
+        this.name = name;
+        this.capacity = capacity;
+        this.stageNames = new ArrayList<>();
+        this.stageWorkers = new ArrayList<>();
+        this.stages = new ArrayList<>();
+    }
+    
+    /**
+     * Adds a stage after the stages added so far.
+     * 
+     * @param stageName Name of the stage, used to name its threads
+     * @param workers Number of worker threads of the stage
+     * @param stage Processing done by the stage
+     * 
+     * @return this
+     */
+    public BoundedPipeline<T> addStage(String stageName, int workers, Stage<T> stage) {
+        stageNames.add(stageName);
+        stageWorkers.add(Math.max(1, workers));
+        stages.add(stage);
+        return this;
+    }
+    
+    /* Puts an item in a queue, waiting through interrupts. Consumers keep
+     * taking items until they see END, so the wait always ends */
+    private static void put(BlockingQueue<Object> queue, Object item) {
+        boolean interrupted = false;
+        while(true) {
+            try {
+                queue.put(item);
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    private static Object take(BlockingQueue<Object> queue) {
+        boolean interrupted = false;
+        Object item;
+        while(true) {
+            try {
+                item = queue.take();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return item;
+    }
+    
+    /**
+     * Runs the items of a source through every stage, and returns once all of
+     * them have left the last stage.
+     * 
+     * @param source Source of the items, called on the calling thread
+     * 
+     * @throws Exception the first exception thrown by the source or a stage
+     */
+    @SuppressWarnings("unchecked")
+    public void run(Source<T> source) throws Exception {
+        final int n = stages.size();
+        final List<BlockingQueue<Object>> queues = new ArrayList<>();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final AtomicInteger[] alive = new AtomicInteger[n];
+        List<Thread> threads = new ArrayList<>();
+        for(int i=0;i<n;i++) {
+            queues.add(new ArrayBlockingQueue<>(capacity));
+            alive[i] = new AtomicInteger(stageWorkers.get(i));
+        }
+        
+        for(int i=0;i<n;i++) {
+            final int stageIndex = i;
+            for(int w=0;w<stageWorkers.get(i);w++) {
+                Thread thread = new Thread(() -> {
+                    Stage<T> stage = stages.get(stageIndex);
+                    while(true) {
+                        Object item = take(queues.get(stageIndex));
+                        if(item == END) break;
+                        if(failure.get() != null) continue;
+                        
+                        try {
+                            stage.process((T)item);
+                        }
+                        catch(Throwable t) {
+                            failure.compareAndSet(null, t);
+                            continue;
+                        }
+                        if(stageIndex+1 < n) {
+                            put(queues.get(stageIndex+1), item);
+                        }
+                    }
+                    
+                    /* The last worker of a stage to stop ends the next one */
+                    if(alive[stageIndex].decrementAndGet() == 0 && stageIndex+1 < n) {
+                        for(int k=0;k<stageWorkers.get(stageIndex+1);k++) {
+                            put(queues.get(stageIndex+1), END);
+                        }
+                    }
+                }, String.format("%s-%s-%d",name,stageNames.get(i),w));
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+        }
+        
+        try {
+            source.produce(item -> {
+                if(failure.get() != null) {
+                    throw new Exception(String.format("Pipeline %s stopped after a stage failed",name), failure.get());
+                }
+                queues.get(0).put(item);
+            });
+        }
+        catch(Throwable t) {
+            failure.compareAndSet(null, t);
+        }
+        finally {
+            if(n > 0) {
+                for(int k=0;k<stageWorkers.get(0);k++) {
+                    put(queues.get(0), END);
+                }
+            }
+        }
+        
+        boolean interrupted = false;
+        for(Thread thread : threads) {
+            while(true) {
+                try {
+                    thread.join();
+                    break;
+                }
+                catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        Throwable t = failure.get();
+        if(t instanceof Exception) {
+            throw (Exception)t;
+        }
+        else if(t != null) {
+            throw new Exception(String.format("Pipeline %s failed",name), t);
+        }
+    }
+}
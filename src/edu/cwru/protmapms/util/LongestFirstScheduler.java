@@ -0,0 +1,148 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.util;
+
+import edu.cwru.protmapms.math.SortOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs units of work of known estimated cost on a fixed number of worker
+ * threads. The units are queued longest first, and each worker takes the
+ * next unit in the queue as soon as it is free. Long units therefore start
+ * early, and the end of a run is made of short units spread over every
+ * worker instead of one long unit keeping a single worker busy while the
+ * others are idle.<br><br>
+ * 
+ * If a unit throws, the units not yet started are skipped, and run() throws
+ * the first exception once every worker has stopped.
+ * 
+ * @author Sean Maxwell
+ * 
+ * @param <T> Type of the units
+ */
+public class LongestFirstScheduler<T> {
+    private final String name;
+    private final int workers;
+    private final List<T> units;
+    private final List<Double> costs;
+    
+    /**
+     * Processes one unit.
+     * 
+     * @param <T> Type of the units
+     */
+    public interface Task<T> {
+        public void process(T unit) throws Exception;
+    }
+    
+    /**
+     * @param name Name of the scheduler, used to name its threads
+     * @param workers Number of worker threads
+     */
+    public LongestFirstScheduler(String name, int workers) {
+        this.name = name;
+        this.workers = Math.max(1, workers);
+        this.units = new ArrayList<>();
+        this.costs = new ArrayList<>();
+    }
+    
+    /**
+     * Adds a unit to the next run.
+     * 
+     * @param unit Unit of work
+     * @param cost Estimated cost of the unit, relative to the other units
+     * 
+     * @return this
+     */
+    public LongestFirstScheduler<T> add(T unit, double cost) {
+        units.add(unit);
+        costs.add(cost);
+        return this;
+    }
+    
+    /**
+     * Runs every unit added, and returns once all of them are done.
+     * 
+     * @param task Processing of a unit
+     * 
+     * @throws Exception the first exception thrown by a unit
+     */
+    public void run(Task<T> task) throws Exception {
+        /* Longest first, in the order added among equal costs */
+        double[] negated = new double[costs.size()];
+        for(int i=0;i<negated.length;i++) {
+            negated[i] = -costs.get(i);
+        }
+        final int[] order = SortOrder.ascending(negated);
+        
+        /* Position in order of the next unit to take */
+        final AtomicInteger next = new AtomicInteger();
+        final int n = Math.min(workers, Math.max(1, order.length));
+        
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for(int w=0;w<n;w++) {
+            Thread thread = new Thread(() -> {
+                for(int i=next.getAndIncrement();i<order.length;i=next.getAndIncrement()) {
+                    if(failure.get() != null) continue;
+                    try {
+                        task.process(units.get(order[i]));
+                    }
+                    catch(Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }, String.format("%s-%d",name,w));
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+        
+        boolean interrupted = false;
+        for(Thread thread : threads) {
+            while(true) {
+                try {
+                    thread.join();
+                    break;
+                }
+                catch(InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        
+        Throwable t = failure.get();
+        if(t instanceof Exception) {
+            throw (Exception)t;
+        }
+        else if(t != null) {
+            throw new Exception(String.format("Scheduler %s failed",name), t);
+        }
+    }
+}
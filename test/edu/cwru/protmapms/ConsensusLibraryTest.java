@@ -0,0 +1,165 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.math.ArrayAlignment;
+import edu.cwru.protmapms.spectra.Peaks;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ConsensusLibraryTest {
+    private static final double[] OFFSETS = {0.0,57.021464,0.0,0.0,0.0};
+    
+    public ConsensusLibraryTest() {
+    }
+    
+    /* An identification matching the even peaks of a scan */
+    private static Identification identification(double[] mz, double[] intensity, double rt) {
+        return identification(mz, intensity, rt, 1);
+    }
+    
+    private static Identification identification(double[] mz, double[] intensity, double rt, int scan) {
+        double[] theoreticalMz = new double[mz.length];
+        double[] theoreticalIntensity = new double[mz.length];
+        for(int i=0;i<mz.length;i+=2) {
+            theoreticalMz[i] = mz[i];
+            theoreticalIntensity[i] = 1.0;
+        }
+        return new Identification(rt, scan, 0.9).
+                setObservedIons(new MSMSIons(mz, intensity, mz.length)).
+                setTheoreticalIons(new MSMSIons(theoreticalMz, theoreticalIntensity, mz.length));
+    }
+    
+    private static File libraryFile() throws Exception {
+        File f = File.createTempFile("consensus", ".tsv");
+        f.delete();
+        f.deleteOnExit();
+        return f;
+    }
+    
+    @Test
+    public void testRecordAndUpdate() throws Exception {
+        ConsensusLibrary library = ConsensusLibrary.read(libraryFile().getPath());
+        String key = ConsensusLibrary.key("ACDEK", OFFSETS, 2);
+        assertEquals(0,library.size());
+        
+        library.record(key, "a.mzXML", identification(new double[]{200.5,250.0,300.2,350.0,400.3,450.0,500.4,550.0}, new double[]{10,1,20,1,40,1,20,1}, 600.0));
+        library.record(key, "a.mzXML", identification(new double[]{200.6,250.0,300.2,350.0,400.3,450.0,500.4,550.0}, new double[]{30,1,20,1,40,1,20,1}, 620.0));
+        
+        /* Too few matched ions */
+        library.record(ConsensusLibrary.key("ACDEK", OFFSETS, 3), "a.mzXML", identification(new double[]{200.5,250.0,300.2}, new double[]{10,1,20}, 600.0));
+        assertNull(library.get(key));
+        assertEquals(2,library.update(0.25));
+        
+        /* Only the matched peaks are kept, merged within the MS2 error with
+         * the intensities of each spectrum scaled to a maximum of 1 */
+        ConsensusLibrary.Entry entry = library.get(key);
+        assertEquals(1,library.size());
+        assertEquals(2,entry.count);
+        assertEquals(610.0,entry.retentionTime(),1e-9);
+        assertArrayEquals(new double[]{200.5*0.25+200.6*0.75,300.2,400.3,500.4},entry.mz,1e-9);
+        assertArrayEquals(new double[]{1.0,1.0,2.0,1.0},entry.intensity,1e-9);
+    }
+    
+    @Test
+    public void testUpdateOrder() throws Exception {
+        String key = ConsensusLibrary.key("ACDEK", OFFSETS, 2);
+        double[][] mz = {{200.5,250.0,300.2,350.0,400.3,450.0,500.4,550.0},
+                         {200.6,250.0,300.1,350.0,400.7,450.0,500.3,550.0},
+                         {200.9,250.0,300.3,350.0,400.1,450.0,500.6,550.0}};
+        double[][] intensity = {{10,1,20,1,40,1,20,1},{33,1,17,1,41,1,3,1},{7,1,29,1,13,1,31,1}};
+        
+        /* The merged entry does not depend on the order of the records */
+        ConsensusLibrary forward = ConsensusLibrary.read(libraryFile().getPath());
+        ConsensusLibrary reverse = ConsensusLibrary.read(libraryFile().getPath());
+        for(int i=0;i<mz.length;i++) {
+            forward.record(key, i == 2 ? "b.mzXML" : "a.mzXML", identification(mz[i], intensity[i], 600.0+i, 10-i));
+        }
+        for(int i=mz.length-1;i>=0;i--) {
+            reverse.record(key, i == 2 ? "b.mzXML" : "a.mzXML", identification(mz[i], intensity[i], 600.0+i, 10-i));
+        }
+        forward.update(0.25);
+        reverse.update(0.25);
+        assertArrayEquals(forward.get(key).mz,reverse.get(key).mz,0.0);
+        assertArrayEquals(forward.get(key).intensity,reverse.get(key).intensity,0.0);
+        assertEquals(forward.get(key).retentionTime(),reverse.get(key).retentionTime(),0.0);
+    }
+    
+    @Test
+    public void testWriteAndRead() throws Exception {
+        File f = libraryFile();
+        ConsensusLibrary library = ConsensusLibrary.read(f.getPath());
+        String key = ConsensusLibrary.key("ACDEK", OFFSETS, 2);
+        library.record(key, "a.mzXML", identification(new double[]{200.5,250.0,300.2,350.0,400.3,450.0,500.4,550.0}, new double[]{10,1,20,1,40,1,20,1}, 600.0));
+        library.update(0.25);
+        library.write();
+        
+        ConsensusLibrary read = ConsensusLibrary.read(f.getPath());
+        assertEquals(1,read.size());
+        assertArrayEquals(library.get(key).mz,read.get(key).mz,0.0);
+        assertArrayEquals(library.get(key).intensity,read.get(key).intensity,0.0);
+        assertEquals(600.0,read.get(key).retentionTime(),0.0);
+        assertNotEquals("empty",read.digest());
+        f.delete();
+    }
+    
+    @Test
+    public void testDotAndAlign() throws Exception {
+        ConsensusLibrary library = ConsensusLibrary.read(libraryFile().getPath());
+        String key = ConsensusLibrary.key("ACDEK", OFFSETS, 2);
+        library.record(key, "a.mzXML", identification(new double[]{200.5,250.0,300.2,350.0,400.3,450.0,500.4,550.0}, new double[]{10,1,20,1,40,1,20,1}, 600.0));
+        library.update(0.25);
+        ConsensusLibrary.Entry entry = library.get(key);
+        
+        /* The consensus peaks alone give a dot product of 1 */
+        Peaks same = new Peaks(new double[]{200.52,300.18,400.31,500.42}, new double[]{10,20,40,20});
+        assertEquals(1.0,ConsensusLibrary.dot(entry, same),1e-9);
+        
+        /* Peaks in other bins only lower the dot product */
+        Peaks noisy = new Peaks(new double[]{150.0,200.52,300.18,400.31,500.42,620.0}, new double[]{30,10,20,40,20,30});
+        double dot = ConsensusLibrary.dot(entry, noisy);
+        assertTrue(dot < 1.0 && dot > ConsensusLibrary.MIN_DOT);
+        Peaks other = new Peaks(new double[]{150.0,250.5,620.0}, new double[]{30,10,20});
+        assertEquals(0.0,ConsensusLibrary.dot(entry, other),0.0);
+        
+        /* The most intense peak within the MS2 error of each consensus ion is
+         * aligned. A peak in the bin of a consensus ion but further away than
+         * the MS2 error is not */
+        Peaks doubled = new Peaks(new double[]{150.0,200.45,200.6,300.18,400.9}, new double[]{30,5,10,20,40});
+        ArrayAlignment alignment = ConsensusLibrary.align(entry, doubled, 0.25);
+        assertEquals(5,alignment.size);
+        assertEquals(ConsensusLibrary.bin(entry.mz[2]),ConsensusLibrary.bin(400.9));
+        assertArrayEquals(new double[]{0.0,0.0,1.0,1.0,0.0},Arrays.copyOf(alignment.theoreticalIntensities, 5),0.0);
+        assertArrayEquals(new double[]{0.0,0.0,200.6,300.18,0.0},Arrays.copyOf(alignment.theoreticalMzValues, 5),0.0);
+        assertEquals(2,alignment.count);
+    }
+    
+}
@@ -0,0 +1,425 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.modifications.Modification;
+import edu.cwru.protmapms.modifications.Modifications;
+import edu.cwru.protmapms.result.FootprintingResult;
+import edu.cwru.protmapms.result.IonStore;
+import edu.cwru.protmapms.result.PeptideResult;
+import edu.cwru.protmapms.result.ProteinResult;
+import edu.cwru.protmapms.result.SpectrumResult;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class IdentificationFactoryTest {
+    private static final double OXIDATION = 15.994915;
+    private static final double CARBAMIDOMETHYL = 57.021464;
+    
+    private Fasta proteins;
+    private Modifications modifications;
+    
+    public IdentificationFactoryTest() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        /* Two proteins sharing the peptides GLVLIAFSQYLQQCPFDEHVK and
+         * LVNELTEFAK */
+        proteins = new Fasta("test-data/engines.fasta",false);
+        
+        modifications = new Modifications();
+        Modification carbox = new Modification("C","Carbamidomethylation",CARBAMIDOMETHYL);
+        carbox.setFixed(true);
+        modifications.addModification(carbox);
+        modifications.addModification(new Modification("M","Oxidation",OXIDATION).setLabeling(true));
+        modifications.addModification(new Modification("W","Oxidation",OXIDATION).setLabeling(true));
+        modifications.addModification(new Modification("F","Oxidation",OXIDATION).setLabeling(true));
+    }
+    
+    /* A scan of the synthetic spectrum file */
+    private static class SyntheticScan {
+        int level;
+        double rt;
+        double precursorMz;
+        double[] mz;
+        double[] intensity;
+        
+        SyntheticScan(int level, double rt, TreeMap<Double,Double> peaks) {
+            this.level = level;
+            this.rt = rt;
+            mz = new double[peaks.size()];
+            intensity = new double[peaks.size()];
+            int i = 0;
+            for(Map.Entry<Double,Double> e : peaks.entrySet()) {
+                mz[i] = e.getKey();
+                intensity[i++] = e.getValue();
+            }
+        }
+    }
+    
+    /* An MS2 scan holding part of the b and y ions of a species among random
+     * noise peaks, or only noise peaks at the same precursor if decoy */
+    private static SyntheticScan ms2(String sequence, double[] offsets, int z, double rt, boolean decoy, Random random) {
+        TreeMap<Double,Double> peaks = new TreeMap<>();
+        double[] ions = IonFactory.getTheoreticalIons(sequence, z, offsets);
+        String[] labels = IonFactory.getTheoreticalIonLabels(sequence, z, offsets);
+        for(int i=0;i<ions.length;i++) {
+            if(decoy || ions[i] < 0 || random.nextDouble() < 0.3) continue;
+            if(!(labels[i].startsWith("1 ") || labels[i].startsWith("2 "))) continue;
+            if(labels[i].contains("-") || labels[i].contains(" a")) continue;
+            peaks.put(ions[i]+(random.nextDouble()-0.5)*0.02, 500+random.nextDouble()*5000);
+        }
+        for(int k=0;k<120;k++) {
+            peaks.put(100+random.nextDouble()*1500, 20+random.nextDouble()*300);
+        }
+        SyntheticScan scan = new SyntheticScan(2, rt, peaks);
+        scan.precursorMz = IonFactory.calculatePrecursorIonMass(sequence, z, offsets)[0]+(random.nextDouble()-0.5)*0.002;
+        return scan;
+    }
+    
+    private File spectrumFile(File dir) throws Exception {
+        return spectrumFile(dir, "synthetic", 42);
+    }
+    
+    /* Writes an indexed mzXML file of a species eluting every 40 seconds,
+     * with its unmodified and oxidized forms at charge 2 and 3 */
+    private File spectrumFile(File dir, String name, long seed) throws Exception {
+        Random random = new Random(seed);
+        List<String> sequences = new ArrayList<>();
+        List<double[]> offsets = new ArrayList<>();
+        for(String accession : proteins.getAccessions()) {
+            PeptideFactory pf = new PeptideFactory(false);
+            pf.setProtease("Trypsin");
+            pf.setMissedCleavages(1);
+            pf.setSequence(proteins.getSequence(accession));
+            pf.start();
+            List<Peptide> cleaved = pf.getNext();
+            while(cleaved != null) {
+                for(Peptide peptide : cleaved) {
+                    double mass = IonFactory.calculateIonMass(peptide.sequence);
+                    if(mass < 700 || mass > 3000 || sequences.contains(peptide.sequence)) continue;
+                    double[] o = new double[peptide.length];
+                    for(int i=0;i<peptide.length;i++) {
+                        if(peptide.sequence.charAt(i) == 'C') o[i] = CARBAMIDOMETHYL;
+                    }
+                    sequences.add(peptide.sequence);
+                    offsets.add(o);
+                    int site = peptide.sequence.replaceAll("[MWF]", "#").indexOf('#');
+                    if(site >= 0) {
+                        double[] oxidized = o.clone();
+                        oxidized[site] += OXIDATION;
+                        sequences.add(peptide.sequence);
+                        offsets.add(oxidized);
+                    }
+                }
+                cleaved = pf.getNext();
+            }
+        }
+        
+        /* MS1 scans every 6 seconds, each followed by the MS2 scans of the
+         * species at their apex */
+        List<SyntheticScan> scans = new ArrayList<>();
+        double end = 1500+40*sequences.size()+300;
+        for(double rt=1200;rt<end;rt+=6) {
+            TreeMap<Double,Double> peaks = new TreeMap<>();
+            for(int k=0;k<200;k++) {
+                peaks.put(400+random.nextDouble()*1200, 100+random.nextDouble()*500);
+            }
+            for(int i=0;i<sequences.size();i++) {
+                double d = (rt-(1500+40*i))/30.0;
+                if(Math.abs(d) > 4) continue;
+                for(int z=2;z<=3;z++) {
+                    peaks.put(IonFactory.calculatePrecursorIonMass(sequences.get(i), z, offsets.get(i))[0], 1e5*Math.exp(-d*d/2));
+                }
+            }
+            scans.add(new SyntheticScan(1, rt, peaks));
+            for(int i=0;i<sequences.size();i++) {
+                if(Math.abs(rt-(1500+40*i)) > 3) continue;
+                for(int z=2;z<=3;z++) {
+                    scans.add(ms2(sequences.get(i), offsets.get(i), z, rt+0.5+z, false, random));
+                    scans.add(ms2(sequences.get(i), offsets.get(i), z, rt+1.5+z, true, random));
+                }
+            }
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer w = new OutputStreamWriter(bytes, "ISO-8859-1");
+        w.write("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>\n<mzXML xmlns=\"http://sashimi.sourceforge.net/schema_revision/mzXML_3.2\">\n");
+        w.write("<msRun scanCount=\""+scans.size()+"\">\n<dataProcessing centroided=\"1\"></dataProcessing>\n");
+        long[] positions = new long[scans.size()];
+        for(int i=0;i<scans.size();i++) {
+            SyntheticScan s = scans.get(i);
+            w.flush();
+            positions[i] = bytes.size();
+            w.write("<scan num=\""+(i+1)+"\" msLevel=\""+s.level+"\" peaksCount=\""+s.mz.length+"\" centroided=\"1\" retentionTime=\"PT"+s.rt+"S\">\n");
+            if(s.level == 2) {
+                w.write("<precursorMz precursorIntensity=\"10000.0\">"+s.precursorMz+"</precursorMz>\n");
+            }
+            ByteBuffer peaks = ByteBuffer.allocate(s.mz.length*8);
+            for(int k=0;k<s.mz.length;k++) {
+                peaks.putFloat((float)s.mz[k]);
+                peaks.putFloat((float)s.intensity[k]);
+            }
+            w.write("<peaks precision=\"32\" byteOrder=\"network\" pairOrder=\"m/z-int\">"+Base64.getEncoder().encodeToString(peaks.array())+"</peaks>\n</scan>\n");
+        }
+        w.write("</msRun>\n<index name=\"scan\">\n");
+        for(int i=0;i<scans.size();i++) {
+            w.write("<offset id=\""+(i+1)+"\">"+positions[i]+"</offset>\n");
+        }
+        w.write("</index>\n</mzXML>\n");
+        w.flush();
+        
+        File f = new File(dir, name+".mzXML");
+        try(FileOutputStream out = new FileOutputStream(f)) {
+            out.write(bytes.toByteArray());
+        }
+        return f;
+    }
+    
+    /* Field of the score in the identification lines, last so that the
+     * lines of two searches sort the same way whatever their scores */
+    private static final int SCORE_FIELD = 6;
+    
+    /* Identifications of a search, one line each in a fixed order */
+    private static List<String> identifications(FootprintingResult result) {
+        List<String> lines = new ArrayList<>();
+        for(String accession : result.getProteinAccessions()) {
+            ProteinResult proteinResult = result.getProteinResult(accession);
+            for(String sequence : proteinResult.getPeptideSequences()) {
+                PeptideResult peptideResult = proteinResult.getPeptideResult(proteinResult.getPeptide(sequence));
+                for(String spectrumKey : peptideResult.getSpectrumKeys()) {
+                    SpectrumResult spectrumResult = peptideResult.getSpectrumResult(spectrumKey);
+                    List<Identification> all = new ArrayList<>();
+                    for(String key : spectrumResult.getUnlabeledKeys()) {
+                        all.addAll(spectrumResult.getUnlabeledIdentification(key));
+                    }
+                    for(String key : spectrumResult.getLabeledKeys()) {
+                        all.addAll(spectrumResult.getLabeledIdentification(key));
+                    }
+                    for(Identification id : all) {
+                        lines.add(String.format("%s\t%s\t%s\t%d\t%d\t%s\t%.6f",
+                                accession,sequence,spectrumKey,id.getScanNumber(),id.getCharge(),id.getModifications().toString(),id.getScore()));
+                    }
+                }
+            }
+        }
+        Collections.sort(lines);
+        return lines;
+    }
+    
+    /* Search of spectrum files with exposure times 0, 1, ... */
+    private IdentificationFactoryConfig config(File outDir, File... spectra) throws Exception {
+        IdentificationFactoryConfig ifc = new IdentificationFactoryConfig();
+        ifc.setChargeMin(2);
+        ifc.setChargeMax(3);
+        ifc.setRTMin(20.0);
+        ifc.setRTMax(170.0);
+        ifc.setMassMin(500.0);
+        ifc.setMassMax(4000.0);
+        ifc.setMS1ErrorPPM(10);
+        ifc.setMS2ErrorDa(0.25);
+        ifc.setMaxMissedCleavages(1);
+        ifc.setMaxConcurrentModifications(2);
+        ifc.setProteaseName("Trypsin");
+        ifc.setFasta(proteins);
+        ifc.setModifications(modifications);
+        for(int i=0;i<spectra.length;i++) {
+            ifc.addSpectrum(spectra[i].getPath(), (double)i);
+        }
+        ifc.setOutputDirectory(outDir.getPath());
+        return ifc;
+    }
+    
+    private static FootprintingResult identify(IdentificationFactoryConfig ifc) throws Exception {
+        IdentificationFactory factory = new IdentificationFactory();
+        factory.configure(ifc);
+        return factory.identify();
+    }
+    
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+    
+    @Test
+    public void testEnginesAgree() throws Exception {
+        File dir = Files.createTempDirectory("engines").toFile();
+        try {
+            File spectrum = spectrumFile(dir);
+            List<String> peptide = identifications(identify(config(new File(dir, "peptide"), spectrum).setSearchEngine("peptide")));
+            List<String> spectrumCentric = identifications(identify(config(new File(dir, "spectrum"), spectrum).setSearchEngine("spectrum")));
+            
+            /* Both engines score the same scans against the same species */
+            assertFalse(peptide.isEmpty());
+            assertEquals(peptide,spectrumCentric);
+        }
+        finally {
+            delete(dir);
+        }
+    }
+    
+    @Test
+    public void testLibraryKeepsIdentifications() throws Exception {
+        File dir = Files.createTempDirectory("library").toFile();
+        try {
+            File spectrum = spectrumFile(dir);
+            String library = new File(dir, "consensus.tsv").getPath();
+            
+            /* The first run searches in full and builds the library, and the
+             * second confirms scans from it */
+            List<String> full = identifications(identify(config(new File(dir, "full"), spectrum).setConsensusLibrary(library)));
+            List<String> confirmed = identifications(identify(config(new File(dir, "confirmed"), spectrum).setConsensusLibrary(library)));
+            
+            /* The same scans are identified as the same species. A confirmed
+             * scan is aligned to consensus ions placed at the peaks matched
+             * earlier rather than to the theoretical ions, so its score can
+             * differ slightly */
+            assertFalse(full.isEmpty());
+            assertEquals(full.size(),confirmed.size());
+            for(int i=0;i<full.size();i++) {
+                String[] f = full.get(i).split("\t");
+                String[] c = confirmed.get(i).split("\t");
+                assertEquals(f.length,c.length);
+                for(int k=0;k<f.length;k++) {
+                    if(k == SCORE_FIELD) {
+                        assertEquals(Double.parseDouble(f[k]),Double.parseDouble(c[k]),0.05);
+                    }
+                    else {
+                        assertEquals(f[k],c[k]);
+                    }
+                }
+            }
+        }
+        finally {
+            delete(dir);
+        }
+    }
+    
+    @Test
+    public void testMergedShardsMatchWholeSearch() throws Exception {
+        File dir = Files.createTempDirectory("shards").toFile();
+        try {
+            File[] spectra = {spectrumFile(dir, "first", 42), spectrumFile(dir, "second", 43)};
+            List<String> whole = identifications(identify(config(new File(dir, "whole"), spectra)));
+            assertFalse(whole.isEmpty());
+            
+            /* Each shard runs in an output directory of its own, as separate
+             * processes would, and the shards are merged into another */
+            int count = 3;
+            for(String by : new String[]{Shard.BY_PROTEINS,Shard.BY_SPECTRA,Shard.BY_UNITS}) {
+                IdentificationFactoryConfig merge = config(new File(dir, by+"-merged"), spectra).setShardBy(by);
+                for(int index=0;index<count;index++) {
+                    File shardDir = new File(dir, by+"-"+index);
+                    identify(config(shardDir, spectra).setShard(index, count).setShardBy(by));
+                    merge.addMergeShard(shardDir.getPath());
+                }
+                assertEquals(by,whole,identifications(identify(merge)));
+            }
+        }
+        finally {
+            delete(dir);
+        }
+    }
+    
+    @Test
+    public void testResumeInterruptedSearch() throws Exception {
+        File dir = Files.createTempDirectory("resume").toFile();
+        try {
+            File first = spectrumFile(dir, "first", 42);
+            List<String> whole = identifications(identify(config(new File(dir, "whole"), first, spectrumFile(dir, "second", 43))));
+            
+            /* Interrupt the search by making the second spectrum file
+             * unreadable, so that it fails after journaling proteins of the
+             * first, and cut the last record short as a kill would */
+            File second = new File(dir, "second.mzXML");
+            File saved = new File(dir, "second.saved");
+            assertTrue(second.renameTo(saved));
+            Files.write(second.toPath(), "<mzXML>".getBytes("UTF-8"));
+            File outDir = new File(dir, "resumed");
+            try {
+                identify(config(outDir, first, second));
+                fail("Search of an unreadable spectrum file succeeded");
+            }
+            catch(Exception e) {
+                /* Expected */
+            }
+            File journal = new File(outDir, SearchJournal.FILE_NAME);
+            long length = journal.length();
+            assertTrue(length > 100);
+            try(RandomAccessFile raf = new RandomAccessFile(journal, "rw")) {
+                raf.setLength(length-3);
+            }
+            
+            assertTrue(second.delete());
+            assertTrue(saved.renameTo(second));
+            assertEquals(whole,identifications(identify(config(outDir, first, second).setResume(true))));
+        }
+        finally {
+            delete(dir);
+        }
+    }
+    
+    @Test
+    public void testStoredIonsAreDeleted() throws Exception {
+        File dir = Files.createTempDirectory("ions").toFile();
+        try {
+            File spectrum = spectrumFile(dir);
+            List<String> heap = identifications(identify(config(new File(dir, "heap"), spectrum)));
+            File outDir = new File(dir, "stored");
+            List<String> stored = identifications(identify(config(outDir, spectrum).setStoreIons(true)));
+            assertEquals(heap,stored);
+            assertFalse(new File(outDir, IonStore.FILE_NAME).exists());
+        }
+        finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class MSMSIonsTest {
+    
+    public MSMSIonsTest() {
+    }
+    
+    @Test
+    public void testFromAlignment() throws Exception {
+        /* Only the first size elements with non-zero intensity are kept */
+        double[] mz = {100.0,200.0,300.0,400.0,500.0};
+        double[] intensity = {0.0,5.0,0.0,7.0,9.0};
+        MSMSIons ions = new MSMSIons(mz, intensity, 4);
+        assertEquals(2,ions.size());
+        assertArrayEquals(new int[]{1,3},ions.index);
+        assertArrayEquals(new double[]{200.0,400.0},ions.mz,0.0);
+        assertArrayEquals(new double[]{5.0,7.0},ions.intensity,0.0);
+        assertEquals("{\"mz\":[200.0,400.0],\"I\":[5,7],\"label\":[]}",ions.toJSON());
+    }
+    
+    @Test
+    public void testLabels() throws Exception {
+        String[] labels = IonFactory.getTheoreticalIonLabels("PEPTIDEK", 2, new double[8]);
+        for(String label : labels) {
+            if(label.equals("---")) continue;
+            
+            /* Labels are "<charge> <series><position>[<loss>]" */
+            String[] parts = label.split(" ");
+            String series = parts[1].substring(0,1)+parts[1].replaceAll("^[a-z][0-9]+","");
+            int position = Integer.parseInt(parts[1].replaceAll("^[a-z]([0-9]+).*$","$1"));
+            int code = MSMSIons.labelCode(Integer.parseInt(parts[0]), series, position);
+            MSMSIons ions = new MSMSIons(new int[]{0}, new double[]{1.0}, new double[]{1.0}, new int[]{code});
+            assertEquals(label,ions.label(0));
+        }
+    }
+    
+    @Test
+    public void testLabeled() throws Exception {
+        /* Ions near fragment ions take their labels, whatever the order of
+         * the fragment ions */
+        double[] offsets = new double[8];
+        double[] fragments = IonFactory.getTheoreticalIons("PEPTIDEK", 2, offsets);
+        String[] labels = IonFactory.getTheoreticalIonLabels("PEPTIDEK", 2, offsets);
+        int[] picked = {0, 3, 25, labels.length-1};
+        double[] mz = new double[picked.length];
+        double[] intensity = new double[picked.length];
+        for(int i=0;i<picked.length;i++) {
+            assertNotEquals("---",labels[picked[i]]);
+            mz[i] = fragments[picked[i]]+0.05;
+            intensity[i] = 1.0;
+        }
+        MSMSIons ions = new MSMSIons(mz, intensity, mz.length).labeled("PEPTIDEK", 2, offsets);
+        assertArrayEquals(mz,ions.mz,0.0);
+        for(int i=0;i<picked.length;i++) {
+            assertEquals(labels[picked[i]],ions.label(i));
+        }
+        assertTrue(ions.toJSON().endsWith("\"label\":[\"1 b1\",\"1 b2\",\""+labels[25]+"\",\""+labels[labels.length-1]+"\"]}"));
+    }
+    
+    @Test(expected=Exception.class)
+    public void testUnknownSeries() throws Exception {
+        MSMSIons.labelCode(1, "c", 2);
+    }
+    
+}
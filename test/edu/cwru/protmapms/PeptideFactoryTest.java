@@ -23,6 +23,7 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 package edu.cwru.protmapms;
 
 import java.util.List;
+import java.util.Random;
 import java.util.ArrayList;
 import org.junit.Before;
 import org.junit.Test;
@@ -440,4 +441,73 @@ public class PeptideFactoryTest {
         
         assertEquals(expResult,result); 
     }
+    
+    private static List<Peptide> all(PeptideFactory pb) {
+        List<Peptide> result = new ArrayList<>();
+        pb.start();
+        List<Peptide> peptide = pb.getNext();
+        while(peptide != null) {
+            result.addAll(peptide);
+            peptide = pb.getNext();
+        }
+        return result;
+    }
+    
+    @Test
+    public void testNon_specificMassWindow() {
+        System.out.println("Non-specific - mass window");
+        String residues = "ACDEFGHIKLMNPQRSTVWY";
+        Random random = new Random(11);
+        StringBuilder sb = new StringBuilder();
+        for(int i=0;i<300;i++) {
+            sb.append(residues.charAt(random.nextInt(residues.length())));
+        }
+        double[] offsets = new double[sb.length()];
+        for(int i=0;i<offsets.length;i++) {
+            offsets[i] = sb.charAt(i) == 'C' ? 57.021464 : 0.0;
+        }
+        
+        /* The window gives the peptides of the full enumeration within the
+         * window, in the same order, with and without negative offsets */
+        for(int pass=0;pass<2;pass++) {
+            if(pass == 1) {
+                offsets[5] = -500.0;
+            }
+            PeptideFactory pb = new PeptideFactory(false);
+            pb.setProtease("Non-specific");
+            pb.setSequence(sb.toString());
+            pb.setMissedCleavages(30);
+            assertTrue(pb.cleavesEveryResidue());
+            
+            List<String> expResult = new ArrayList<>();
+            for(Peptide p : all(pb)) {
+                double m = IonFactory.calculateIonMass(p.sequence);
+                for(int i=0;i<p.length;i++) {
+                    m += offsets[p.start+i];
+                }
+                if(m >= 1000.0 && m <= 1500.0) {
+                    expResult.add(p.start+":"+p.sequence);
+                }
+            }
+            
+            pb.setMassWindow(1000.0, 1500.0);
+            pb.setResidueOffsets(offsets);
+            List<String> result = new ArrayList<>();
+            for(Peptide p : all(pb)) {
+                result.add(p.start+":"+p.sequence);
+            }
+            
+            assertFalse(expResult.isEmpty());
+            assertEquals(expResult,result);
+        }
+        
+        /* Other proteases ignore the window */
+        PeptideFactory pb = new PeptideFactory(false);
+        pb.setProtease("Trypsin");
+        pb.setSequence(sb.toString());
+        assertFalse(pb.cleavesEveryResidue());
+        int n = all(pb).size();
+        pb.setMassWindow(1000.0, 1500.0);
+        assertEquals(n,all(pb).size());
+    }
 }
@@ -0,0 +1,164 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class SearchJournalTest {
+    
+    public SearchJournalTest() {
+    }
+    
+    private static Identification identification(int scan, double score) {
+        return new Identification(600.5, scan, score).
+                setSignificant(true).
+                setPrecursorMz(512.25).
+                setPrecursorIntensity(12345.0).
+                setCharge(2).
+                setObservedIons(new MSMSIons(new double[]{100.1,200.2,300.3}, new double[]{10.0,20.0,30.0}, 3)).
+                setTheoreticalIons(new MSMSIons(new double[]{0.0,200.25,0.0}, new double[]{0.0,1.0,0.0}, 3));
+    }
+    
+    private static File journalFile() throws Exception {
+        File f = File.createTempFile("search", ".journal");
+        f.deleteOnExit();
+        return f;
+    }
+    
+    @Test
+    public void testResume() throws Exception {
+        File f = journalFile();
+        SearchJournal journal = new SearchJournal(f.getPath(), "abc", false);
+        journal.append(0, 3, new SearchJournal.Unit().add(7, identification(11, 0.5)).add(9, identification(12, 0.75)));
+        journal.append(1, 3, new SearchJournal.Unit());
+        journal.close();
+        
+        journal = new SearchJournal(f.getPath(), "abc", true);
+        assertEquals(2,journal.completedCount());
+        assertTrue(journal.isCompleted(0, 3));
+        assertTrue(journal.isCompleted(1, 3));
+        assertFalse(journal.isCompleted(0, 2));
+        assertEquals(0,journal.restore(1, 3).size());
+        
+        SearchJournal.Unit unit = journal.restore(0, 3);
+        assertEquals(2,unit.size());
+        assertEquals(9,unit.species(1));
+        Identification expected = identification(12, 0.75);
+        Identification restored = unit.identification(1);
+        assertEquals(expected.getScanNumber(),restored.getScanNumber());
+        assertEquals(expected.getCharge(),restored.getCharge());
+        assertEquals(expected.toJSON(),restored.toJSON());
+        journal.close();
+    }
+    
+    @Test
+    public void testIncompleteRecord() throws Exception {
+        File f = journalFile();
+        SearchJournal journal = new SearchJournal(f.getPath(), "abc", false);
+        journal.append(0, 0, new SearchJournal.Unit().add(1, identification(11, 0.5)));
+        journal.append(0, 1, new SearchJournal.Unit().add(2, identification(12, 0.5)));
+        journal.close();
+        
+        /* Cut the last record short, as if the run was killed writing it */
+        try(RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(raf.length()-5);
+        }
+        
+        journal = new SearchJournal(f.getPath(), "abc", true);
+        assertTrue(journal.isCompleted(0, 0));
+        assertFalse(journal.isCompleted(0, 1));
+        journal.append(0, 1, new SearchJournal.Unit());
+        journal.close();
+        
+        journal = new SearchJournal(f.getPath(), "abc", true);
+        assertEquals(2,journal.completedCount());
+        assertEquals(1,journal.restore(0, 0).size());
+        assertEquals(0,journal.restore(0, 1).size());
+        journal.close();
+    }
+    
+    @Test(expected=Exception.class)
+    public void testFingerprintMismatch() throws Exception {
+        File f = journalFile();
+        new SearchJournal(f.getPath(), "abc", false).close();
+        new SearchJournal(f.getPath(), "abd", true);
+    }
+    
+    @Test
+    public void testNoResume() throws Exception {
+        File f = journalFile();
+        SearchJournal journal = new SearchJournal(f.getPath(), "abc", false);
+        journal.append(0, 0, new SearchJournal.Unit());
+        journal.close();
+        
+        /* Without resume the journal is started over */
+        new SearchJournal(f.getPath(), "abd", false).close();
+        journal = new SearchJournal(f.getPath(), "abd", true);
+        assertEquals(0,journal.completedCount());
+        journal.close();
+    }
+    
+    @Test
+    public void testImportUnits() throws Exception {
+        File f0 = journalFile();
+        File f1 = journalFile();
+        File merged = journalFile();
+        SearchJournal shard = new SearchJournal(f0.getPath(), "abc", false);
+        shard.append(0, 0, new SearchJournal.Unit().add(1, identification(11, 0.5)));
+        shard.append(1, 0, new SearchJournal.Unit());
+        shard.close();
+        shard = new SearchJournal(f1.getPath(), "abc", false);
+        shard.append(0, 1, new SearchJournal.Unit().add(4, identification(13, 0.5)));
+        shard.append(0, 0, new SearchJournal.Unit());
+        shard.close();
+        
+        /* Units recorded by both shards are taken from the first */
+        SearchJournal journal = new SearchJournal(merged.getPath(), "abc", false);
+        assertEquals(2,journal.importUnits(SearchJournal.read(f0.getPath(), "abc")));
+        assertEquals(1,journal.importUnits(SearchJournal.read(f1.getPath(), "abc")));
+        assertTrue(journal.isCompleted(0, 1));
+        assertEquals(1,journal.restore(0, 0).size());
+        journal.close();
+        
+        journal = new SearchJournal(merged.getPath(), "abc", true);
+        assertEquals(3,journal.completedCount());
+        assertEquals(4,journal.restore(0, 1).species(0));
+        journal.close();
+    }
+    
+    @Test(expected=Exception.class)
+    public void testReadOnly() throws Exception {
+        File f = journalFile();
+        new SearchJournal(f.getPath(), "abc", false).close();
+        SearchJournal.read(f.getPath(), "abc").append(0, 0, new SearchJournal.Unit());
+    }
+    
+}
@@ -0,0 +1,86 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ShardTest {
+    
+    public ShardTest() {
+    }
+    
+    @Test
+    public void testEveryUnitInOneShard() throws Exception {
+        String[] modes = {Shard.BY_PROTEINS, Shard.BY_SPECTRA, Shard.BY_UNITS};
+        for(String by : modes) {
+            Shard[] shards = new Shard[3];
+            for(int i=0;i<shards.length;i++) {
+                shards[i] = new Shard(i, shards.length, by);
+            }
+            int[] units = new int[shards.length];
+            for(int spectrumIndex=0;spectrumIndex<4;spectrumIndex++) {
+                for(int protein=0;protein<7;protein++) {
+                    int owners = 0;
+                    for(int i=0;i<shards.length;i++) {
+                        if(shards[i].contains(spectrumIndex, protein, 7)) {
+                            owners++;
+                            units[i]++;
+                        }
+                    }
+                    assertEquals(1,owners);
+                }
+            }
+            
+            /* Every shard gets a share of the work */
+            for(int n : units) {
+                assertTrue(n > 0);
+            }
+        }
+    }
+    
+    @Test
+    public void testParse() throws Exception {
+        Shard shard = Shard.parse("2/5", Shard.BY_SPECTRA);
+        assertEquals(2,shard.index);
+        assertEquals(5,shard.count);
+        assertTrue(shard.contains(7, 0, 10));
+        assertFalse(shard.contains(8, 0, 10));
+        assertTrue(Shard.parse("0/1", Shard.BY_PROTEINS).isWhole());
+    }
+    
+    @Test(expected=Exception.class)
+    public void testIndexOutOfRange() throws Exception {
+        Shard.parse("3/3", Shard.BY_PROTEINS);
+    }
+    
+    @Test(expected=Exception.class)
+    public void testInvalidFormat() throws Exception {
+        Shard.parse("1-3", Shard.BY_PROTEINS);
+    }
+    
+}
@@ -0,0 +1,177 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.modifications.Modification;
+import edu.cwru.protmapms.modifications.Modifications;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class SpeciesTableTest {
+    private Fasta proteins;
+    private Modifications modifications;
+    
+    public SpeciesTableTest() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        /* Single protein ACDE with no tryptic cleavage sites */
+        proteins = new Fasta("test-data/valid.fasta",false);
+        
+        modifications = new Modifications();
+        Modification carbox = new Modification("C","Carbamidomethylation",57.021464);
+        carbox.setFixed(true);
+        modifications.addModification(carbox);
+        modifications.addModification(new Modification("D","Oxidation",15.994915));
+    }
+    
+    @Test
+    public void testSpeciesEnumeration() {
+        SpeciesTable table = new SpeciesTable(proteins,"Trypsin",0,modifications,2,0.0,10000.0,2,3);
+        
+        assertEquals(1,table.peptideCount());
+        assertEquals("ACDE",table.peptide(0).sequence);
+        assertEquals("A",table.accession(table.peptideProtein(0)));
+        assertEquals(0,table.peptideStart(0));
+        assertEquals(1,table.peptideEnd(0));
+        
+        /* Fixed only species first, then the variable oxidation */
+        assertEquals(2,table.speciesCount());
+        assertEquals(0,table.speciesStart(0));
+        assertEquals(2,table.speciesEnd(0));
+        assertEquals(1,table.modificationSites(0).size());
+        assertEquals(2,table.modificationSites(1).size());
+        assertEquals(0,table.speciesPeptide(1));
+        
+        double residues = IonFactory.calculateIonMass("ACDE");
+        assertEquals(residues+57.021464,table.mass(0),1e-9);
+        assertEquals(residues+57.021464+15.994915,table.mass(1),1e-9);
+    }
+    
+    @Test
+    public void testPrecursorMz() {
+        SpeciesTable table = new SpeciesTable(proteins,"Trypsin",0,modifications,2,0.0,10000.0,2,3);
+        
+        for(int s=0;s<table.speciesCount();s++) {
+            for(int Z=2;Z<=3;Z++) {
+                double expected = IonFactory.calculatePrecursorIonMass("ACDE",Z,table.offsets(s))[0];
+                assertEquals(expected,table.precursorMz(s,Z),1e-9);
+            }
+        }
+    }
+    
+    @Test
+    public void testMzIndexIsSorted() {
+        SpeciesTable table = new SpeciesTable(proteins,"Trypsin",0,modifications,2,0.0,10000.0,2,3);
+        
+        assertEquals(4,table.entryCount());
+        for(int k=0;k<table.entryCount();k++) {
+            assertEquals(table.precursorMz(table.entrySpecies(k),table.entryCharge(k)),table.entryMz(k),0.0);
+            if(k > 0) {
+                assertTrue(table.entryMz(k-1) <= table.entryMz(k));
+            }
+        }
+        
+        assertEquals(0,table.lowerBound(0.0));
+        assertEquals(table.entryCount(),table.lowerBound(10000.0));
+        assertEquals(1,table.lowerBound(table.entryMz(1)));
+    }
+    
+    @Test
+    public void testMassWindow() {
+        SpeciesTable table = new SpeciesTable(proteins,"Trypsin",0,modifications,2,5000.0,10000.0,2,3);
+        
+        assertEquals(0,table.peptideCount());
+        assertEquals(table.peptideStart(0),table.peptideEnd(0));
+        assertEquals(0,table.speciesCount());
+        assertEquals(0,table.entryCount());
+    }
+    
+    @Test
+    public void testSharedSpecies() throws Exception {
+        /* ACDEK is cleaved from P1 at position 0 and from P2 at position 3,
+         * where a position-specific modification applies */
+        Fasta shared = new Fasta("test-data/shared.fasta",false);
+        modifications.addModification(new Modification(3,"Acetylation",42.010565));
+        SpeciesTable table = new SpeciesTable(shared,"Trypsin",0,modifications,2,0.0,10000.0,2,3);
+        
+        assertEquals(3,table.peptideCount());
+        assertEquals(2,table.uniquePeptideCount());
+        int[] occurrences = table.occurrences("ACDEK");
+        assertEquals(2,occurrences.length);
+        assertEquals(0,(int)table.peptide(occurrences[0]).start);
+        assertEquals(3,(int)table.peptide(occurrences[1]).start);
+        assertEquals(0,table.occurrences("WWK").length);
+        
+        /* Each occurrence has 4 species, but only the two without the
+         * acetylation are the same in both */
+        int p1 = occurrences[0];
+        int p2 = occurrences[1];
+        assertEquals(4,table.speciesEnd(p1)-table.speciesStart(p1));
+        assertEquals(4,table.speciesEnd(p2)-table.speciesStart(p2));
+        assertEquals(table.speciesCount()-2,table.uniqueSpeciesCount());
+        int sharedCount = 0;
+        for(int s=table.speciesStart(p2);s<table.speciesEnd(p2);s++) {
+            int c = table.canonicalSpecies(s);
+            assertEquals(table.canonicalSpecies(c),c);
+            if(c == s) {
+                assertFalse(table.isShared(s));
+                continue;
+            }
+            sharedCount++;
+            assertTrue(table.isShared(s));
+            assertTrue(table.isShared(c));
+            assertEquals(p1,table.speciesPeptide(c));
+            assertArrayEquals(table.offsets(c),table.offsets(s),0.0);
+            assertEquals(table.precursorMz(c,2),table.precursorMz(s,2),0.0);
+            assertArrayEquals(table.theoreticalIons(c,3),table.theoreticalIons(s,3),0.0);
+            assertEquals(table.modificationSites(c).size(),table.modificationSites(s).size());
+            for(int i=0;i<table.modificationSites(s).size();i++) {
+                assertEquals(table.modificationSites(c).get(i).position+3,table.modificationSites(s).get(i).position);
+            }
+        }
+        assertEquals(2,sharedCount);
+    }
+    
+    @Test
+    public void testProteinsByCost() throws Exception {
+        /* P2 holds GGK as well as ACDEK, so it costs more to search */
+        Fasta shared = new Fasta("test-data/shared.fasta",false);
+        SpeciesTable table = new SpeciesTable(shared,"Trypsin",0,modifications,2,0.0,10000.0,2,3);
+        
+        assertTrue(table.proteinCost(1) > table.proteinCost(0));
+        assertArrayEquals(new int[]{1,0},table.proteinsByCost());
+        
+        /* Equal costs keep database order */
+        table = new SpeciesTable(shared,"Trypsin",0,modifications,2,5000.0,10000.0,2,3);
+        assertEquals(0,table.proteinCost(0));
+        assertArrayEquals(new int[]{0,1},table.proteinsByCost());
+    }
+}
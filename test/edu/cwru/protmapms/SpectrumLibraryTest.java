@@ -0,0 +1,132 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import edu.cwru.protmapms.modifications.Modification;
+import edu.cwru.protmapms.modifications.Modifications;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class SpectrumLibraryTest {
+    private Fasta proteins;
+    private Modifications modifications;
+    
+    public SpectrumLibraryTest() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        /* P1 ACDEK and P2 GGKACDEK */
+        proteins = new Fasta("test-data/shared.fasta",false);
+        
+        modifications = new Modifications();
+        Modification carbox = new Modification("C","Carbamidomethylation",57.021464);
+        carbox.setFixed(true);
+        modifications.addModification(carbox);
+        modifications.addModification(new Modification("D","Oxidation",15.994915));
+    }
+    
+    private static File libraryDir() throws Exception {
+        File dir = Files.createTempDirectory("library").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+    
+    private SpeciesTable table(int maxMissedCleavages) {
+        return new SpeciesTable(proteins,"Trypsin",maxMissedCleavages,modifications,2,0.0,10000.0,1,3);
+    }
+    
+    private static void delete(File dir) {
+        for(File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+    
+    @Test
+    public void testLibraryMatchesTable() throws Exception {
+        File dir = libraryDir();
+        SpeciesTable expected = table(1);
+        SpeciesTable table = table(1);
+        SpectrumLibrary library = SpectrumLibrary.open(dir.getPath(), table);
+        table.setLibrary(library);
+        
+        assertTrue(new File(library.path()).exists());
+        assertEquals(new File(dir, SpectrumLibrary.key(expected)+SpectrumLibrary.EXTENSION).getPath(),library.path());
+        for(int s=0;s<expected.speciesCount();s++) {
+            for(int Z=1;Z<=3;Z++) {
+                assertArrayEquals(expected.theoreticalIons(s, Z),table.theoreticalIons(s, Z),0.0);
+                assertArrayEquals(expected.precursorIons(s, Z),table.precursorIons(s, Z),0.0);
+            }
+        }
+        delete(dir);
+    }
+    
+    @Test
+    public void testReopen() throws Exception {
+        File dir = libraryDir();
+        SpectrumLibrary built = SpectrumLibrary.open(dir.getPath(), table(1));
+        long modified = new File(built.path()).lastModified();
+        
+        /* The same table opens the library that was built, and a table with
+         * other species gets a library of its own */
+        SpectrumLibrary loaded = SpectrumLibrary.open(dir.getPath(), table(1));
+        assertEquals(built.path(),loaded.path());
+        assertEquals(modified,new File(loaded.path()).lastModified());
+        assertArrayEquals(built.theoreticalIons(1, 2),loaded.theoreticalIons(1, 2),0.0);
+        
+        SpectrumLibrary other = SpectrumLibrary.open(dir.getPath(), table(0));
+        assertNotEquals(built.path(),other.path());
+        assertEquals(2,dir.listFiles().length);
+        delete(dir);
+    }
+    
+    @Test
+    public void testTruncatedLibraryIsRebuilt() throws Exception {
+        File dir = libraryDir();
+        SpeciesTable expected = table(1);
+        SpectrumLibrary built = SpectrumLibrary.open(dir.getPath(), table(1));
+        File file = new File(built.path());
+        long length = file.length();
+        try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length-8);
+        }
+        
+        SpectrumLibrary rebuilt = SpectrumLibrary.open(dir.getPath(), table(1));
+        assertEquals(length,new File(rebuilt.path()).length());
+        int last = expected.speciesCount()-1;
+        assertArrayEquals(expected.theoreticalIons(last, 3),rebuilt.theoreticalIons(last, 3),0.0);
+        delete(dir);
+    }
+    
+}
@@ -0,0 +1,112 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class TheoreticalIonGeneratorTest {
+    
+    public TheoreticalIonGeneratorTest() {
+    }
+    
+    private static double[] sorted(String sequence, int z, double[] offsets) {
+        double[] ions = IonFactory.getTheoreticalIons(sequence, z, offsets);
+        Arrays.sort(ions);
+        return ions;
+    }
+    
+    @Test
+    public void testBaseVariant() throws Exception {
+        String[] sequences = {"ACDE","LVNELTEFAK","GLVLIAFSQYLQQCPFDEHVK","MGSSHHHHHHSSGLVPR","W"};
+        for(String sequence : sequences) {
+            double[] offsets = new double[sequence.length()];
+            TheoreticalIonGenerator g = new TheoreticalIonGenerator(sequence, offsets);
+            for(int z=1;z<=4;z++) {
+                assertArrayEquals(sorted(sequence, z, offsets),g.getSortedIons(z, offsets),0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testModifiedVariants() throws Exception {
+        String sequence = "GLVLIAFSQYLQQCPFDEHVK";
+        double[] base = new double[sequence.length()];
+        base[13] = 57.021464;
+        TheoreticalIonGenerator g = new TheoreticalIonGenerator(sequence, base);
+        
+        /* Single and double oxidations at the termini and in the middle */
+        int[][] sites = {{},{0},{6},{15},{20},{6,15},{0,20},{13}};
+        for(int[] site : sites) {
+            double[] offsets = base.clone();
+            for(int i : site) {
+                offsets[i] += 15.994915;
+            }
+            for(int z=1;z<=3;z++) {
+                assertArrayEquals(sorted(sequence, z, offsets),g.getSortedIons(z, offsets),0.0);
+            }
+        }
+    }
+    
+    @Test
+    public void testUnsortedSeries() throws Exception {
+        /* A large negative offset breaks the ascending order of the series */
+        String sequence = "MKWVTFISR";
+        double[] base = new double[sequence.length()];
+        double[] offsets = base.clone();
+        offsets[4] = -500.0;
+        TheoreticalIonGenerator g = new TheoreticalIonGenerator(sequence, base);
+        for(int z=1;z<=3;z++) {
+            assertArrayEquals(sorted(sequence, z, offsets),g.getSortedIons(z, offsets),0.0);
+        }
+    }
+    
+    @Test
+    public void testLadder() throws Exception {
+        String sequence = "GLVLIAFSQYLQQCPFDEHVK";
+        double[] base = new double[sequence.length()];
+        base[13] = 57.021464;
+        TheoreticalIonGenerator g = new TheoreticalIonGenerator(sequence, base);
+        
+        /* Every charge taken from the ladder equals the ions generated at
+         * that charge, including a variant whose series are not ascending */
+        double[] oxidized = base.clone();
+        oxidized[6] += 15.994915;
+        double[] negative = base.clone();
+        negative[4] = -500.0;
+        for(double[] offsets : new double[][]{base,oxidized,negative}) {
+            TheoreticalIonGenerator.Ladder ladder = g.getLadder(4, offsets);
+            for(int z=1;z<=4;z++) {
+                assertArrayEquals(g.getSortedIons(z, offsets),ladder.sortedIons(z),0.0);
+            }
+        }
+        assertEquals(0,new TheoreticalIonGenerator("W", new double[1]).getLadder(3, new double[1]).sortedIons(2).length);
+    }
+    
+}
@@ -0,0 +1,87 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ToleranceEstimatorTest {
+    private static final double[] THEORETICAL = {200.0,300.0,400.0,500.0};
+    
+    public ToleranceEstimatorTest() {
+    }
+    
+    /* Adds an identification whose precursor is off by ppm and whose
+     * fragments are off by err, alternating in sign */
+    private static void add(ToleranceEstimator estimator, double score, double ppm, double err) {
+        double[] mz = new double[THEORETICAL.length];
+        double[] intensity = new double[THEORETICAL.length];
+        for(int i=0;i<mz.length;i++) {
+            mz[i] = THEORETICAL[i]+(i%2 == 0 ? err : -err);
+            intensity[i] = 1.0;
+        }
+        Identification identification = new Identification(600.0, 1, score).
+                setTheoreticalIons(new MSMSIons(mz, intensity, mz.length));
+        estimator.add(identification, 500.0, 500.0*(1+ppm*1e-6), THEORETICAL);
+    }
+    
+    @Test
+    public void testLearnedTolerances() throws Exception {
+        ToleranceEstimator estimator = new ToleranceEstimator();
+        
+        /* Errors spread evenly over +/-2 ppm and +/-0.01 Da, whose median
+         * absolute deviations are 1 ppm and 0.005 Da, and as many weak
+         * matches far off that are left out */
+        int n = 41;
+        for(int i=0;i<n;i++) {
+            add(estimator, 0.9, -2.0+4.0*i/(n-1), 0.01*i/(n-1));
+            add(estimator, 0.3, 9.0, 0.2);
+        }
+        assertEquals(2*n,estimator.size());
+        assertTrue(estimator.isSufficient());
+        
+        /* 4 x 1.4826 x 1 ppm = 5.9, and 4 x 1.4826 x 0.005 Da = 0.0297 */
+        assertEquals(6,estimator.precursorTolerancePpm(10));
+        assertEquals(0.030,estimator.fragmentTolerance(0.25),1e-9);
+        
+        /* Never wider than the configured tolerances */
+        assertEquals(5,estimator.precursorTolerancePpm(5));
+        assertEquals(0.02,estimator.fragmentTolerance(0.02),0.0);
+    }
+    
+    @Test
+    public void testTooFewIdentifications() throws Exception {
+        ToleranceEstimator estimator = new ToleranceEstimator();
+        for(int i=0;i<ToleranceEstimator.MIN_IDENTIFICATIONS-1;i++) {
+            add(estimator, 0.9, 1.0, 0.01);
+        }
+        assertFalse(estimator.isSufficient());
+        assertEquals(10,estimator.precursorTolerancePpm(10));
+        assertEquals(0.25,estimator.fragmentTolerance(0.25),0.0);
+    }
+    
+}
@@ -0,0 +1,183 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.filtering;
+
+import edu.cwru.protmapms.spectra.Peaks;
+import edu.cwru.protmapms.spectra.Scan;
+import edu.cwru.protmapms.spectra.SpectrumFile;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class CachingPeakFilterChainTest {
+    
+    public CachingPeakFilterChainTest() {
+    }
+    
+    /* A spectrum file of random MS2 scans, counting the reads of each scan */
+    private static class StubSpectrumFile implements SpectrumFile {
+        private final Peaks[] scans;
+        final int[] reads;
+        
+        StubSpectrumFile(int n, long seed) {
+            Random random = new Random(seed);
+            scans = new Peaks[n];
+            reads = new int[n];
+            for(int s=0;s<n;s++) {
+                double[] mz = new double[300];
+                double[] intensity = new double[mz.length];
+                double m = 100.0;
+                for(int i=0;i<mz.length;i++) {
+                    m += 0.5+random.nextDouble()*5.0;
+                    mz[i] = m;
+                    intensity[i] = i%10 == 0 ? 1000.0+random.nextDouble()*5000.0 : random.nextDouble()*100.0;
+                }
+                scans[s] = new Peaks(mz, intensity);
+            }
+        }
+        
+        @Override
+        public Peaks getScanPeaks(int s) throws Exception {
+            reads[s]++;
+            return new Peaks(scans[s].MZ.clone(), scans[s].Intensity.clone());
+        }
+        
+        @Override
+        public String file() {
+            return "stub.mzXML";
+        }
+        
+        @Override
+        public int size() throws Exception {
+            return scans.length;
+        }
+        
+        @Override
+        public boolean connect(String path) throws Exception {
+            return true;
+        }
+        
+        @Override
+        public boolean disconnect() throws Exception {
+            return true;
+        }
+        
+        @Override
+        public Scan getScanProperties(int s) throws Exception {
+            return null;
+        }
+        
+        @Override
+        public int[] queryPrecursor(double minMz, double maxMz) throws Exception {
+            return new int[0];
+        }
+        
+        @Override
+        public int[] queryPrecursor(double minMz, double maxMz, double fromRT, double toRT) throws Exception {
+            return new int[0];
+        }
+        
+        @Override
+        public int[][] queryPrecursors(double[] minMz, double[] maxMz, double fromRT, double toRT) throws Exception {
+            return new int[minMz.length][0];
+        }
+        
+        @Override
+        public boolean hasPrecursor(double minMz, double maxMz) throws Exception {
+            return false;
+        }
+        
+        @Override
+        public int[] queryMSLevel(int ms) throws Exception {
+            return new int[0];
+        }
+        
+        @Override
+        public int[] queryRetentionTime(double start, double stop, int ms) throws Exception {
+            return new int[0];
+        }
+        
+        @Override
+        public long preloadScans(double fromRT, double toRT, long maxBytes) throws Exception {
+            return 0;
+        }
+    }
+    
+    private static void assertPeaksEquals(Peaks expected, Peaks actual) {
+        assertArrayEquals(expected.MZ, actual.MZ, 0.0);
+        assertArrayEquals(expected.Intensity, actual.Intensity, 0.0);
+    }
+    
+    @Test
+    public void testCachedEqualsUncached() throws Exception {
+        StubSpectrumFile sf = new StubSpectrumFile(8, 3);
+        CachingPeakFilterChain cached = new CachingPeakFilterChain(16);
+        CachingPeakFilterChain uncached = new CachingPeakFilterChain(16);
+        
+        /* Each scan is scored against several species: the first filters it,
+         * and the others reuse the cached scan filtering */
+        Random random = new Random(5);
+        for(int round=0;round<3;round++) {
+            for(int s=0;s<8;s++) {
+                double[] precursors = {300.0+random.nextDouble()*400.0,700.0+random.nextDouble()*400.0};
+                Peaks expected = uncached.filter(sf.getScanPeaks(s), precursors, 0.5);
+                assertTrue(expected.MZ.length < 300);
+                Peaks scanPeaks = cached.scanPeaks(sf, s);
+                assertPeaksEquals(expected, cached.filterSpecies(scanPeaks, precursors, 0.5));
+                assertPeaksEquals(expected, cached.filter(sf, s, precursors, 0.5));
+            }
+        }
+        assertEquals(8,cached.getMisses());
+        assertEquals(8*3*2-8,cached.getHits());
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        StubSpectrumFile sf = new StubSpectrumFile(5, 7);
+        CachingPeakFilterChain chain = new CachingPeakFilterChain(3);
+        
+        for(int s=0;s<3;s++) {
+            chain.scanPeaks(sf, s);
+        }
+        
+        /* Scan 0 is used again, so scan 1 is the least recently used when
+         * scan 3 is added */
+        chain.scanPeaks(sf, 0);
+        chain.scanPeaks(sf, 3);
+        chain.scanPeaks(sf, 0);
+        chain.scanPeaks(sf, 2);
+        assertArrayEquals(new int[]{1,1,1,1,0},sf.reads);
+        
+        /* Scan 1 was evicted and is read again, which evicts scan 3 */
+        chain.scanPeaks(sf, 1);
+        chain.scanPeaks(sf, 3);
+        assertArrayEquals(new int[]{1,2,1,2,0},sf.reads);
+        assertEquals(6,chain.getMisses());
+        assertEquals(3,chain.getHits());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.filtering;
+
+import edu.cwru.protmapms.spectra.Peaks;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class PeakFilterTest {
+    
+    public PeakFilterTest() {
+    }
+    
+    /* A parameterized filter that only overrides filter() */
+    private static class FilterOnly extends PeakFilter {
+        private final PrecursorIonFilter delegate = new PrecursorIonFilter();
+        
+        FilterOnly() {
+            parameterized = true;
+        }
+        
+        @Override
+        public Peaks filter(Peaks peaks, double[] forbidden, double window) throws Exception {
+            return delegate.filter(peaks, forbidden, window);
+        }
+    }
+    
+    @Test
+    public void testDefaultExclude() throws Exception {
+        Peaks peaks = new Peaks(new double[]{100.0,200.0,200.0,300.0,400.0,500.0},
+                                new double[]{10.0,20.0,20.0,30.0,40.0,50.0});
+        double[] precursors = {200.01,450.0,499.99};
+        
+        /* The default marks the same peaks as the filter it falls back to */
+        boolean[] expected = new PrecursorIonFilter().exclude(peaks, precursors, 0.02);
+        assertArrayEquals(expected,new FilterOnly().exclude(peaks, precursors, 0.02));
+        
+        /* A chain holding the filter can be used by the spectrum engine */
+        CachingPeakFilterChain chain = new CachingPeakFilterChain(16);
+        chain.add(new FilterOnly());
+        boolean[] excluded = chain.exclude(peaks, precursors, 0.02);
+        assertArrayEquals(new boolean[]{false,true,true,false,false,true},excluded);
+    }
+    
+}
@@ -0,0 +1,98 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.math;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class SortOrderTest {
+    
+    private static int[] unbox(Integer[] a) {
+        int[] b = new int[a.length];
+        for(int i=0;i<a.length;i++) {
+            b[i] = a[i];
+        }
+        return b;
+    }
+    
+    private static Integer[] indexes(int n) {
+        Integer[] a = new Integer[n];
+        for(int i=0;i<n;i++) {
+            a[i] = i;
+        }
+        return a;
+    }
+
+    /**
+     * Test of ascending method on doubles, against a stable sort of boxed
+     * indexes, with repeated, negative and signed zero values.
+     */
+    @Test
+    public void testAscendingDouble() {
+        Random random = new Random(7);
+        double[] values = new double[5000];
+        for(int i=0;i<values.length;i++) {
+            values[i] = Math.round(random.nextGaussian()*100)/10.0;
+        }
+        values[0] = -0.0;
+        values[1] = 0.0;
+        values[2] = -1.0;
+        values[3] = 1e-300;
+        
+        Integer[] expected = indexes(values.length);
+        Arrays.sort(expected, (a,b) -> Double.compare(values[a], values[b]));
+        assertArrayEquals(unbox(expected), SortOrder.ascending(values));
+    }
+
+    /**
+     * Test of descending method, against a stable sort of boxed indexes.
+     */
+    @Test
+    public void testDescendingLong() {
+        Random random = new Random(11);
+        long[] values = new long[5000];
+        for(int i=0;i<values.length;i++) {
+            values[i] = random.nextInt(100)-50;
+        }
+        values[0] = Long.MAX_VALUE;
+        values[1] = Long.MIN_VALUE;
+        
+        Integer[] expected = indexes(values.length);
+        Arrays.sort(expected, (a,b) -> Long.compare(values[b], values[a]));
+        assertArrayEquals(unbox(expected), SortOrder.descending(values));
+    }
+
+    /**
+     * Test of ascending method on an empty array.
+     */
+    @Test
+    public void testEmpty() {
+        assertEquals(0, SortOrder.ascending(new double[0]).length);
+    }
+}
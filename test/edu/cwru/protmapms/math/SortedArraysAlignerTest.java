@@ -22,9 +22,6 @@ source code and/or documentation, or loss or inaccuracy of data of any kind.
 */
 package edu.cwru.protmapms.math;
 
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Arrays;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -49,11 +46,10 @@ public class SortedArraysAlignerTest {
         double[] Xd= {300,400,500,400,300,200,100,100,10};
         double[] Y = {1.6,1.8};
         
-        Double[] exp={0.0,0.0,1.0,1.0,0.0,0.0,0.0,0.0,0.0};
-        List<Double> expL = new ArrayList<>(Arrays.asList(exp));
+        double[] exp={0.0,0.0,1.0,1.0,0.0,0.0,0.0,0.0,0.0};
         
         ArrayAlignment a1 = SortedArraysAligner.alignClosestDependent(X, Xd, Y, 0.5);
-        assertEquals(true,expL.equals(a1.theoreticalIntensities));
+        assertArrayEquals(exp,a1.theoreticalIntensities,0.0);
     }
     
     @Test
@@ -63,11 +59,10 @@ public class SortedArraysAlignerTest {
         double[] Xd= {100,100,200,300,400,500,600,700,10};
         double[] Y = {1.5,1.8};
         
-        Double[] exp={0.0,0.0,0.0,0.0,0.0,1.0,0.0,1.0,0.0};
-        List<Double> expL = new ArrayList<>(Arrays.asList(exp));
+        double[] exp={0.0,0.0,0.0,0.0,0.0,1.0,0.0,1.0,0.0};
         
         ArrayAlignment a1 = SortedArraysAligner.alignClosestDependent(X, Xd, Y, 1.0);
-        assertEquals(true,expL.equals(a1.theoreticalIntensities));
+        assertArrayEquals(exp,a1.theoreticalIntensities,0.0);
     }
     
     @Test
@@ -77,11 +72,59 @@ public class SortedArraysAlignerTest {
         double[] Xd= {100,100,200,300,800,500,600,700,10};
         double[] Y = {1.35,1.6};
         
-        Double[] exp={0.0,0.0,0.0,1.0,1.0,0.0,0.0,0.0,0.0};
-        List<Double> expL = new ArrayList<>(Arrays.asList(exp));
+        double[] exp={0.0,0.0,0.0,1.0,1.0,0.0,0.0,0.0,0.0};
         
         ArrayAlignment a1 = SortedArraysAligner.alignClosestDependent(X, Xd, Y, 1.0);
-        assertEquals(true,expL.equals(a1.theoreticalIntensities));
+        assertArrayEquals(exp,a1.theoreticalIntensities,0.0);
+    }
+    
+    @Test
+    public void testAlignClosestDependentBatch() throws Exception {
+        double[] X = {1.1,1.2,1.3,1.4,1.5,1.6,1.7,1.8,1.9};
+        double[] Xd= {100,100,200,300,800,500,600,700,10};
+        double[][] Ys = {{1.6,1.8},{1.35,1.6},{},{1.15,1.5,1.85}};
+        
+        /* Every alignment of the batch equals the single array alignment */
+        ArrayAlignment[] batch = SortedArraysAligner.alignClosestDependent(X, Xd, Ys, null, 0.2);
+        assertEquals(Ys.length,batch.length);
+        for(int k=0;k<Ys.length;k++) {
+            ArrayAlignment single = SortedArraysAligner.alignClosestDependent(X, Xd, Ys[k], 0.2);
+            assertArrayEquals(single.theoreticalIntensities,batch[k].theoreticalIntensities,0.0);
+            assertArrayEquals(single.theoreticalMzValues,batch[k].theoreticalMzValues,0.0);
+            assertArrayEquals(single.observedIntensities,batch[k].observedIntensities,0.0);
+        }
+    }
+    
+    @Test
+    public void testAlignClosestDependentBatchExcluded() throws Exception {
+        double[] X = {1.1,1.2,1.3,1.4,1.5,1.6,1.7,1.8,1.9};
+        double[] Xd= {100,100,200,300,800,500,600,700,10};
+        double[][] Ys = {{1.35,1.6},{1.35,1.6}};
+        boolean[][] excluded = new boolean[2][X.length];
+        excluded[1][4] = true;
+        
+        /* Excluding X[4] is the same as aligning to X without it */
+        double[] Xs = {1.1,1.2,1.3,1.4,1.6,1.7,1.8,1.9};
+        double[] Xds= {100,100,200,300,500,600,700,10};
+        ArrayAlignment[] batch = SortedArraysAligner.alignClosestDependent(X, Xd, Ys, excluded, 1.0);
+        ArrayAlignment single = SortedArraysAligner.alignClosestDependent(Xs, Xds, Ys[1], 1.0);
+        assertEquals(X.length,batch[0].size);
+        assertArrayEquals(single.theoreticalIntensities,batch[1].theoreticalIntensities,0.0);
+        assertArrayEquals(single.observedMzValues,batch[1].observedMzValues,0.0);
+    }
+    
+    @Test
+    public void testCountShared() throws Exception {
+        double[] X = {1.1,1.2,1.3,1.4,1.5,1.6,1.7,1.8,1.9};
+        double[] Xd= {100,100,200,300,800,500,600,700,10};
+        double[] Y = {0.5,1.15,1.16,1.62,2.5,3.0};
+        
+        assertEquals(3,SortedArraysAligner.countShared(X, Y, 0.05));
+        assertEquals(0,SortedArraysAligner.countShared(X, new double[0], 0.05));
+        
+        /* The count bounds the number of matches made by the alignment */
+        ArrayAlignment a1 = SortedArraysAligner.alignClosestDependent(X, Xd, Y, 0.05);
+        assertTrue(a1.count <= SortedArraysAligner.countShared(X, Y, 0.05));
     }
     
     @Test
@@ -0,0 +1,112 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.metrics;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class MetricsRegistryTest {
+    
+    public MetricsRegistryTest() {
+    }
+    
+    @Test
+    public void testCounter() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        Counter counter = registry.counter("scans", "Scans");
+        assertSame(counter,registry.counter("scans", "Scans"));
+        counter.increment();
+        counter.add(4);
+        assertEquals(5,counter.get());
+        
+        registry.reset();
+        assertEquals(0,counter.get());
+    }
+    
+    @Test
+    public void testHistogramBuckets() throws Exception {
+        assertEquals(0,Histogram.bucket(0));
+        assertEquals(0,Histogram.bucket(1000));
+        assertEquals(1,Histogram.bucket(1001));
+        assertEquals(1,Histogram.bucket(2000));
+        assertEquals(2,Histogram.bucket(2001));
+        assertEquals(Histogram.BOUNDS,Histogram.bucket(Long.MAX_VALUE));
+        
+        /* Every value is at most the upper bound of its bucket */
+        for(long nanos=1;nanos<100000000L;nanos=nanos*3+1) {
+            int b = Histogram.bucket(nanos);
+            assertTrue(nanos/1e9 <= Histogram.bound(b));
+            if(b > 0) {
+                assertTrue(nanos/1e9 > Histogram.bound(b-1));
+            }
+        }
+    }
+    
+    @Test
+    public void testHistogramQuantiles() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        Histogram histogram = registry.histogram("decode", "Decode");
+        assertEquals(0.0,histogram.quantileSeconds(0.5),0.0);
+        
+        for(int i=0;i<90;i++) {
+            histogram.record(1500);
+        }
+        for(int i=0;i<10;i++) {
+            histogram.record(1000000);
+        }
+        assertEquals(100,histogram.count());
+        assertEquals(90*1500e-9+10*1e-3,histogram.sumSeconds(),1e-12);
+        assertEquals(1e-3,histogram.maxSeconds(),0.0);
+        assertEquals(2e-6,histogram.quantileSeconds(0.5),0.0);
+        assertEquals(2e-6,histogram.quantileSeconds(0.9),0.0);
+        
+        /* The bucket bound is capped at the largest observation */
+        assertEquals(1e-3,histogram.quantileSeconds(0.99),0.0);
+    }
+    
+    @Test
+    public void testPrometheus() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry("test");
+        registry.counter("scans", "Scans decoded").add(3);
+        Histogram histogram = registry.histogram("decode", "Decode time");
+        histogram.record(500);
+        histogram.record(3000);
+        
+        String text = registry.toPrometheus();
+        assertTrue(text.contains("# TYPE test_scans_total counter\n"));
+        assertTrue(text.contains("test_scans_total 3\n"));
+        assertTrue(text.contains("# TYPE test_decode_seconds histogram\n"));
+        assertTrue(text.contains("test_decode_seconds_bucket{le=\"1.0E-6\"} 1\n"));
+        assertTrue(text.contains("test_decode_seconds_bucket{le=\"4.0E-6\"} 2\n"));
+        assertTrue(text.contains("test_decode_seconds_bucket{le=\"+Inf\"} 2\n"));
+        assertTrue(text.contains("test_decode_seconds_count 2\n"));
+        
+        String json = registry.toJSON();
+        assertTrue(json.startsWith("{\"counters\":{\"scans\":3},\"histograms\":{\"decode\":{\"count\":2,"));
+    }
+    
+}
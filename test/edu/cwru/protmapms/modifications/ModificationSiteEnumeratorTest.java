@@ -213,4 +213,19 @@ public class ModificationSiteEnumeratorTest {
         assertEquals(2,mse.getVariable().get(0).size());
     }
     
+    
+    @Test
+    public void testFixedOffsets() throws Exception {
+        /* A fixed modification of a position overrides that of its residue */
+        Modification acetyl = new Modification(3,"Acetylation",42.00);
+        acetyl.setFixed(true);
+        modifications.addModification(acetyl);
+        
+        double[] offsets = ModificationSiteEnumerator.fixedOffsets("ACACSA",1,modifications);
+        assertArrayEquals(new double[]{0.0,56.00,42.00,56.00,0.0,0.0},offsets,0.0);
+        
+        /* The offsets of a peptide sum to its total fixed offset */
+        mse = new ModificationSiteEnumerator(new Peptide("CACS",2),modifications,2);
+        assertEquals(offsets[1]+offsets[2]+offsets[3]+offsets[4],mse.getTotalFixedOffset(),1e-9);
+    }
 }
@@ -0,0 +1,93 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.result;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.cwru.protmapms.Identification;
+import edu.cwru.protmapms.Peptide;
+import edu.cwru.protmapms.modifications.Modification;
+import edu.cwru.protmapms.modifications.ModificationSite;
+
+/**
+ *
+ * @author sean-m
+ */
+public class FootprintingResultTest {
+    
+    public FootprintingResultTest() {
+    }
+    
+    private FootprintingResult search(String spectrumKey, Identification... identifications) {
+        FootprintingResult result = new FootprintingResult();
+        SpectrumResult sr = result.getProteinResult("A").
+                getPeptideResult(new Peptide("PEPTIDE",1)).
+                getSpectrumResult(spectrumKey);
+        for(Identification identification : identifications) {
+            sr.addIdentification(identification);
+        }
+        
+        /* A peptide without identifications */
+        result.getProteinResult("B").
+                getPeptideResult(new Peptide("EMPTY",1)).
+                getSpectrumResult(spectrumKey);
+        return result;
+    }
+    
+    @Test
+    public void testMerge() throws Exception {
+        Modification mod = new Modification("E","",10.0).setLabeling(true);
+        List<ModificationSite> modSites = new ArrayList<>();
+        modSites.add(new ModificationSite(mod,2));
+        
+        Identification ul = new Identification(20.0,10,0.3).
+                setCharge(2).
+                setPrecursorMz(150.0);
+        Identification l = new Identification(23.0,15,0.3).
+                setCharge(2).
+                setPrecursorMz(155.0).
+                setModifications(modSites);
+        Identification ul2 = new Identification(25.0,20,0.4).
+                setCharge(2).
+                setPrecursorMz(150.0);
+        
+        FootprintingResult merged = new FootprintingResult();
+        merged.merge(search("0.0000",ul,l));
+        merged.merge(search("1.0000",ul2));
+        
+        assertEquals(2,merged.getProteinAccessions().size());
+        PeptideResult pr = merged.getProteinResult("A").get("PEPTIDE");
+        assertArrayEquals(new String[]{"0.0000","1.0000"},pr.getSpectrumKeys());
+        assertEquals(1,pr.getSpectrumResult("0.0000").getUnlabeledKeys().size());
+        assertEquals(1,pr.getSpectrumResult("0.0000").getLabeledKeys().size());
+        assertEquals(0,pr.getSpectrumResult("1.0000").getLabeledKeys().size());
+        
+        /* Empty entries are kept */
+        assertArrayEquals(new String[]{"0.0000","1.0000"},merged.getProteinResult("B").get("EMPTY").getSpectrumKeys());
+    }
+    
+}
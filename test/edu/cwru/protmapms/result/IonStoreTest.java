@@ -0,0 +1,133 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.result;
+
+import edu.cwru.protmapms.Identification;
+import edu.cwru.protmapms.MSMSIons;
+import edu.cwru.protmapms.Peptide;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class IonStoreTest {
+    
+    public IonStoreTest() {
+    }
+    
+    private static Identification identification(int scan) throws Exception {
+        return new Identification(600.5, scan, 0.5).
+                setSignificant(true).
+                setPrecursorMz(512.25).
+                setPrecursorIntensity(12345.0).
+                setCharge(2).
+                setObservedIons(new MSMSIons(new double[]{100.1,200.2,300.3+scan}, new double[]{10.0,20.0,30.0}, 3)).
+                setTheoreticalIons(new MSMSIons(new int[]{1}, new double[]{200.25}, new double[]{1.0}, new int[]{MSMSIons.labelCode(1, "b", 2)}));
+    }
+    
+    private static IonStore store() throws Exception {
+        File f = File.createTempFile("identifications", ".ions");
+        f.deleteOnExit();
+        return new IonStore(f.getPath());
+    }
+    
+    @Test
+    public void testStoreIons() throws Exception {
+        IonStore store = store();
+        Identification id = identification(7);
+        String json = id.toJSON();
+        id.storeIons(store);
+        assertTrue(store.size() > 0);
+        assertEquals(json,id.toJSON());
+        assertEquals("1 b2",id.getTheoreticalIons().label(0));
+        assertEquals(300.3+7,id.getObservedIons().mz[2],0.0);
+        
+        /* Storing again is a no-op */
+        long size = store.size();
+        id.storeIons(store);
+        assertEquals(size,store.size());
+        store.close();
+    }
+    
+    @Test
+    public void testAppendAfterRead() throws Exception {
+        /* Reads between appends see every record written so far */
+        IonStore store = store();
+        Identification[] ids = new Identification[50];
+        for(int i=0;i<ids.length;i++) {
+            ids[i] = identification(i);
+            String json = ids[i].toJSON();
+            ids[i].storeIons(store);
+            assertEquals(json,ids[i].toJSON());
+        }
+        assertEquals(identification(3).toJSON(),ids[3].toJSON());
+        store.close();
+    }
+    
+    @Test
+    public void testResultStoresIons() throws Exception {
+        IonStore store = store();
+        FootprintingResult result = new FootprintingResult(store);
+        Identification id = identification(11);
+        String json = id.toJSON();
+        result.getProteinResult("A").
+                getPeptideResult(new Peptide("PEPTIDEK", 0)).
+                getSpectrumResult("0.0000").
+                addIdentification(id);
+        assertTrue(store.size() > 0);
+        assertEquals(json,id.toJSON());
+        
+        /* Merging into another result on the same store does not copy */
+        long size = store.size();
+        new FootprintingResult(store).merge(result);
+        assertEquals(size,store.size());
+        store.close();
+    }
+    
+    @Test
+    public void testCloseDeletesFile() throws Exception {
+        File f = File.createTempFile("identifications", ".ions");
+        f.deleteOnExit();
+        IonStore store = new IonStore(f.getPath());
+        Identification id = identification(5).storeIons(store);
+        store.close();
+        assertFalse(f.exists());
+        
+        /* Closing again is a no-op, and the ions can no longer be read */
+        store.close();
+        try {
+            id.getObservedIons();
+            fail("Read ions from a closed store");
+        }
+        catch(UncheckedIOException e) {
+            /* Expected */
+        }
+    }
+    
+}
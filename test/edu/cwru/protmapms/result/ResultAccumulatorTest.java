@@ -0,0 +1,84 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.result;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cwru.protmapms.Identification;
+import edu.cwru.protmapms.Peptide;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ResultAccumulatorTest {
+    
+    public ResultAccumulatorTest() {
+    }
+    
+    @Test
+    public void testConcurrentProteins() throws Exception {
+        ResultAccumulator accumulator = new ResultAccumulator(null);
+        Peptide peptide = new Peptide("PEPTIDE",1);
+        
+        /* Each thread adds the identifications of its own proteins, and
+         * every thread adds an empty peptide to a protein they share */
+        List<Thread> threads = new ArrayList<>();
+        for(int t=0;t<8;t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for(int protein=0;protein<50;protein++) {
+                    String accession = "P"+thread+"_"+protein;
+                    for(int scan=0;scan<20;scan++) {
+                        accumulator.addIdentification(accession, peptide, "0.0000",
+                                new Identification(scan*1.0,scan,0.5).setCharge(2).setPrecursorMz(400.0+scan));
+                    }
+                    accumulator.addPeptide("SHARED", new Peptide("EMPTY"+thread+"_"+protein,1), "0.0000");
+                }
+            }));
+        }
+        for(Thread thread : threads) thread.start();
+        for(Thread thread : threads) thread.join();
+        
+        FootprintingResult result = accumulator.toResult();
+        assertEquals(8*50+1,result.getProteinAccessions().size());
+        assertEquals(8*50,result.getPeptideSequences("SHARED").size());
+        SpectrumResult sr = result.getProteinResult("P3_7").get("PEPTIDE").getSpectrumResult("0.0000");
+        assertEquals(20,sr.getUnlabeledKeys().size());
+        
+        /* Identifications of a mass are kept in the order added */
+        accumulator.addAll("P0_0", peptide, "1.0000", Arrays.asList(
+                new Identification(5.0,1,0.5).setCharge(2).setPrecursorMz(500.0),
+                new Identification(6.0,2,0.5).setCharge(2).setPrecursorMz(500.0)));
+        sr = accumulator.toResult().getProteinResult("P0_0").get("PEPTIDE").getSpectrumResult("1.0000");
+        List<Identification> identifications = sr.getUnlabeledIdentification(sr.getUnlabeledKeys().iterator().next());
+        assertEquals(1,identifications.get(0).getScanNumber().intValue());
+        assertEquals(2,identifications.get(1).getScanNumber().intValue());
+    }
+    
+}
@@ -0,0 +1,88 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.scoring;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class PearsonCorrelationScoringTest {
+    private static final double[] THEORETICAL = {0,1,0,1,1,0,0,1,0,0,1,0};
+    private static final double[] OBSERVED = {10,900,30,700,1200,25,40,650,15,20,800,35,99,99};
+    
+    public PearsonCorrelationScoringTest() {
+    }
+    
+    private static List<Double> toList(double[] values, int n) {
+        List<Double> l = new ArrayList<>();
+        for(int i=0;i<n;i++) {
+            l.add(values[i]);
+        }
+        return l;
+    }
+    
+    @Test
+    public void testPrimitiveMatchesList() {
+        PearsonCorrelationScoring pcs = new PearsonCorrelationScoring();
+        int n = THEORETICAL.length;
+        
+        /* Only the first n observed values are used */
+        Score primitive = pcs.score(THEORETICAL, OBSERVED, n);
+        Score list = pcs.score(toList(THEORETICAL,n), toList(OBSERVED,n));
+        assertEquals(list.score, primitive.score, 1e-12);
+        assertEquals(list.isSignificant, primitive.isSignificant);
+        assertTrue(primitive.isSignificant);
+    }
+    
+    @Test
+    public void testNotSignificant() {
+        PearsonCorrelationScoring pcs = new PearsonCorrelationScoring();
+        
+        /* Perfect correlation over two pairs leaves no degrees of freedom */
+        Score s = pcs.score(new double[]{0,1}, new double[]{1,2}, 2);
+        assertFalse(s.isSignificant);
+        
+        s = pcs.score(new double[]{1,0,1,0,0,1}, new double[]{5,6,5,6,5,6}, 6);
+        assertFalse(s.isSignificant);
+    }
+    
+    @Test
+    public void testListAdapter() {
+        /* A scoring function implementing only the List method is reached
+         * through the primitive method */
+        ScoringFunction sizeOnly = (f1, f2) -> {
+            Score s = new Score();
+            s.score = f1.size()+f2.size();
+            s.isSignificant = true;
+            return s;
+        };
+        
+        Score s = sizeOnly.score(THEORETICAL, OBSERVED, 5);
+        assertEquals(10.0, s.score, 0.0);
+    }
+}
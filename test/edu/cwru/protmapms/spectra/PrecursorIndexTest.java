@@ -0,0 +1,159 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.spectra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class PrecursorIndexTest {
+    private Scan[] scans;
+    
+    public PrecursorIndexTest() {
+    }
+    
+    private static Scan scan(int level, double precursor, double rt) {
+        Scan s = new Scan();
+        s.MSLevel = (byte)level;
+        s.PrecursorMZ = precursor;
+        s.RetentionTime = rt;
+        return s;
+    }
+    
+    @Before
+    public void setUp() {
+        /* MS1 scans have no precursor, and are never returned */
+        scans = new Scan[]{
+            scan(1,0.0,10.0),
+            scan(2,500.2505,11.0),
+            scan(2,400.1000,12.0),
+            scan(1,0.0,13.0),
+            scan(2,500.2495,14.0),
+            scan(2,800.0,15.0)
+        };
+    }
+    
+    @Test
+    public void testQuery() {
+        PrecursorIndex index = new PrecursorIndex(scans, scans.length);
+        
+        /* Matches are in file order, not precursor order */
+        assertArrayEquals(new int[]{1,4},index.query(500.249,500.251,0.0,100.0));
+        assertArrayEquals(new int[]{4},index.query(500.249,500.250,0.0,100.0));
+        assertArrayEquals(new int[]{1},index.query(500.249,500.251,11.0,13.0));
+        assertArrayEquals(new int[]{1,2,4,5},index.query(400.1,800.0,0.0,100.0));
+        assertArrayEquals(new int[0],index.query(0.0,0.0,0.0,100.0));
+        assertArrayEquals(new int[0],index.query(600.0,700.0,0.0,100.0));
+        
+        /* Only the first count scans are indexed */
+        assertArrayEquals(new int[]{1},new PrecursorIndex(scans, 4).query(500.249,500.251,0.0,100.0));
+    }
+    
+    @Test
+    public void testMayContain() {
+        PrecursorIndex index = new PrecursorIndex(scans, scans.length);
+        
+        assertTrue(index.mayContain(500.2500,500.2505));
+        assertTrue(index.mayContain(799.9999,800.0));
+        assertTrue(index.mayContain(0.0,1000.0));
+        assertFalse(index.mayContain(600.0,700.0));
+        assertFalse(index.mayContain(500.2520,500.2600));
+        assertFalse(index.mayContain(500.0,400.0));
+        
+        /* Ranges past the last occupied bin */
+        assertFalse(index.mayContain(800.002,5000.0));
+        assertFalse(index.mayContain(1.0e6,2.0e6));
+        
+        /* MS1 scans do not occupy the bin of m/z 0 */
+        assertFalse(index.mayContain(0.0,0.0));
+    }
+    
+    @Test
+    public void testAgreesWithScan() {
+        Random random = new Random(7);
+        List<Scan> l = new ArrayList<>();
+        for(int i=0;i<2000;i++) {
+            l.add(scan(i%5 == 0 ? 1 : 2, 400.0+random.nextDouble()*800.0, i*0.5));
+        }
+        Scan[] many = l.toArray(new Scan[0]);
+        PrecursorIndex index = new PrecursorIndex(many, many.length);
+        
+        /* The index finds the same scans as a scan of every scan, and the
+         * bitmap never rules out a range holding a precursor */
+        for(int q=0;q<500;q++) {
+            double min = 400.0+random.nextDouble()*800.0;
+            double max = min+random.nextDouble()*0.05;
+            List<Integer> expected = new ArrayList<>();
+            for(int i=0;i<many.length;i++) {
+                if(many[i].MSLevel == 2 && many[i].PrecursorMZ >= min && many[i].PrecursorMZ <= max &&
+                   many[i].RetentionTime >= 100.0 && many[i].RetentionTime <= 800.0) {
+                    expected.add(i);
+                }
+            }
+            int[] hits = index.query(min, max, 100.0, 800.0);
+            assertEquals(expected.size(),hits.length);
+            for(int i=0;i<hits.length;i++) {
+                assertEquals(expected.get(i).intValue(),hits[i]);
+            }
+            if(!expected.isEmpty()) {
+                assertTrue(index.mayContain(min, max));
+            }
+        }
+    }
+    
+    @Test
+    public void testBatchQuery() {
+        Random random = new Random(11);
+        List<Scan> l = new ArrayList<>();
+        for(int i=0;i<2000;i++) {
+            l.add(scan(i%5 == 0 ? 1 : 2, 400.0+random.nextDouble()*800.0, i*0.5));
+        }
+        Scan[] many = l.toArray(new Scan[0]);
+        PrecursorIndex index = new PrecursorIndex(many, many.length);
+        
+        /* Unordered and overlapping ranges each find what a single query
+         * finds */
+        double[] min = new double[200];
+        double[] max = new double[200];
+        for(int k=0;k<min.length;k++) {
+            min[k] = 400.0+random.nextDouble()*800.0;
+            max[k] = min[k]+random.nextDouble()*0.5;
+        }
+        min[1] = min[0];
+        max[1] = max[0]+0.1;
+        int[][] hits = index.query(min, max, 100.0, 800.0);
+        assertEquals(min.length,hits.length);
+        for(int k=0;k<min.length;k++) {
+            assertArrayEquals(index.query(min[k], max[k], 100.0, 800.0),hits[k]);
+        }
+        assertEquals(0,index.query(new double[0], new double[0], 0.0, 1.0).length);
+    }
+}
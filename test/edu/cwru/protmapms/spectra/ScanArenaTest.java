@@ -0,0 +1,93 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.spectra;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class ScanArenaTest {
+    
+    public ScanArenaTest() {
+    }
+    
+    private static Peaks peaks(int n, boolean wide) {
+        Peaks p = new Peaks(n);
+        for(int i=0;i<n;i++) {
+            double mz = 100.0+i*1.234567891;
+            double intensity = 1000.0/(i+1);
+            p.MZ[i] = wide ? mz : (double)(float)mz;
+            p.Intensity[i] = wide ? intensity : (double)(float)intensity;
+        }
+        return p;
+    }
+    
+    @Test
+    public void testRoundTrip() {
+        int[] counts = {10,0,25,7};
+        boolean[] wide = {false,false,true,false};
+        ScanArena arena = new ScanArena(counts, wide, Long.MAX_VALUE);
+        assertTrue(arena.isComplete());
+        assertEquals(3,arena.count());
+        assertEquals(10*8+25*16+7*8,arena.size());
+        
+        /* Values are read back exactly as decoded, at either precision */
+        for(int i=0;i<counts.length;i++) {
+            if(!arena.holds(i)) continue;
+            arena.put(i, peaks(counts[i], wide[i]));
+        }
+        for(int i=0;i<counts.length;i++) {
+            if(counts[i] == 0) {
+                assertNull(arena.peaks(i));
+                continue;
+            }
+            Peaks expected = peaks(counts[i], wide[i]);
+            Peaks p = arena.peaks(i);
+            assertArrayEquals(expected.MZ,p.MZ,0.0);
+            assertArrayEquals(expected.Intensity,p.Intensity,0.0);
+        }
+    }
+    
+    @Test
+    public void testMemoryLimit() {
+        /* The third scan passes the limit, so it and every later scan are
+         * left to be read on demand */
+        int[] counts = {10,10,10,1};
+        boolean[] wide = new boolean[4];
+        ScanArena arena = new ScanArena(counts, wide, 200);
+        assertFalse(arena.isComplete());
+        assertEquals(2,arena.count());
+        assertTrue(arena.holds(1));
+        assertFalse(arena.holds(2));
+        assertFalse(arena.holds(3));
+        assertNull(arena.peaks(3));
+        
+        arena.put(0, peaks(10, false));
+        arena.release(0);
+        assertNull(arena.peaks(0));
+    }
+    
+}
@@ -0,0 +1,148 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class BoundedPipelineTest {
+    
+    public BoundedPipelineTest() {
+    }
+    
+    private static class Item {
+        final int value;
+        int doubled;
+        int squared;
+        
+        Item(int value) {
+            this.value = value;
+        }
+    }
+    
+    @Test
+    public void testAllItemsPassEveryStage() throws Exception {
+        final List<Item> done = Collections.synchronizedList(new ArrayList<Item>());
+        BoundedPipeline<Item> pipeline = new BoundedPipeline<Item>("test", 4).
+            addStage("double", 3, item -> item.doubled = 2*item.value).
+            addStage("square", 2, item -> {
+                item.squared = item.doubled*item.doubled;
+                done.add(item);
+            });
+        
+        pipeline.run(emitter -> {
+            for(int i=0;i<1000;i++) {
+                emitter.emit(new Item(i));
+            }
+        });
+        
+        assertEquals(1000,done.size());
+        long sum = 0;
+        for(Item item : done) {
+            assertEquals(4*item.value*item.value,item.squared);
+            sum += item.value;
+        }
+        assertEquals(999*1000/2,sum);
+    }
+    
+    @Test
+    public void testBackpressure() throws Exception {
+        /* With one slow worker and queues of 2 items, the source can never
+         * be more than a few items ahead of the last stage */
+        final AtomicInteger emitted = new AtomicInteger();
+        final AtomicInteger processed = new AtomicInteger();
+        final AtomicInteger maxAhead = new AtomicInteger();
+        BoundedPipeline<Item> pipeline = new BoundedPipeline<Item>("test", 2).
+            addStage("pass", 1, item -> {}).
+            addStage("slow", 1, item -> {
+                Thread.sleep(1);
+                processed.incrementAndGet();
+            });
+        
+        pipeline.run(emitter -> {
+            for(int i=0;i<200;i++) {
+                emitter.emit(new Item(i));
+                int ahead = emitted.incrementAndGet()-processed.get();
+                maxAhead.accumulateAndGet(ahead, Math::max);
+            }
+        });
+        
+        assertEquals(200,processed.get());
+        
+        /* Two queues of 2, plus one item held by each worker */
+        assertTrue(maxAhead.get() <= 2*2+2+1);
+    }
+    
+    @Test
+    public void testStageFailure() throws Exception {
+        final AtomicInteger processed = new AtomicInteger();
+        BoundedPipeline<Item> pipeline = new BoundedPipeline<Item>("test", 2).
+            addStage("fail", 2, item -> {
+                if(item.value == 10) {
+                    throw new Exception("stage failed");
+                }
+            }).
+            addStage("count", 1, item -> processed.incrementAndGet());
+        
+        try {
+            pipeline.run(emitter -> {
+                for(int i=0;i<1000;i++) {
+                    emitter.emit(new Item(i));
+                }
+            });
+            fail("Expected the stage failure to be thrown");
+        }
+        catch(Exception e) {
+            assertEquals("stage failed",e.getMessage());
+        }
+        
+        /* The source stops soon after the failure */
+        assertTrue(processed.get() < 1000);
+    }
+    
+    @Test
+    public void testSourceFailure() throws Exception {
+        BoundedPipeline<Item> pipeline = new BoundedPipeline<Item>("test", 2).
+            addStage("pass", 1, item -> {});
+        
+        try {
+            pipeline.run(emitter -> {
+                emitter.emit(new Item(0));
+                throw new Exception("source failed");
+            });
+            fail("Expected the source failure to be thrown");
+        }
+        catch(Exception e) {
+            assertEquals("source failed",e.getMessage());
+        }
+    }
+    
+}
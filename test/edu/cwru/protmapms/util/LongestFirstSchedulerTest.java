@@ -0,0 +1,117 @@
+/*
+
+Copyright (C) Case Western Reserve University, 2018. All rights reserved. Please
+read the LICENSE file carefully before using this source code.
+ 
+
+ CASE WESTERN RESERVE UNIVERSITY EXPRESSLY DISCLAIMS ANY
+ AND ALL WARRANTIES CONCERNING THIS SOURCE CODE AND DOCUMENTATION,
+ INCLUDING ANY WARRANTIES OF MERCHANTABILITY AND/OR FITNESS
+ FOR ANY PARTICULAR PURPOSE, AND WARRANTIES OF PERFORMANCE,
+ AND ANY WARRANTY THAT MIGHT OTHERWISE ARISE FROM COURSE OF
+ DEALING OR USAGE OF TRADE. NO WARRANTY IS EITHER EXPRESS OR
+ IMPLIED WITH RESPECT TO THE USE OF THE SOFTWARE OR
+ DOCUMENTATION.
+ 
+Under no circumstances shall University be liable for incidental, special,
+indirect, direct or consequential damages or loss of profits, interruption
+of business, or related expenses which may arise from use of source code or 
+documentation, including but not limited to those resulting from defects in
+source code and/or documentation, or loss or inaccuracy of data of any kind.
+
+*/
+package edu.cwru.protmapms.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author sean-m
+ */
+public class LongestFirstSchedulerTest {
+    
+    public LongestFirstSchedulerTest() {
+    }
+    
+    @Test
+    public void testEveryUnitRunsOnce() throws Exception {
+        final AtomicInteger[] runs = new AtomicInteger[100];
+        LongestFirstScheduler<Integer> scheduler = new LongestFirstScheduler<>("test", 4);
+        for(int i=0;i<runs.length;i++) {
+            runs[i] = new AtomicInteger();
+            scheduler.add(i, i%7);
+        }
+        scheduler.run(unit -> runs[unit].incrementAndGet());
+        
+        for(AtomicInteger r : runs) {
+            assertEquals(1,r.get());
+        }
+    }
+    
+    @Test
+    public void testLongestFirst() throws Exception {
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        LongestFirstScheduler<String> scheduler = new LongestFirstScheduler<String>("test", 1).
+            add("short", 1.0).
+            add("long", 10.0).
+            add("medium", 5.0).
+            add("also short", 1.0);
+        scheduler.run(unit -> order.add(unit));
+        
+        /* Equal costs keep the order they were added in */
+        assertEquals(Arrays.asList("long","medium","short","also short"),order);
+    }
+    
+    @Test
+    public void testIdleWorkerTakesNext() throws Exception {
+        /* Unit 0 blocks the worker that takes it until units 2 and 3 are
+         * done, so the other worker must take every other unit in turn */
+        final CountDownLatch released = new CountDownLatch(2);
+        final List<Integer> other = Collections.synchronizedList(new ArrayList<Integer>());
+        LongestFirstScheduler<Integer> scheduler = new LongestFirstScheduler<Integer>("test", 2).
+            add(0, 10.0).
+            add(1, 10.0).
+            add(2, 5.0).
+            add(3, 5.0);
+        scheduler.run(unit -> {
+            if(unit == 0) {
+                assertTrue(released.await(10, TimeUnit.SECONDS));
+                return;
+            }
+            other.add(unit);
+            if(unit >= 2) released.countDown();
+        });
+        
+        assertEquals(Arrays.asList(1,2,3),other);
+    }
+    
+    @Test
+    public void testFailurePropagates() throws Exception {
+        final AtomicInteger processed = new AtomicInteger();
+        LongestFirstScheduler<Integer> scheduler = new LongestFirstScheduler<>("test", 1);
+        for(int i=0;i<10;i++) {
+            scheduler.add(i, 10-i);
+        }
+        try {
+            scheduler.run(unit -> {
+                processed.incrementAndGet();
+                if(unit == 2) throw new Exception("unit failed");
+            });
+            fail("Expected the failure of a unit to be thrown");
+        }
+        catch(Exception e) {
+            assertEquals("unit failed",e.getMessage());
+        }
+        
+        /* Units after the failure are skipped */
+        assertEquals(3,processed.get());
+    }
+}